@@ -0,0 +1,281 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Класс ImageMetrics вычисляет численные показатели утечки визуальной информации
+ * для BMP-изображения: энтропию Шеннона, гистограммы каналов и корреляцию
+ * соседних пикселей по горизонтали, вертикали и диагонали.
+ * <p>
+ * Проход по массиву пикселей выполняется параллельно: строки изображения делятся
+ * на полосы, каждая полоса накапливает значения в собственных примитивных массивах,
+ * которые затем объединяются. Во время прохода объекты не создаются.
+ */
+public class ImageMetrics {
+    // Направления корреляции: по горизонтали, по вертикали, по диагонали
+    private static final int HORIZONTAL = 0;
+    private static final int VERTICAL = 1;
+    private static final int DIAGONAL = 2;
+    // Накапливаемые суммы для одного направления: x, y, x^2, y^2, x*y, количество пар
+    private static final int SUMS = 6;
+    // Минимальное количество строк в одной полосе
+    private static final int MIN_ROWS_PER_STRIPE = 16;
+
+    private final int channels;
+    private final long[][] histograms;
+    private final double[] entropies;
+    private final double entropy;
+    private final double[] correlations;
+
+    private ImageMetrics(int channels, long[][] histograms, long[] correlationSums) {
+        this.channels = channels;
+        this.histograms = histograms;
+
+        // Энтропия каждого канала и общая энтропия по всем цветовым байтам
+        long[] total = new long[256];
+        entropies = new double[channels];
+        for (int c = 0; c < channels; c++) {
+            entropies[c] = entropy(histograms[c]);
+            for (int v = 0; v < 256; v++) {
+                total[v] += histograms[c][v];
+            }
+        }
+        entropy = entropy(total);
+
+        correlations = new double[3];
+        for (int d = 0; d < 3; d++) {
+            correlations[d] = correlation(correlationSums, d * SUMS);
+        }
+    }
+
+    /**
+     * Вычисляет показатели для изображения в формате BMP.
+     * Параметры изображения (смещение данных, ширина, высота, глубина цвета)
+     * берутся из заголовка; строки, которых нет в данных, не учитываются.
+     * Для изображения без пикселей (нулевой ширины или высоты) возвращаются нулевые показатели.
+     *
+     * @param imageData Байты BMP-файла вместе с заголовком.
+     * @return Вычисленные показатели.
+     * @throws IllegalArgumentException Если пиксель занимает меньше байта (палитровые 1- и 4-битные BMP).
+     */
+    public static ImageMetrics compute(byte[] imageData) {
+        int dataOffset = readInt(imageData, 10);
+        int width = readInt(imageData, 18);
+        int height = Math.abs(readInt(imageData, 22));
+        int bitsPerPixel = readShort(imageData, 28);
+        // Пиксели читаются побайтно, поэтому глубина цвета должна быть кратна 8
+        if (bitsPerPixel < 8 || bitsPerPixel % 8 != 0) {
+            throw new IllegalArgumentException("Неподдерживаемая глубина цвета: " + bitsPerPixel + " бит");
+        }
+
+        // Учитываются только цветовые каналы (B, G, R), альфа-канал пропускается
+        int bytesPerPixel = bitsPerPixel / 8;
+        int channels = Math.min(3, bytesPerPixel);
+        // Изображение нулевой ширины не содержит пикселей: показатели пустые, а длина строки равна 0
+        long rowBytes = width > 0 ? ((long) width * bitsPerPixel + 31) / 32 * 4 : 0;
+        int rows = rowBytes == 0 ? 0
+                : (int) Math.min(height, Math.max(0, (imageData.length - dataOffset) / rowBytes));
+        // Если есть хотя бы одна строка, ее длина не превышает размер данных
+        int rowSize = rows > 0 ? (int) rowBytes : 0;
+
+        int stripes = Math.max(1, Math.min(ForkJoinPool.commonPool().getParallelism(),
+                rows / MIN_ROWS_PER_STRIPE));
+        long[][] stripeHistograms = new long[stripes][channels * 256];
+        long[][] stripeSums = new long[stripes][3 * SUMS];
+
+        Stripe[] tasks = new Stripe[stripes];
+        for (int s = 0; s < stripes; s++) {
+            int firstRow = (int) ((long) rows * s / stripes);
+            int lastRow = (int) ((long) rows * (s + 1) / stripes);
+            tasks[s] = new Stripe(imageData, dataOffset, width, rows, rowSize, bytesPerPixel, channels,
+                    firstRow, lastRow, stripeHistograms[s], stripeSums[s]);
+        }
+        ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+
+        // Объединение результатов полос
+        long[][] histograms = new long[channels][256];
+        long[] sums = new long[3 * SUMS];
+        for (int s = 0; s < stripes; s++) {
+            for (int c = 0; c < channels; c++) {
+                for (int v = 0; v < 256; v++) {
+                    histograms[c][v] += stripeHistograms[s][c * 256 + v];
+                }
+            }
+            for (int i = 0; i < sums.length; i++) {
+                sums[i] += stripeSums[s][i];
+            }
+        }
+
+        return new ImageMetrics(channels, histograms, sums);
+    }
+
+    /**
+     * Возвращает гистограмму канала (0 - синий, 1 - зеленый, 2 - красный).
+     *
+     * @param channel Номер канала.
+     * @return Количество вхождений каждого значения байта.
+     */
+    public long[] getHistogram(int channel) {
+        return histograms[channel].clone();
+    }
+
+    /**
+     * Возвращает энтропию Шеннона по всем цветовым байтам изображения.
+     *
+     * @return Энтропия в битах (не более 8).
+     */
+    public double getEntropy() {
+        return entropy;
+    }
+
+    /**
+     * Возвращает энтропию Шеннона отдельного канала.
+     *
+     * @param channel Номер канала.
+     * @return Энтропия в битах (не более 8).
+     */
+    public double getEntropy(int channel) {
+        return entropies[channel];
+    }
+
+    public double getHorizontalCorrelation() {
+        return correlations[HORIZONTAL];
+    }
+
+    public double getVerticalCorrelation() {
+        return correlations[VERTICAL];
+    }
+
+    public double getDiagonalCorrelation() {
+        return correlations[DIAGONAL];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("Энтропия: %.4f бит", entropy));
+        String[] names = {"B", "G", "R"};
+        for (int c = 0; c < channels; c++) {
+            builder.append(String.format(", %s: %.4f", names[c], entropies[c]));
+        }
+        builder.append(String.format("%nКорреляция соседних пикселей: по горизонтали %.4f, по вертикали %.4f, по диагонали %.4f",
+                correlations[HORIZONTAL], correlations[VERTICAL], correlations[DIAGONAL]));
+        return builder.toString();
+    }
+
+    private static double entropy(long[] histogram) {
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        double result = 0;
+        for (long count : histogram) {
+            if (count > 0) {
+                double p = (double) count / total;
+                result -= p * Math.log(p);
+            }
+        }
+        return result / Math.log(2);
+    }
+
+    private static double correlation(long[] sums, int offset) {
+        double n = sums[offset + 5];
+        if (n == 0) {
+            return 0;
+        }
+        double covariance = sums[offset + 4] / n - (sums[offset] / n) * (sums[offset + 1] / n);
+        double varianceX = sums[offset + 2] / n - (sums[offset] / n) * (sums[offset] / n);
+        double varianceY = sums[offset + 3] / n - (sums[offset + 1] / n) * (sums[offset + 1] / n);
+        if (varianceX <= 0 || varianceY <= 0) {
+            return 0;
+        }
+        return covariance / Math.sqrt(varianceX * varianceY);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8
+                | (data[offset + 2] & 0xFF) << 16 | (data[offset + 3] & 0xFF) << 24;
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8;
+    }
+
+    /**
+     * Полоса строк изображения, обрабатываемая одним потоком.
+     */
+    private static class Stripe extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] data;
+        private final int dataOffset;
+        private final int width;
+        private final int rows;
+        private final int rowSize;
+        private final int bytesPerPixel;
+        private final int channels;
+        private final int firstRow;
+        private final int lastRow;
+        private final long[] histogram;
+        private final long[] sums;
+
+        Stripe(byte[] data, int dataOffset, int width, int rows, int rowSize, int bytesPerPixel, int channels,
+               int firstRow, int lastRow, long[] histogram, long[] sums) {
+            this.data = data;
+            this.dataOffset = dataOffset;
+            this.width = width;
+            this.rows = rows;
+            this.rowSize = rowSize;
+            this.bytesPerPixel = bytesPerPixel;
+            this.channels = channels;
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+            this.histogram = histogram;
+            this.sums = sums;
+        }
+
+        @Override
+        protected void compute() {
+            for (int y = firstRow; y < lastRow; y++) {
+                int row = dataOffset + y * rowSize;
+                // Следующая строка может принадлежать другой полосе, но только читается
+                int nextRow = y + 1 < rows ? row + rowSize : -1;
+                for (int x = 0; x < width; x++) {
+                    int pixel = row + x * bytesPerPixel;
+                    boolean hasRight = x + 1 < width;
+                    for (int c = 0; c < channels; c++) {
+                        int value = data[pixel + c] & 0xFF;
+                        histogram[c * 256 + value]++;
+                        if (hasRight) {
+                            accumulate(HORIZONTAL, value, data[pixel + bytesPerPixel + c] & 0xFF);
+                        }
+                        if (nextRow >= 0) {
+                            int below = nextRow + x * bytesPerPixel + c;
+                            accumulate(VERTICAL, value, data[below] & 0xFF);
+                            if (hasRight) {
+                                accumulate(DIAGONAL, value, data[below + bytesPerPixel] & 0xFF);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        private void accumulate(int direction, int x, int y) {
+            int offset = direction * SUMS;
+            sums[offset] += x;
+            sums[offset + 1] += y;
+            sums[offset + 2] += x * x;
+            sums[offset + 3] += y * y;
+            sums[offset + 4] += x * y;
+            sums[offset + 5]++;
+        }
+    }
+}
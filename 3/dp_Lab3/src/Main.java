@@ -38,6 +38,10 @@ public class Main {
             outputStreamWithoutHeader.write(imageDataWithoutHeader);
             outputStreamWithoutHeader.close();
 
+            // Показатели исходного изображения для сравнения с зашифрованными
+            System.out.println("tux.bmp");
+            System.out.println(ImageMetrics.compute(imageData));
+
             // Шифрование и сохранение данных с использованием различных режимов шифрования
             encryptAndSaveData(header, "ecb");
             encryptAndSaveData(header, "cbc");
@@ -97,10 +101,18 @@ public class Main {
         // Чтение зашифрованных данных
         byte[] encryptedImageData = Files.readAllBytes(Path.of(tuxEncryptedPath));
 
+        // Объединение заголовка и зашифрованных данных
+        byte[] encryptedImage = new byte[header.length + encryptedImageData.length];
+        System.arraycopy(header, 0, encryptedImage, 0, header.length);
+        System.arraycopy(encryptedImageData, 0, encryptedImage, header.length, encryptedImageData.length);
+
         // Создание выходного файла и запись заголовка + зашифрованных данных
         FileOutputStream outputStream = new FileOutputStream(tuxEncryptedPath);
-        outputStream.write(header);
-        outputStream.write(encryptedImageData);
+        outputStream.write(encryptedImage);
         outputStream.close();
+
+        // Вычисление показателей утечки визуальной информации
+        System.out.println(tuxEncryptedPath);
+        System.out.println(ImageMetrics.compute(encryptedImage));
     }
 }
@@ -0,0 +1,145 @@
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Пул заранее вычисленных затемняющих множителей для открытого ключа регистратора.
+ * Фоновые потоки заполняют пул тройками (r, r^e mod n, r^-1 mod n), поэтому
+ * затемнение и снятие затемнения сводятся к одному умножению и одному взятию по модулю.
+ * Если пул пуст, множитель вычисляется в вызывающем потоке.
+ */
+public class BlindingFactorPool implements AutoCloseable {
+    private final BigInteger modulus;
+    private final BigInteger exponent;
+    private final BlockingQueue<BlindingFactor> factors;
+    private final Thread[] workers;
+
+    /**
+     * Конструктор класса BlindingFactorPool. Запускает фоновые потоки заполнения.
+     *
+     * @param modulus  модуль открытого ключа n
+     * @param exponent открытая экспонента e
+     * @param capacity количество множителей, хранимых в пуле
+     * @param threads  количество фоновых потоков
+     */
+    public BlindingFactorPool(BigInteger modulus, BigInteger exponent, int capacity, int threads) {
+        this.modulus = modulus;
+        this.exponent = exponent;
+        factors = new ArrayBlockingQueue<>(capacity);
+        workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(this::fill, "blinding-factors-" + i);
+            workers[i].setDaemon(true);
+            workers[i].setPriority(Thread.MIN_PRIORITY);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Возвращает затемняющий множитель из пула или вычисляет его, если пул пуст.
+     * Каждый множитель выдается только один раз.
+     *
+     * @return тройка (r, r^e mod n, r^-1 mod n)
+     */
+    public BlindingFactor take() {
+        BlindingFactor factor = factors.poll();
+        return factor != null ? factor : generate(modulus, exponent);
+    }
+
+    /**
+     * Вычисляет затемняющий множитель в вызывающем потоке, без пула.
+     * Подходит, когда нужен один множитель и фоновые потоки не успели бы его подготовить.
+     *
+     * @param modulus  модуль открытого ключа n
+     * @param exponent открытая экспонента e
+     * @return тройка (r, r^e mod n, r^-1 mod n)
+     */
+    public static BlindingFactor generate(BigInteger modulus, BigInteger exponent) {
+        return generate(modulus, exponent, new SecureRandom());
+    }
+
+    /**
+     * Проверяет, что пул построен для указанного открытого ключа.
+     *
+     * @param modulus  модуль открытого ключа n
+     * @param exponent открытая экспонента e
+     * @return true, если ключ совпадает
+     */
+    public boolean matches(BigInteger modulus, BigInteger exponent) {
+        return this.modulus.equals(modulus) && this.exponent.equals(exponent);
+    }
+
+    /**
+     * Останавливает фоновые потоки.
+     */
+    @Override
+    public void close() {
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    private void fill() {
+        SecureRandom random = new SecureRandom();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                factors.put(generate(modulus, exponent, random));
+            }
+        } catch (InterruptedException e) {
+            // Пул закрыт
+        }
+    }
+
+    private static BlindingFactor generate(BigInteger modulus, BigInteger exponent, SecureRandom random) {
+        while (true) {
+            BigInteger r = new BigInteger(modulus.bitLength(), random);
+            if (r.signum() <= 0 || r.compareTo(modulus) >= 0) {
+                continue;
+            }
+            try {
+                // Обратный элемент существует только при gcd(r, n) = 1
+                BigInteger inverse = r.modInverse(modulus);
+                return new BlindingFactor(r, r.modPow(exponent, modulus), inverse);
+            } catch (ArithmeticException e) {
+                // r не взаимно просто с n, выбирается другое число
+            }
+        }
+    }
+
+    /**
+     * Затемняющий множитель r вместе с r^e mod n и r^-1 mod n.
+     */
+    public static final class BlindingFactor {
+        private final BigInteger factor;
+        private final BigInteger blinding;
+        private final BigInteger inverse;
+
+        private BlindingFactor(BigInteger factor, BigInteger blinding, BigInteger inverse) {
+            this.factor = factor;
+            this.blinding = blinding;
+            this.inverse = inverse;
+        }
+
+        /**
+         * @return r
+         */
+        public BigInteger getFactor() {
+            return factor;
+        }
+
+        /**
+         * @return r^e mod n - множитель для затемнения сообщения
+         */
+        public BigInteger getBlinding() {
+            return blinding;
+        }
+
+        /**
+         * @return r^-1 mod n - множитель для снятия затемнения подписи
+         */
+        public BigInteger getInverse() {
+            return inverse;
+        }
+    }
+}
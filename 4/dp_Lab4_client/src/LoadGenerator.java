@@ -0,0 +1,278 @@
+import dp.voting.LatencyHistogram;
+import dp.voting.VotingProtocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Нагрузочный тест протокола слепой подписи.
+ * Запускает M моделируемых избирателей с заданной степенью параллельности против
+ * локального регистратора и измеряет задержки каждого этапа: получения ключа,
+ * затемнения, подписи, снятия затемнения и проверки. Результаты записываются
+ * в JSON-отчет, чтобы сравнивать версии между собой.
+ * <p>
+ * Если указан параметр --server-classpath, регистратор выдает учетные данные избирателей,
+ * и для каждой длины ключа запускается отдельный процесс регистратора с собственным
+ * хранилищем ключа и пустым реестром избирателей; иначе используется уже запущенный
+ * регистратор и учетные данные из файла --credentials.
+ */
+public class LoadGenerator {
+    private static final String[] PHASES = {"keyFetch", "blind", "sign", "unblind", "verify"};
+    private static final long SERVER_START_TIMEOUT_MILLIS = 60_000;
+    private static final String VOTER_SECRET = "load_voter_secret.key";
+    private static final String CREDENTIALS = "load_credentials.txt";
+
+    private final String host;
+    private final int port;
+    private final int voters;
+    private final int concurrency;
+    private final VotingProtocol.Credential[] credentials;
+
+    public LoadGenerator(String host, int port, int voters, int concurrency, VotingProtocol.Credential[] credentials) {
+        this.host = host;
+        this.port = port;
+        this.voters = voters;
+        this.concurrency = concurrency;
+        this.credentials = credentials;
+    }
+
+    /**
+     * @param args необязательные параметры:
+     *             --voters M - количество избирателей (по умолчанию 1000),
+     *             --concurrency C - количество одновременных избирателей (по умолчанию 100),
+     *             --key-bits 1024,2048 - длины ключей (только вместе с --server-classpath),
+     *             --server-classpath PATH - classpath регистратора для запуска локальных процессов,
+     *             --host HOST, --port PORT - адрес регистратора (по умолчанию localhost:8888),
+     *             --credentials FILE - учетные данные избирателей (только без --server-classpath),
+     *             --report FILE - файл отчета (по умолчанию load_report.json)
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String host = "localhost";
+        int port = 8888;
+        int voters = 1000;
+        int concurrency = 100;
+        String[] keySizes = {"1024"};
+        String serverClasspath = null;
+        Path report = Paths.get("load_report.json");
+        Path credentialsFile = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--voters" -> voters = Integer.parseInt(args[++i]);
+                case "--concurrency" -> concurrency = Integer.parseInt(args[++i]);
+                case "--key-bits" -> keySizes = args[++i].split(",");
+                case "--server-classpath" -> serverClasspath = args[++i];
+                case "--host" -> host = args[++i];
+                case "--port" -> port = Integer.parseInt(args[++i]);
+                case "--report" -> report = Paths.get(args[++i]);
+                case "--credentials" -> credentialsFile = Paths.get(args[++i]);
+                default -> throw new IllegalArgumentException("Неизвестный параметр: " + args[i]);
+            }
+        }
+
+        if (serverClasspath != null) {
+            credentialsFile = issueCredentials(serverClasspath, voters);
+        } else if (credentialsFile == null) {
+            throw new IllegalArgumentException("Без --server-classpath нужен параметр --credentials");
+        }
+
+        LoadGenerator generator = new LoadGenerator(host, port, voters, concurrency,
+                VoterAClient.readCredentials(credentialsFile, voters));
+        List<String> runs = new ArrayList<>();
+        if (serverClasspath == null) {
+            runs.add(generator.run());
+        } else {
+            for (String keyBits : keySizes) {
+                Process server = startRegistrar(serverClasspath, Integer.parseInt(keyBits.trim()), port);
+                try {
+                    runs.add(generator.run());
+                } finally {
+                    server.destroy();
+                    server.waitFor();
+                }
+            }
+        }
+
+        String json = "{\"voters\": " + voters + ", \"concurrency\": " + concurrency
+                + ", \"runs\": [" + String.join(", ", runs) + "]}\n";
+        Files.writeString(report, json, StandardCharsets.UTF_8);
+        System.out.println("Отчет записан в " + report);
+    }
+
+    /**
+     * Выполняет один прогон: все избиратели проходят протокол, задержки этапов записываются.
+     *
+     * @return результаты прогона в формате JSON
+     */
+    public String run() throws InterruptedException {
+        LatencyHistogram[] histograms = new LatencyHistogram[PHASES.length];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        LongAdder errors = new LongAdder();
+        int[] keyBits = new int[1];
+        BlindingFactorPool[] pool = new BlindingFactorPool[1];
+
+        // На JDK 18 виртуальные потоки недоступны, поэтому избиратели выполняются пулом потоков
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        long startTime = System.nanoTime();
+        for (int i = 0; i < voters; i++) {
+            byte[] ballot = VotingProtocol.newBallot("Ballot #" + i + ". This is my secret vote. Shh!").toByteArray();
+            VotingProtocol.Credential credential = credentials[i];
+            executor.execute(() -> {
+                try {
+                    vote(ballot, credential, histograms, keyBits, pool);
+                } catch (IOException | RuntimeException e) {
+                    errors.increment();
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        synchronized (pool) {
+            if (pool[0] != null) {
+                pool[0].close();
+            }
+        }
+
+        long completed = histograms[PHASES.length - 1].getTotalCount();
+        System.out.printf("RSA-%d: %d избирателей за %.2f с (%.1f/с), ошибок: %d%n",
+                keyBits[0], completed, seconds, completed / seconds, errors.sum());
+
+        StringBuilder json = new StringBuilder();
+        json.append(String.format(Locale.ROOT,
+                "{\"keyBits\": %d, \"durationSeconds\": %.3f, \"completed\": %d, \"errors\": %d, "
+                        + "\"throughput\": %.1f, \"phases\": {",
+                keyBits[0], seconds, completed, errors.sum(), completed / seconds));
+        for (int i = 0; i < PHASES.length; i++) {
+            LatencyHistogram histogram = histograms[i];
+            System.out.printf("  %-8s p50 %8.1f мкс, p99 %8.1f мкс, p99.9 %8.1f мкс, max %8.1f мкс%n",
+                    PHASES[i], histogram.getValueAtPercentile(50) / 1e3, histogram.getValueAtPercentile(99) / 1e3,
+                    histogram.getValueAtPercentile(99.9) / 1e3, histogram.getMaxValue() / 1e3);
+            json.append(String.format(Locale.ROOT,
+                    "%s\"%s\": {\"count\": %d, \"meanMicros\": %.1f, \"p50Micros\": %.1f, \"p90Micros\": %.1f, "
+                            + "\"p99Micros\": %.1f, \"p999Micros\": %.1f, \"maxMicros\": %.1f}",
+                    i == 0 ? "" : ", ", PHASES[i], histogram.getTotalCount(), histogram.getMean() / 1e3,
+                    histogram.getValueAtPercentile(50) / 1e3, histogram.getValueAtPercentile(90) / 1e3,
+                    histogram.getValueAtPercentile(99) / 1e3, histogram.getValueAtPercentile(99.9) / 1e3,
+                    histogram.getMaxValue() / 1e3));
+        }
+        json.append("}}");
+        return json.toString();
+    }
+
+    /**
+     * Один избиратель: получение ключа, затемнение, подпись, снятие затемнения, проверка.
+     */
+    private void vote(byte[] ballot, VotingProtocol.Credential credential, LatencyHistogram[] histograms,
+                      int[] keyBits, BlindingFactorPool[] pool) throws IOException {
+        try (Socket socket = new Socket(host, port)) {
+            long time = System.nanoTime();
+            VotingProtocol protocol = new VotingProtocol(socket);
+            BigInteger[] components = protocol.readPublicKey();
+            BigInteger modulus = components[0];
+            BigInteger exponent = components[1];
+            time = record(histograms[0], time);
+
+            BlindingFactorPool blindingFactors;
+            synchronized (pool) {
+                if (pool[0] == null || !pool[0].matches(modulus, exponent)) {
+                    pool[0] = new BlindingFactorPool(modulus, exponent, concurrency,
+                            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+                    keyBits[0] = modulus.bitLength();
+                }
+                blindingFactors = pool[0];
+            }
+
+            BigInteger message = VotingProtocol.encodeBallot(new BigInteger(1, ballot), modulus);
+            BlindingFactorPool.BlindingFactor factor = blindingFactors.take();
+            BigInteger blindedMessage = message.multiply(factor.getBlinding()).mod(modulus);
+            time = record(histograms[1], time);
+
+            int width = VotingProtocol.widthOf(modulus);
+            protocol.writeCredentials(new VotingProtocol.Credential[]{credential});
+            protocol.writeValue(VotingProtocol.SIGN_REQUEST, blindedMessage, width);
+            protocol.expect(protocol.readMessageType(), VotingProtocol.SIGNATURE);
+            BigInteger blindedSignature = protocol.readValue(width);
+            time = record(histograms[2], time);
+
+            BigInteger signature = blindedSignature.multiply(factor.getInverse()).mod(modulus);
+            time = record(histograms[3], time);
+
+            if (!signature.modPow(exponent, modulus).equals(message)) {
+                throw new IllegalStateException("Подпись неверна");
+            }
+            record(histograms[4], time);
+        }
+    }
+
+    private static long record(LatencyHistogram histogram, long startTime) {
+        long now = System.nanoTime();
+        histogram.record(now - startTime);
+        return now;
+    }
+
+    /**
+     * Получает у регистратора учетные данные для избирателей 1..voters.
+     *
+     * @return файл учетных данных
+     */
+    private static Path issueCredentials(String classpath, int voters) throws IOException, InterruptedException {
+        Path credentialsFile = Paths.get(CREDENTIALS);
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", classpath, "RegistrarBServer",
+                "--voter-secret", VOTER_SECRET, "--issue-credentials", "1", String.valueOf(voters));
+        builder.redirectError(ProcessBuilder.Redirect.appendTo(new File("load_registrar.log")));
+        builder.redirectOutput(credentialsFile.toFile());
+        if (builder.start().waitFor() != 0) {
+            throw new IOException("Регистратор не выдал учетные данные, см. load_registrar.log");
+        }
+        return credentialsFile;
+    }
+
+    /**
+     * Запускает процесс регистратора с ключом указанной длины и ждет, пока он начнет принимать подключения.
+     * Реестр избирателей каждого прогона создается заново, чтобы те же избиратели могли проголосовать снова.
+     */
+    private static Process startRegistrar(String classpath, int keyBits, int port)
+            throws IOException, InterruptedException {
+        File keyStore = new File("load_registrar_" + keyBits + ".key");
+        Path registry = Paths.get("load_voters_" + keyBits + ".db");
+        Files.deleteIfExists(registry);
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", classpath, "RegistrarBServer",
+                "--key-store", keyStore.getPath(), "--key-bits", String.valueOf(keyBits), "--port", String.valueOf(port),
+                "--voter-secret", VOTER_SECRET, "--voter-registry", registry.toString());
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(ProcessBuilder.Redirect.appendTo(new File("load_registrar.log")));
+        Process process = builder.start();
+
+        long deadline = System.currentTimeMillis() + SERVER_START_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            if (!process.isAlive()) {
+                throw new IOException("Регистратор завершился при запуске, см. load_registrar.log");
+            }
+            try {
+                new Socket("localhost", port).close();
+                return process;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        process.destroy();
+        throw new IOException("Регистратор не запустился за " + SERVER_START_TIMEOUT_MILLIS + " мс");
+    }
+}
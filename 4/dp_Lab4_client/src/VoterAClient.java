@@ -1,22 +1,110 @@
+import dp.voting.VotingProtocol;
+
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.math.BigInteger;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HexFormat;
 
 public class VoterAClient {
     private static final int SERVER_PORT = 8888;
     private static final String IP_ADDRESS = "localhost";
+    private static final int COUNTER_PORT = 8889;
+    // Количество заранее вычисленных затемняющих множителей и потоков, которые их вычисляют
+    private static final int BLINDING_POOL_CAPACITY = 256;
+    private static final int BLINDING_POOL_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
     static BigInteger publicModulus;
     static BigInteger publicExponent;
     static BigInteger blindedSignature;
     byte[] message;
+    VotingProtocol.Credential credential;
     BigInteger unblindedSignature;
+    private BlindingFactorPool blindingFactorPool;
+
+    /**
+     * @param args необязательные параметры:
+     *             --voter-id ID --credential HEX - учетные данные избирателя, выданные регистратором,
+     *             --credentials FILE - файл учетных данных (строки "идентификатор токен");
+     *             для одного бюллетеня берется первая строка, для пакета - по строке на бюллетень,
+     *             --batch N - зарегистрировать N бюллетеней одним пакетом,
+     *             --cast - отправить подписанные бюллетени счетчику голосов
+     */
+    public static void main(String[] args) throws IOException {
+        int batchSize = 0;
+        boolean cast = false;
+        long voterId = 0;
+        String token = null;
+        Path credentialsFile = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--voter-id" -> voterId = Long.parseLong(args[++i]);
+                case "--credential" -> token = args[++i];
+                case "--credentials" -> credentialsFile = Paths.get(args[++i]);
+                case "--batch" -> batchSize = Integer.parseInt(args[++i]);
+                case "--cast" -> cast = true;
+                default -> throw new IllegalArgumentException("Неизвестный параметр: " + args[i]);
+            }
+        }
+
+        VotingProtocol.Credential[] credentials;
+        if (token != null) {
+            credentials = new VotingProtocol.Credential[]{
+                    new VotingProtocol.Credential(voterId, HexFormat.of().parseHex(token))};
+        } else if (credentialsFile != null) {
+            credentials = readCredentials(credentialsFile, Math.max(1, batchSize));
+        } else {
+            System.err.println("Не указаны учетные данные избирателя (--voter-id и --credential или --credentials)");
+            return;
+        }
 
-    public static void main(String[] args) {
         VoterAClient client = new VoterAClient();
-        client.message = "This is my secret vote. Shh!".getBytes();
+        if (batchSize > 0) {
+            byte[][] ballots = new byte[batchSize][];
+            for (int i = 0; i < ballots.length; i++) {
+                ballots[i] = VotingProtocol.newBallot("Ballot #" + i + ". This is my secret vote. Shh!").toByteArray();
+            }
+            BigInteger[] signatures = client.registerBallots(IP_ADDRESS, SERVER_PORT, ballots, credentials);
+            if (cast && signatures != null) {
+                client.castVotes(IP_ADDRESS, COUNTER_PORT, ballots, signatures);
+            }
+            return;
+        }
+        client.message = VotingProtocol.newBallot("This is my secret vote. Shh!").toByteArray();
+        client.credential = credentials[0];
         client.connectToServer(IP_ADDRESS, SERVER_PORT);
+        if (cast && client.unblindedSignature != null) {
+            client.castVotes(IP_ADDRESS, COUNTER_PORT, new byte[][]{client.message},
+                    new BigInteger[]{client.unblindedSignature});
+        }
+    }
+
+    /**
+     * Читает учетные данные избирателей из файла, выданного регистратором
+     * (строки "идентификатор токен", токен в шестнадцатеричном виде).
+     *
+     * @param path  путь к файлу
+     * @param count количество нужных учетных данных
+     * @return учетные данные из первых count строк
+     */
+    public static VotingProtocol.Credential[] readCredentials(Path path, int count) throws IOException {
+        VotingProtocol.Credential[] credentials = new VotingProtocol.Credential[count];
+        HexFormat hex = HexFormat.of();
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < count; i++) {
+                String line = reader.readLine();
+                if (line == null) {
+                    throw new IOException("В файле " + path + " только " + i + " учетных данных, нужно " + count);
+                }
+                String[] fields = line.trim().split("\\s+");
+                credentials[i] = new VotingProtocol.Credential(Long.parseLong(fields[0]), hex.parseHex(fields[1]));
+            }
+        }
+        return credentials;
     }
 
     public void connectToServer(String serverAddress, int serverPort) {
@@ -25,73 +113,183 @@ public class VoterAClient {
             System.out.println("Подключено к серверу: " + socket.getInetAddress().getHostAddress());
 
             // Получение компонентов открытого ключа сервера
-            ObjectInputStream inputStream = new ObjectInputStream(socket.getInputStream());
-            BigInteger[] components = (BigInteger[]) inputStream.readObject();
+            VotingProtocol protocol = new VotingProtocol(socket);
+            BigInteger[] components = protocol.readPublicKey();
 
             publicModulus = components[0];
             publicExponent = components[1];
 
-            // Blind the message
-            BigInteger[] blindedMessage = blindMessage(message, publicExponent, publicModulus);
-            sendBlindedMessage(socket, blindedMessage[0]);
+            // Blind the message. Для одного бюллетеня множитель вычисляется сразу:
+            // пул, запущенный после получения ключа, не успел бы его подготовить
+            BigInteger[] blindedMessage = blindMessage(message, publicModulus,
+                    BlindingFactorPool.generate(publicModulus, publicExponent));
+            protocol.writeCredentials(new VotingProtocol.Credential[]{credential});
+            sendBlindedMessage(protocol, blindedMessage[0]);
 
-            receiveBlindedSignature(socket);
+            receiveBlindedSignature(protocol);
             unblindedSignature = unblindSignature(blindedSignature, blindedMessage[1], publicModulus);
 
             verifySignature();
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Регистрирует пакет бюллетеней за одно подключение (например, все бюллетени
+     * избирательного участка): затемненные сообщения отправляются одним запросом,
+     * а регистратор возвращает подписи в том же порядке.
+     *
+     * @param serverAddress адрес регистратора
+     * @param serverPort    порт регистратора
+     * @param ballots       бюллетени
+     * @param credentials   учетные данные избирателя для каждого бюллетеня
+     * @return снятые с затемнения подписи бюллетеней или null при ошибке
+     */
+    public BigInteger[] registerBallots(String serverAddress, int serverPort, byte[][] ballots,
+                                        VotingProtocol.Credential[] credentials) {
+        try (Socket socket = new Socket(serverAddress, serverPort)) {
+            System.out.println("Подключено к серверу: " + socket.getInetAddress().getHostAddress());
+
+            // Получение компонентов открытого ключа сервера
+            VotingProtocol protocol = new VotingProtocol(socket);
+            BigInteger[] components = protocol.readPublicKey();
 
+            publicModulus = components[0];
+            publicExponent = components[1];
+
+            // Затемнение всех бюллетеней: пока множитель вычисляется в этом потоке,
+            // фоновые потоки пула готовят множители для следующих бюллетеней
+            BlindingFactorPool blindingFactors = getBlindingFactorPool(publicExponent, publicModulus);
+            BigInteger[] blindedMessages = new BigInteger[ballots.length];
+            BigInteger[] inverseFactors = new BigInteger[ballots.length];
+            for (int i = 0; i < ballots.length; i++) {
+                BigInteger[] blindedMessage = blindMessage(ballots[i], publicModulus, blindingFactors.take());
+                blindedMessages[i] = blindedMessage[0];
+                inverseFactors[i] = blindedMessage[1];
+            }
+
+            int width = VotingProtocol.widthOf(publicModulus);
+            protocol.writeCredentials(credentials);
+            protocol.writeValues(VotingProtocol.BATCH_SIGN_REQUEST, blindedMessages, width);
+
+            protocol.expect(protocol.readMessageType(), VotingProtocol.BATCH_SIGNATURE);
+            BigInteger[] blindedSignatures = protocol.readValues(width, ballots.length);
+            if (blindedSignatures.length != ballots.length) {
+                throw new ProtocolException("Получено подписей: " + blindedSignatures.length);
+            }
+
+            // Снятие затемнения и проверка подписей
+            BigInteger[] signatures = new BigInteger[ballots.length];
+            int valid = 0;
+            for (int i = 0; i < ballots.length; i++) {
+                signatures[i] = unblindSignature(blindedSignatures[i], inverseFactors[i], publicModulus);
+                if (isValidSignature(ballots[i], signatures[i])) {
+                    valid++;
+                }
+            }
+            System.out.println("Подписано бюллетеней: " + valid + " из " + ballots.length);
+            return signatures;
         } catch (IOException e) {
             e.printStackTrace();
-        } catch (ClassNotFoundException e) {
-            throw new RuntimeException(e);
         }
+        return null;
     }
 
-    private void sendBlindedMessage(Socket socket, BigInteger message) throws IOException {
+    /**
+     * Отправляет подписанные бюллетени счетчику голосов одним пакетом.
+     *
+     * @param counterAddress адрес счетчика голосов
+     * @param counterPort    порт счетчика голосов
+     * @param ballots        бюллетени
+     * @param signatures     снятые с затемнения подписи бюллетеней
+     * @return состояние приема каждого бюллетеня (0 - учтен, 1 - неверная подпись, 2 - повторный,
+     * 3 - бюллетень без серийного номера)
+     */
+    public byte[] castVotes(String counterAddress, int counterPort, byte[][] ballots, BigInteger[] signatures) {
+        try (Socket socket = new Socket(counterAddress, counterPort)) {
+            VotingProtocol protocol = new VotingProtocol(socket);
+
+            BigInteger[] values = new BigInteger[ballots.length * 2];
+            for (int i = 0; i < ballots.length; i++) {
+                values[2 * i] = new BigInteger(1, ballots[i]);
+                values[2 * i + 1] = signatures[i];
+            }
+            protocol.writeValues(VotingProtocol.BALLOTS, values, VotingProtocol.widthOf(publicModulus));
+
+            protocol.expect(protocol.readMessageType(), VotingProtocol.BALLOT_RESULTS);
+            byte[] results = protocol.readBytes();
+
+            int counted = 0;
+            for (byte result : results) {
+                if (result == 0) {
+                    counted++;
+                }
+            }
+            System.out.println("Счетчик учел голосов: " + counted + " из " + ballots.length);
+            return results;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    private void sendBlindedMessage(VotingProtocol protocol, BigInteger message) throws IOException {
         // Отправка затемненного сообщения серверу
-        ObjectOutputStream outputStream = new ObjectOutputStream(socket.getOutputStream());
-        outputStream.writeObject(message);
+        protocol.writeValue(VotingProtocol.SIGN_REQUEST, message, VotingProtocol.widthOf(publicModulus));
     }
 
-    private void receiveBlindedSignature(Socket socket) throws IOException, ClassNotFoundException {
+    private void receiveBlindedSignature(VotingProtocol protocol) throws IOException {
         // Получение затемненной цифровой подписи с сервера
-        ObjectInputStream inputStream = new ObjectInputStream(socket.getInputStream());
-        blindedSignature = (BigInteger) inputStream.readObject();
+        protocol.expect(protocol.readMessageType(), VotingProtocol.SIGNATURE);
+        blindedSignature = protocol.readValue(VotingProtocol.widthOf(publicModulus));
     }
 
-    private BigInteger[] blindMessage(byte[] message, BigInteger exp, BigInteger mod) {
-        BigInteger messageInt = new BigInteger(1, message);
+    private BigInteger[] blindMessage(byte[] message, BigInteger mod, BlindingFactorPool.BlindingFactor r) {
+        BigInteger messageInt = VotingProtocol.encodeBallot(new BigInteger(1, message), mod);
 
-        // Генерирует затемняющий фактор (случайное число)
-        BigInteger r = generateRandomBlindingFactor(mod);
+        // r - затемняющий фактор (r, r^e mod n, r^-1 mod n)
         // Blinded message = (message * r^e) mod n
-        BigInteger blindedMessageInt = messageInt.multiply(r.modPow(exp, mod)).mod(mod);
+        BigInteger blindedMessageInt = messageInt.multiply(r.getBlinding()).mod(mod);
 
-        // Возвращает затемненное сообщение и затемняющий фактор
-        return new BigInteger[]{blindedMessageInt, r};
+        // Возвращает затемненное сообщение и обратный затемняющий фактор
+        return new BigInteger[]{blindedMessageInt, r.getInverse()};
     }
 
-    private BigInteger generateRandomBlindingFactor(BigInteger mod) {
-        BigInteger rand;
-        do {
-            rand = new BigInteger(mod.bitLength(), new java.security.SecureRandom());
-        } while (rand.compareTo(BigInteger.ZERO) <= 0 || rand.compareTo(mod) >= 0 || !rand.gcd(mod).equals(BigInteger.ONE));
-        return rand;
+    /**
+     * Возвращает пул затемняющих множителей для открытого ключа регистратора.
+     * Пул создается при первой регистрации пакета и пересоздается при смене ключа,
+     * поэтому при регистрации нескольких пакетов подряд множители уже вычислены.
+     */
+    private synchronized BlindingFactorPool getBlindingFactorPool(BigInteger exp, BigInteger mod) {
+        if (blindingFactorPool == null || !blindingFactorPool.matches(mod, exp)) {
+            if (blindingFactorPool != null) {
+                blindingFactorPool.close();
+            }
+            blindingFactorPool = new BlindingFactorPool(mod, exp, BLINDING_POOL_CAPACITY, BLINDING_POOL_THREADS);
+        }
+        return blindingFactorPool;
     }
 
-    private BigInteger unblindSignature(BigInteger blindedSignature, BigInteger r, BigInteger modulus) {
-        // Unblinded message = (blinded message * r^-e) mod n
-        return blindedSignature.multiply(r.modPow(new BigInteger("-1"), modulus)).mod(modulus);
+    private BigInteger unblindSignature(BigInteger blindedSignature, BigInteger rInverse, BigInteger modulus) {
+        // Unblinded message = (blinded message * r^-1) mod n
+        return blindedSignature.multiply(rInverse).mod(modulus);
     }
 
     private void verifySignature() {
-        BigInteger messageInt = new BigInteger(1, message);
-        System.out.println("Первоначальный  голос избирателя (в байтах) " + messageInt);
+        BigInteger messageInt = VotingProtocol.encodeBallot(new BigInteger(1, message), publicModulus);
+        System.out.println("Закодированный  голос избирателя (в байтах) " + messageInt);
         System.out.println("Восстановленный голос избирателя (в байтах) " + unblindedSignature.modPow(publicExponent, publicModulus).mod(publicModulus));
 
-        if (unblindedSignature.modPow(publicExponent, publicModulus).mod(publicModulus).equals(messageInt))
+        if (isValidSignature(message, unblindedSignature))
             System.out.println("Голос будет зачтен счетчиком голосов.");
         else
             System.out.println("Голос отклонен. Подпись неверна.");
     }
+
+    private boolean isValidSignature(byte[] message, BigInteger signature) {
+        return signature.modPow(publicExponent, publicModulus)
+                .equals(VotingProtocol.encodeBallot(new BigInteger(1, message), publicModulus));
+    }
 }
@@ -0,0 +1,199 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Множество 128-битных отпечатков кодировок принятых бюллетеней.
+ * <p>
+ * Отпечатки хранятся вне кучи в таблице с открытой адресацией (прямой {@link ByteBuffer}),
+ * поэтому миллионы записей не нагружают сборщик мусора. Каждый новый отпечаток
+ * дописывается в журнал, отображенный в память; при перезапуске таблица восстанавливается
+ * чтением журнала без повторной проверки подписей.
+ * <p>
+ * Формат журнала: [сигнатура: 4][резерв: 4][количество записей: 8][записи по 16 байт].
+ */
+public class FingerprintSet implements AutoCloseable {
+    // "FPS1" - сигнатура и версия формата журнала
+    private static final int MAGIC = 0x46505331;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 16;
+    // Журнал отображается в память участками по 1 млн записей
+    private static final long SEGMENT_SIZE = 1L << 24;
+    private static final int INITIAL_SLOTS = 1 << 16;
+    // Наибольшее число ячеек, при котором таблица помещается в один ByteBuffer
+    private static final int MAX_SLOTS = 1 << 26;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private MappedByteBuffer segment;
+    private long segmentStart;
+    private long count;
+    private ByteBuffer table;
+    private int mask;
+
+    /**
+     * Открывает множество, восстанавливая его из журнала, если он существует.
+     *
+     * @param logPath путь к файлу журнала
+     * @throws IOException если журнал не читается или имеет неверный формат
+     */
+    public FingerprintSet(Path logPath) throws IOException {
+        channel = FileChannel.open(logPath, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        if (header.getInt(0) == 0 && header.getLong(8) == 0) {
+            header.putInt(0, MAGIC);
+        } else if (header.getInt(0) != MAGIC) {
+            channel.close();
+            throw new IOException("Неверный формат журнала: " + logPath);
+        }
+
+        long recorded = header.getLong(8);
+        int slots = INITIAL_SLOTS;
+        while (slots < MAX_SLOTS && slots < recorded * 2) {
+            slots <<= 1;
+        }
+        allocateTable(slots);
+
+        // Восстановление таблицы из журнала
+        for (long i = 0; i < recorded; i++) {
+            ByteBuffer records = segmentFor(i);
+            int offset = (int) (HEADER_SIZE + i * RECORD_SIZE - segmentStart);
+            insert(records.getLong(offset), records.getLong(offset + 8));
+        }
+        count = recorded;
+    }
+
+    /**
+     * Добавляет отпечаток, если его еще нет в множестве, и записывает его в журнал.
+     *
+     * @param high старшие 64 бита отпечатка
+     * @param low  младшие 64 бита отпечатка
+     * @return true, если отпечаток добавлен; false, если он уже был
+     */
+    public synchronized boolean add(long high, long low) throws IOException {
+        // Нулевой отпечаток обозначает пустую ячейку, поэтому младший бит всегда установлен
+        low |= 1;
+        if (contains(high, low)) {
+            return false;
+        }
+        if (count >= MAX_SLOTS / 2) {
+            throw new IOException("Множество отпечатков заполнено");
+        }
+
+        ByteBuffer records = segmentFor(count);
+        int offset = (int) (HEADER_SIZE + count * RECORD_SIZE - segmentStart);
+        records.putLong(offset, high);
+        records.putLong(offset + 8, low);
+        count++;
+        // Количество записей обновляется после самой записи, чтобы журнал не ссылался на неполные данные
+        header.putLong(8, count);
+
+        if (count * 2 > mask + 1) {
+            rehash();
+        }
+        insert(high, low);
+        return true;
+    }
+
+    /**
+     * Проверяет наличие отпечатка.
+     *
+     * @param high старшие 64 бита отпечатка
+     * @param low  младшие 64 бита отпечатка
+     * @return true, если отпечаток есть в множестве
+     */
+    public synchronized boolean contains(long high, long low) {
+        low |= 1;
+        int slot = (int) mix(high, low) & mask;
+        while (true) {
+            int offset = slot * RECORD_SIZE;
+            long storedHigh = table.getLong(offset);
+            long storedLow = table.getLong(offset + 8);
+            if (storedHigh == 0 && storedLow == 0) {
+                return false;
+            }
+            if (storedHigh == high && storedLow == low) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    public synchronized long size() {
+        return count;
+    }
+
+    /**
+     * Сбрасывает записанные отпечатки на диск.
+     */
+    public synchronized void flush() {
+        if (segment != null) {
+            segment.force();
+        }
+        header.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        channel.close();
+    }
+
+    private ByteBuffer segmentFor(long record) throws IOException {
+        long position = HEADER_SIZE + record * RECORD_SIZE;
+        if (segment == null || position < segmentStart || position + RECORD_SIZE > segmentStart + SEGMENT_SIZE) {
+            if (segment != null) {
+                segment.force();
+            }
+            // Участки выровнены по границе записи, поэтому запись никогда не пересекает границу участка
+            segmentStart = position - (position - HEADER_SIZE) % SEGMENT_SIZE;
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, segmentStart, SEGMENT_SIZE);
+        }
+        return segment;
+    }
+
+    private void insert(long high, long low) {
+        int slot = (int) mix(high, low) & mask;
+        while (true) {
+            int offset = slot * RECORD_SIZE;
+            if (table.getLong(offset) == 0 && table.getLong(offset + 8) == 0) {
+                table.putLong(offset, high);
+                table.putLong(offset + 8, low);
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void rehash() {
+        ByteBuffer old = table;
+        int oldSlots = mask + 1;
+        if (oldSlots >= MAX_SLOTS) {
+            return;
+        }
+        allocateTable(oldSlots << 1);
+        for (int slot = 0; slot < oldSlots; slot++) {
+            long high = old.getLong(slot * RECORD_SIZE);
+            long low = old.getLong(slot * RECORD_SIZE + 8);
+            if (high != 0 || low != 0) {
+                insert(high, low);
+            }
+        }
+    }
+
+    private void allocateTable(int slots) {
+        table = ByteBuffer.allocateDirect(slots * RECORD_SIZE);
+        mask = slots - 1;
+    }
+
+    private static long mix(long high, long low) {
+        long h = high * 0x9E3779B97F4A7C15L ^ low;
+        h ^= h >>> 32;
+        h *= 0xD6E8FEB86659FD93L;
+        return h ^ (h >>> 32);
+    }
+}
@@ -0,0 +1,262 @@
+import dp.voting.VotingProtocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * Счетчик голосов. Принимает пакеты снятых с затемнения бюллетеней (бюллетень, подпись),
+ * параллельно проверяет подписи кодировок бюллетеней ({@link VotingProtocol#encodeBallot})
+ * открытым ключом регистратора и отклоняет повторно поданные бюллетени по отпечатку кодировки.
+ * Кодировка содержит случайный серийный номер бюллетеня ({@link VotingProtocol#newBallot}),
+ * поэтому одинаковые голоса разных избирателей не считаются повторными.
+ */
+public class VoteCounterCServer {
+    private static final int PORT = 8889;
+    private static final String REGISTRAR_ADDRESS = "localhost";
+    private static final int REGISTRAR_PORT = 8888;
+    private static final String BALLOT_LOG = "ballots.log";
+    private static final long HANDLER_STACK_SIZE = 256 * 1024;
+    private static final long REPORT_PERIOD_SECONDS = 10;
+    // Максимальное количество бюллетеней в одном пакете
+    private static final int MAX_BATCH_SIZE = 100_000;
+    // Состояния приема бюллетеня
+    public static final byte ACCEPTED = 0;
+    public static final byte INVALID_SIGNATURE = 1;
+    public static final byte DUPLICATE = 2;
+    public static final byte NO_SERIAL = 3;
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final BigInteger publicModulus;
+    private final BigInteger publicExponent;
+    // Наибольшая допустимая кодировка бюллетеня: n - 2
+    private final BigInteger maxMessage;
+    private final FingerprintSet acceptedBallots;
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final ExecutorService clientExecutor = Executors.newCachedThreadPool(handlerThreadFactory());
+
+    public VoteCounterCServer(BigInteger publicModulus, BigInteger publicExponent, FingerprintSet acceptedBallots) {
+        this.publicModulus = publicModulus;
+        this.publicExponent = publicExponent;
+        maxMessage = publicModulus.subtract(BigInteger.TWO);
+        this.acceptedBallots = acceptedBallots;
+    }
+
+    public static void main(String[] args) throws IOException {
+        BigInteger[] components = fetchRegistrarKey(REGISTRAR_ADDRESS, REGISTRAR_PORT);
+
+        long startTime = System.nanoTime();
+        FingerprintSet acceptedBallots = new FingerprintSet(Paths.get(BALLOT_LOG));
+        System.out.printf("Восстановлено бюллетеней из журнала: %d (%.1f мс)%n",
+                acceptedBallots.size(), (System.nanoTime() - startTime) / 1e6);
+
+        VoteCounterCServer server = new VoteCounterCServer(components[0], components[1], acceptedBallots);
+        server.start(PORT);
+    }
+
+    /**
+     * Получает открытый ключ регистратора.
+     *
+     * @param serverAddress адрес регистратора
+     * @param serverPort    порт регистратора
+     * @return массив {модуль n, открытая экспонента e}
+     */
+    private static BigInteger[] fetchRegistrarKey(String serverAddress, int serverPort) throws IOException {
+        try (Socket socket = new Socket(serverAddress, serverPort)) {
+            return new VotingProtocol(socket).readPublicKey();
+        }
+    }
+
+    /**
+     * Запускает счетчик голосов на указанном порту.
+     *
+     * @param serverPort порт сервера
+     */
+    public void start(int serverPort) {
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "counter-stats");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(new StatsReporter(), REPORT_PERIOD_SECONDS,
+                REPORT_PERIOD_SECONDS, TimeUnit.SECONDS);
+
+        try (ServerSocket serverSocket = new ServerSocket(serverPort, 1024)) {
+            System.out.println("Счетчик голосов запущен. Ожидание бюллетеней...");
+
+            while (true) {
+                Socket socket = serverSocket.accept();
+                clientExecutor.execute(new ClientHandler(socket));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            reporter.shutdownNow();
+            clientExecutor.shutdown();
+            try {
+                acceptedBallots.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Принимает пакеты бюллетеней, пока клиент не закроет соединение.
+     *
+     * @param socket сокет клиента
+     */
+    private void handleClient(Socket socket) throws IOException {
+        VotingProtocol protocol = new VotingProtocol(socket);
+        int width = VotingProtocol.widthOf(publicModulus);
+
+        while (true) {
+            int type;
+            try {
+                type = protocol.readMessageType();
+            } catch (EOFException e) {
+                return;
+            }
+            protocol.expect(type, VotingProtocol.BALLOTS);
+
+            BigInteger[] values = protocol.readValues(width, 2 * MAX_BATCH_SIZE);
+            if (values.length % 2 != 0) {
+                throw new ProtocolException("Нечетное количество чисел в пакете бюллетеней");
+            }
+            protocol.writeBytes(VotingProtocol.BALLOT_RESULTS, countBallots(values));
+        }
+    }
+
+    /**
+     * Проверяет и учитывает пакет бюллетеней.
+     * Бюллетени без серийного номера отклоняются: их одинаковые голоса неотличимы.
+     * Подписи проверяются и отпечатки вычисляются параллельно; затем отпечатки
+     * добавляются в множество принятых бюллетеней, которое сбрасывается на диск
+     * до отправки ответа.
+     *
+     * @param values бюллетени и подписи вперемешку: b1, s1, b2, s2, ...
+     * @return состояние приема каждого бюллетеня
+     */
+    byte[] countBallots(BigInteger[] values) throws IOException {
+        int count = values.length / 2;
+        byte[] results = new byte[count];
+        long[] fingerprints = new long[count * 2];
+
+        IntStream.range(0, count).parallel().forEach(i -> {
+            if (!VotingProtocol.hasBallotSerial(values[2 * i])) {
+                results[i] = NO_SERIAL;
+                return;
+            }
+            BigInteger message = VotingProtocol.encodeBallot(values[2 * i], publicModulus);
+            BigInteger signature = values[2 * i + 1];
+            // 0, 1 и n - 1 равны своей степени, поэтому их "подпись" ничего не доказывает
+            boolean trivial = message.compareTo(BigInteger.TWO) < 0 || message.compareTo(maxMessage) > 0;
+            // Проверка s^e mod n = m; открытая экспонента мала, поэтому проверка дешевле подписи
+            if (trivial || signature.compareTo(publicModulus) >= 0
+                    || !signature.modPow(publicExponent, publicModulus).equals(message)) {
+                results[i] = INVALID_SIGNATURE;
+                return;
+            }
+            fingerprint(message, fingerprints, 2 * i);
+        });
+
+        for (int i = 0; i < count; i++) {
+            if (results[i] == INVALID_SIGNATURE || results[i] == NO_SERIAL) {
+                rejected.increment();
+            } else if (acceptedBallots.add(fingerprints[2 * i], fingerprints[2 * i + 1])) {
+                accepted.increment();
+            } else {
+                results[i] = DUPLICATE;
+                duplicates.increment();
+            }
+        }
+        acceptedBallots.flush();
+        return results;
+    }
+
+    /**
+     * Вычисляет 128-битный отпечаток кодировки бюллетеня (первые 16 байт SHA-256).
+     * Подпись однозначно определяется кодировкой, поэтому повторная подача бюллетеня
+     * дает тот же отпечаток, а бюллетени с разными серийными номерами - разные.
+     */
+    private void fingerprint(BigInteger message, long[] fingerprints, int offset) {
+        byte[] digest = SHA256.get().digest(message.toByteArray());
+        long high = 0;
+        long low = 0;
+        for (int i = 0; i < 8; i++) {
+            high = (high << 8) | (digest[i] & 0xFF);
+            low = (low << 8) | (digest[i + 8] & 0xFF);
+        }
+        fingerprints[offset] = high;
+        fingerprints[offset + 1] = low;
+    }
+
+    private static ThreadFactory handlerThreadFactory() {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(null, runnable, "ballots-" + counter.incrementAndGet(), HANDLER_STACK_SIZE);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Внутренний класс для обработки клиентов в отдельных потоках.
+     */
+    private class ClientHandler implements Runnable {
+        private final Socket socket;
+
+        public ClientHandler(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            try (socket) {
+                handleClient(socket);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Ошибка обработки клиента " + socket.getInetAddress().getHostAddress()
+                        + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Периодически выводит количество принятых и отклоненных бюллетеней.
+     */
+    private class StatsReporter implements Runnable {
+        private long previousCount;
+
+        @Override
+        public void run() {
+            long total = accepted.sum() + rejected.sum() + duplicates.sum();
+            double rate = (double) (total - previousCount) / REPORT_PERIOD_SECONDS;
+            previousCount = total;
+            System.out.printf("Голосов учтено: %d, отклонено: %d, повторных: %d (%.1f бюллетеней/с)%n",
+                    accepted.sum(), rejected.sum(), duplicates.sum(), rate);
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package dp.voting;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Двоичный протокол обмена между избирателем, регистратором и счетчиком голосов.
+ * Каждое сообщение - кадр вида [тип: 1 байт][длина данных: 4 байта][данные].
+ * Числа передаются как беззнаковые big-endian значения фиксированной ширины,
+ * равной длине модуля открытого ключа в байтах, поэтому разбор кадра не требует
+ * сериализации Java и не создает ничего, кроме самих чисел.
+ * <p>
+ * Класс находится в общем модуле dp_Lab4_protocol, от которого зависят модули
+ * регистратора, избирателя и счетчика голосов.
+ */
+public class VotingProtocol {
+    // Открытый ключ регистратора: [длина n: 2][n][длина e: 2][e]
+    public static final int PUBLIC_KEY = 1;
+    // Одно затемненное сообщение
+    public static final int SIGN_REQUEST = 2;
+    // Одна затемненная подпись
+    public static final int SIGNATURE = 3;
+    // Пакет затемненных сообщений: [количество: 4][сообщения]
+    public static final int BATCH_SIGN_REQUEST = 4;
+    // Пакет затемненных подписей в порядке запроса: [количество: 4][подписи]
+    public static final int BATCH_SIGNATURE = 5;
+    // Отказ в обработке запроса: текст в UTF-8
+    public static final int ERROR = 6;
+    // Пакет бюллетеней для счетчика: [количество чисел: 4][бюллетень 1][подпись 1][бюллетень 2]...
+    // Подписывается не сам бюллетень, а его кодировка encodeBallot
+    public static final int BALLOTS = 7;
+    // Результаты приема бюллетеней в порядке запроса: по одному байту состояния на бюллетень
+    public static final int BALLOT_RESULTS = 8;
+    // Учетные данные избирателей в порядке следующего запроса подписи:
+    // [количество: 4][идентификатор 1: 8][токен 1: 32][идентификатор 2: 8]...
+    public static final int VOTER_CREDENTIALS = 9;
+    // Длина токена избирателя (HMAC-SHA256 от идентификатора)
+    public static final int TOKEN_LENGTH = 32;
+    // Бюллетень: [формат: 1][серийный номер: 16][текст голоса в UTF-8]
+    public static final int BALLOT_FORMAT = 1;
+    public static final int BALLOT_SERIAL_LENGTH = 16;
+
+    // Ограничение длины кадра, чтобы некорректный заголовок не вызвал выделение лишней памяти
+    private static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final DataInputStream inputStream;
+    private final DataOutputStream outputStream;
+    private int frameLength;
+
+    /**
+     * Конструктор класса VotingProtocol.
+     *
+     * @param socket сокет, через который выполняется обмен
+     * @throws IOException если не удается получить потоки сокета
+     */
+    public VotingProtocol(Socket socket) throws IOException {
+        inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+        outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+    }
+
+    /**
+     * Отправляет открытый ключ.
+     *
+     * @param modulus  модуль n
+     * @param exponent открытая экспонента e
+     */
+    public void writePublicKey(BigInteger modulus, BigInteger exponent) throws IOException {
+        byte[] modulusBytes = toUnsigned(modulus);
+        byte[] exponentBytes = toUnsigned(exponent);
+        writeHeader(PUBLIC_KEY, 4 + modulusBytes.length + exponentBytes.length);
+        outputStream.writeShort(modulusBytes.length);
+        outputStream.write(modulusBytes);
+        outputStream.writeShort(exponentBytes.length);
+        outputStream.write(exponentBytes);
+        outputStream.flush();
+    }
+
+    /**
+     * Принимает открытый ключ.
+     *
+     * @return массив {модуль n, открытая экспонента e}
+     */
+    public BigInteger[] readPublicKey() throws IOException {
+        expect(readMessageType(), PUBLIC_KEY);
+        byte[] modulusBytes = new byte[inputStream.readUnsignedShort()];
+        inputStream.readFully(modulusBytes);
+        byte[] exponentBytes = new byte[inputStream.readUnsignedShort()];
+        inputStream.readFully(exponentBytes);
+        if (frameLength != 4 + modulusBytes.length + exponentBytes.length) {
+            throw new ProtocolException("Некорректная длина кадра открытого ключа");
+        }
+        return new BigInteger[]{new BigInteger(1, modulusBytes), new BigInteger(1, exponentBytes)};
+    }
+
+    /**
+     * Отправляет одно число фиксированной ширины.
+     *
+     * @param type  тип сообщения
+     * @param value число, 0 <= value < 2^(8 * width)
+     * @param width ширина числа в байтах
+     */
+    public void writeValue(int type, BigInteger value, int width) throws IOException {
+        writeHeader(type, width);
+        writeFixedWidth(value, width);
+        outputStream.flush();
+    }
+
+    /**
+     * Отправляет пакет чисел фиксированной ширины.
+     *
+     * @param type   тип сообщения
+     * @param values числа
+     * @param width  ширина каждого числа в байтах
+     */
+    public void writeValues(int type, BigInteger[] values, int width) throws IOException {
+        writeHeader(type, 4 + (long) values.length * width);
+        outputStream.writeInt(values.length);
+        for (BigInteger value : values) {
+            writeFixedWidth(value, width);
+        }
+        outputStream.flush();
+    }
+
+    /**
+     * Отправляет массив байтов.
+     *
+     * @param type  тип сообщения
+     * @param bytes данные
+     */
+    public void writeBytes(int type, byte[] bytes) throws IOException {
+        writeHeader(type, bytes.length);
+        outputStream.write(bytes);
+        outputStream.flush();
+    }
+
+    /**
+     * Отправляет учетные данные избирателей.
+     *
+     * @param credentials учетные данные в порядке затемненных сообщений
+     */
+    public void writeCredentials(Credential[] credentials) throws IOException {
+        writeHeader(VOTER_CREDENTIALS, 4 + (long) credentials.length * (8 + TOKEN_LENGTH));
+        outputStream.writeInt(credentials.length);
+        for (Credential credential : credentials) {
+            outputStream.writeLong(credential.getVoterId());
+            outputStream.write(credential.getToken());
+        }
+        outputStream.flush();
+    }
+
+    /**
+     * Отправляет сообщение об отказе.
+     *
+     * @param message текст отказа
+     */
+    public void writeError(String message) throws IOException {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        writeHeader(ERROR, bytes.length);
+        outputStream.write(bytes);
+        outputStream.flush();
+    }
+
+    /**
+     * Читает заголовок следующего кадра. Данные кадра затем читаются
+     * одним из методов readValue, readValues, readBytes или readError.
+     *
+     * @return тип сообщения
+     * @throws java.io.EOFException если соединение закрыто
+     */
+    public int readMessageType() throws IOException {
+        int type = inputStream.readUnsignedByte();
+        frameLength = inputStream.readInt();
+        if (frameLength < 0 || frameLength > MAX_FRAME_LENGTH) {
+            throw new ProtocolException("Недопустимая длина кадра: " + frameLength);
+        }
+        return type;
+    }
+
+    /**
+     * Читает данные кадра с одним числом фиксированной ширины.
+     *
+     * @param width ширина числа в байтах
+     * @return число
+     */
+    public BigInteger readValue(int width) throws IOException {
+        if (frameLength != width) {
+            throw new ProtocolException("Ожидалось " + width + " байт, получено " + frameLength);
+        }
+        byte[] bytes = new byte[width];
+        inputStream.readFully(bytes);
+        return new BigInteger(1, bytes);
+    }
+
+    /**
+     * Читает данные кадра с пакетом чисел фиксированной ширины.
+     *
+     * @param width    ширина каждого числа в байтах
+     * @param maxCount наибольшее допустимое количество чисел; больший пакет отклоняется
+     *                 до выделения памяти под него
+     * @return числа в порядке передачи
+     */
+    public BigInteger[] readValues(int width, int maxCount) throws IOException {
+        int count = inputStream.readInt();
+        if (count < 0 || frameLength != 4 + (long) count * width) {
+            throw new ProtocolException("Некорректная длина пакета: " + count);
+        }
+        if (count > maxCount) {
+            throw new ProtocolException("Слишком большой пакет: " + count);
+        }
+        BigInteger[] values = new BigInteger[count];
+        byte[] bytes = new byte[width];
+        for (int i = 0; i < count; i++) {
+            inputStream.readFully(bytes);
+            values[i] = new BigInteger(1, bytes);
+        }
+        return values;
+    }
+
+    /**
+     * Читает данные кадра с учетными данными избирателей.
+     *
+     * @param maxCount наибольшее допустимое количество учетных данных; больший пакет отклоняется
+     *                 до выделения памяти под него
+     * @return учетные данные в порядке передачи
+     */
+    public Credential[] readCredentials(int maxCount) throws IOException {
+        int count = inputStream.readInt();
+        if (count < 0 || frameLength != 4 + (long) count * (8 + TOKEN_LENGTH)) {
+            throw new ProtocolException("Некорректная длина учетных данных: " + count);
+        }
+        if (count > maxCount) {
+            throw new ProtocolException("Слишком большой пакет: " + count);
+        }
+        Credential[] credentials = new Credential[count];
+        for (int i = 0; i < count; i++) {
+            long voterId = inputStream.readLong();
+            byte[] token = new byte[TOKEN_LENGTH];
+            inputStream.readFully(token);
+            credentials[i] = new Credential(voterId, token);
+        }
+        return credentials;
+    }
+
+    /**
+     * Читает данные кадра как массив байтов.
+     *
+     * @return данные кадра
+     */
+    public byte[] readBytes() throws IOException {
+        byte[] bytes = new byte[frameLength];
+        inputStream.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Читает данные кадра с сообщением об отказе.
+     *
+     * @return текст отказа
+     */
+    public String readError() throws IOException {
+        return new String(readBytes(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Проверяет тип принятого сообщения; для сообщения об отказе передает его текст в исключении.
+     *
+     * @param type     принятый тип
+     * @param expected ожидаемый тип
+     */
+    public void expect(int type, int expected) throws IOException {
+        if (type == expected) {
+            return;
+        }
+        if (type == ERROR) {
+            throw new ProtocolException(readError());
+        }
+        throw new ProtocolException("Неожиданный тип сообщения: " + type);
+    }
+
+    /**
+     * Возвращает ширину чисел по модулю в байтах.
+     *
+     * @param modulus модуль открытого ключа
+     * @return длина модуля в байтах
+     */
+    public static int widthOf(BigInteger modulus) {
+        return (modulus.bitLength() + 7) / 8;
+    }
+
+    /**
+     * Составляет бюллетень со случайным серийным номером. Кодировка бюллетеня детерминирована,
+     * поэтому без номера одинаковые голоса разных избирателей давали бы одну подпись
+     * и счетчик принимал бы второй из них за повторный.
+     *
+     * @param vote текст голоса
+     * @return бюллетень как беззнаковое число
+     */
+    public static BigInteger newBallot(String vote) {
+        byte[] text = vote.getBytes(StandardCharsets.UTF_8);
+        byte[] ballot = new byte[1 + BALLOT_SERIAL_LENGTH + text.length];
+        // Байт формата не равен нулю, поэтому серийный номер не теряет ведущие нули в числе
+        ballot[0] = BALLOT_FORMAT;
+        byte[] serial = new byte[BALLOT_SERIAL_LENGTH];
+        RANDOM.nextBytes(serial);
+        System.arraycopy(serial, 0, ballot, 1, BALLOT_SERIAL_LENGTH);
+        System.arraycopy(text, 0, ballot, 1 + BALLOT_SERIAL_LENGTH, text.length);
+        return new BigInteger(1, ballot);
+    }
+
+    /**
+     * Проверяет, что бюллетень составлен {@link #newBallot}: начинается с байта формата
+     * и содержит серийный номер.
+     *
+     * @param ballot бюллетень как беззнаковое число
+     * @return true, если у бюллетеня есть серийный номер
+     */
+    public static boolean hasBallotSerial(BigInteger ballot) {
+        int length = (ballot.bitLength() + 7) / 8;
+        return length >= 1 + BALLOT_SERIAL_LENGTH
+                && ballot.shiftRight((length - 1) * 8).intValue() == BALLOT_FORMAT;
+    }
+
+    /**
+     * Кодирует бюллетень в подписываемое число (хеширование на всю область значений, FDH):
+     * SHA-256 от [номер блока: 4][бюллетень] повторяется до длины модуля, а биты начиная
+     * со старшего бита модуля обнуляются, поэтому 0 <= m < n.
+     * Регистратор подписывает, а счетчик принимает только такие числа. Счетчик вычисляет
+     * кодировку заново по бюллетеню, поэтому ни произведение двух подписанных бюллетеней,
+     * ни подпись числа вроде 0, 1 или n - 1 не становятся новым бюллетенем.
+     *
+     * @param ballot  бюллетень как беззнаковое число
+     * @param modulus модуль открытого ключа регистратора
+     * @return число для подписи
+     */
+    public static BigInteger encodeBallot(BigInteger ballot, BigInteger modulus) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] ballotBytes = toUnsigned(ballot);
+        int width = widthOf(modulus);
+        byte[] encoded = new byte[width];
+        for (int block = 0, offset = 0; offset < width; block++) {
+            digest.update(new byte[]{(byte) (block >>> 24), (byte) (block >>> 16), (byte) (block >>> 8), (byte) block});
+            digest.update(ballotBytes);
+            byte[] hash = digest.digest();
+            int length = Math.min(hash.length, width - offset);
+            System.arraycopy(hash, 0, encoded, offset, length);
+            offset += length;
+        }
+        // Остаются младшие bitLength(n) - 1 бит
+        encoded[0] &= (byte) (0xFF >>> (width * 8 - modulus.bitLength() + 1));
+        return new BigInteger(1, encoded);
+    }
+
+    private void writeHeader(int type, long length) throws IOException {
+        if (length > MAX_FRAME_LENGTH) {
+            throw new ProtocolException("Недопустимая длина кадра: " + length);
+        }
+        outputStream.writeByte(type);
+        outputStream.writeInt((int) length);
+    }
+
+    private void writeFixedWidth(BigInteger value, int width) throws IOException {
+        byte[] bytes = toUnsigned(value);
+        if (bytes.length > width) {
+            throw new ProtocolException("Число не помещается в " + width + " байт");
+        }
+        for (int i = bytes.length; i < width; i++) {
+            outputStream.writeByte(0);
+        }
+        outputStream.write(bytes);
+    }
+
+    private static byte[] toUnsigned(BigInteger value) {
+        if (value.signum() < 0) {
+            throw new IllegalArgumentException("Отрицательное число");
+        }
+        byte[] bytes = value.toByteArray();
+        if (bytes.length > 1 && bytes[0] == 0) {
+            byte[] trimmed = new byte[bytes.length - 1];
+            System.arraycopy(bytes, 1, trimmed, 0, trimmed.length);
+            return trimmed;
+        }
+        return bytes;
+    }
+
+    /**
+     * Учетные данные избирателя: идентификатор и выданный регистратором токен.
+     */
+    public static class Credential {
+        private final long voterId;
+        private final byte[] token;
+
+        public Credential(long voterId, byte[] token) {
+            if (token.length != TOKEN_LENGTH) {
+                throw new IllegalArgumentException("Длина токена должна быть " + TOKEN_LENGTH + " байт");
+            }
+            this.voterId = voterId;
+            this.token = token;
+        }
+
+        public long getVoterId() {
+            return voterId;
+        }
+
+        public byte[] getToken() {
+            return token;
+        }
+    }
+}
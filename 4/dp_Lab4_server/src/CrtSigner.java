@@ -0,0 +1,71 @@
+import java.math.BigInteger;
+import java.security.interfaces.RSAPrivateCrtKey;
+
+/**
+ * Подписывает затемненные сообщения закрытым ключом RSA с использованием
+ * китайской теоремы об остатках (CRT).
+ * Вместо одного возведения в степень d по модулю n выполняются два возведения
+ * в степени dP и dQ по модулям p и q вдвое меньшей длины, что примерно в четыре раза быстрее.
+ * Каждая подпись проверяется открытой экспонентой, чтобы сбой вычисления
+ * не раскрыл множители модуля (атака Белкора).
+ */
+public final class CrtSigner {
+    private final BigInteger modulus;
+    private final BigInteger publicExponent;
+    private final BigInteger primeP;
+    private final BigInteger primeQ;
+    private final BigInteger primeExponentP;
+    private final BigInteger primeExponentQ;
+    private final BigInteger crtCoefficient;
+
+    /**
+     * Конструктор класса CrtSigner.
+     *
+     * @param privateKey закрытый ключ RSA с параметрами CRT
+     */
+    public CrtSigner(RSAPrivateCrtKey privateKey) {
+        modulus = privateKey.getModulus();
+        publicExponent = privateKey.getPublicExponent();
+        primeP = privateKey.getPrimeP();
+        primeQ = privateKey.getPrimeQ();
+        primeExponentP = privateKey.getPrimeExponentP();
+        primeExponentQ = privateKey.getPrimeExponentQ();
+        crtCoefficient = privateKey.getCrtCoefficient();
+    }
+
+    /**
+     * Вычисляет подпись message^d mod n.
+     *
+     * @param message затемненное сообщение, 0 <= message < n
+     * @return подпись
+     * @throws IllegalArgumentException если сообщение вне диапазона модуля
+     * @throws IllegalStateException    если проверка подписи обнаружила сбой вычисления
+     */
+    public BigInteger sign(BigInteger message) {
+        if (message.signum() < 0 || message.compareTo(modulus) >= 0) {
+            throw new IllegalArgumentException("Сообщение вне диапазона модуля");
+        }
+
+        // s1 = m^dP mod p, s2 = m^dQ mod q
+        BigInteger signatureP = message.mod(primeP).modPow(primeExponentP, primeP);
+        BigInteger signatureQ = message.mod(primeQ).modPow(primeExponentQ, primeQ);
+
+        // Восстановление по Гарнеру: s = s2 + q * (qInv * (s1 - s2) mod p)
+        BigInteger h = crtCoefficient.multiply(signatureP.subtract(signatureQ)).mod(primeP);
+        BigInteger signature = signatureQ.add(h.multiply(primeQ));
+
+        // Проверка подписи открытой экспонентой (e мала, поэтому проверка дешевая)
+        if (!signature.modPow(publicExponent, modulus).equals(message)) {
+            throw new IllegalStateException("Обнаружен сбой при вычислении подписи");
+        }
+        return signature;
+    }
+
+    public BigInteger getModulus() {
+        return modulus;
+    }
+
+    public BigInteger getPublicExponent() {
+        return publicExponent;
+    }
+}
@@ -0,0 +1,112 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.spec.RSAPrivateCrtKeySpec;
+
+/**
+ * Двоичное хранилище ключа регистратора.
+ * Файл содержит сигнатуру формата и параметры закрытого ключа RSA
+ * (n, e, d, p, q, dP, dQ, qInv), каждый в виде [длина: 4 байта][big-endian байты].
+ * Ключ загружается напрямую в {@link RSAPrivateCrtKey} без разбора PEM и запуска openssl,
+ * поэтому повторный запуск регистратора использует тот же ключ и занимает миллисекунды.
+ */
+public final class RegistrarKeyStore {
+    // "RKS1" - сигнатура и версия формата
+    private static final int MAGIC = 0x524B5331;
+    private static final int COMPONENTS = 8;
+    // Ограничение длины компонента, чтобы поврежденный файл не вызвал выделение лишней памяти
+    private static final int MAX_COMPONENT_LENGTH = 2048;
+
+    private RegistrarKeyStore() {
+    }
+
+    /**
+     * Генерирует новую пару ключей RSA средствами JCA.
+     *
+     * @param keyBits длина модуля в битах
+     * @return закрытый ключ с параметрами CRT
+     */
+    public static RSAPrivateCrtKey generate(int keyBits) throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(keyBits);
+        return (RSAPrivateCrtKey) generator.generateKeyPair().getPrivate();
+    }
+
+    /**
+     * Загружает ключ из хранилища.
+     *
+     * @param path путь к файлу хранилища
+     * @return закрытый ключ с параметрами CRT
+     * @throws IOException если файл не читается или имеет неверный формат
+     */
+    public static RSAPrivateCrtKey load(Path path) throws IOException, GeneralSecurityException {
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (inputStream.readInt() != MAGIC) {
+                throw new IOException("Неверный формат хранилища ключа: " + path);
+            }
+            BigInteger[] components = new BigInteger[COMPONENTS];
+            for (int i = 0; i < COMPONENTS; i++) {
+                int length = inputStream.readInt();
+                if (length <= 0 || length > MAX_COMPONENT_LENGTH) {
+                    throw new IOException("Поврежденное хранилище ключа: " + path);
+                }
+                byte[] bytes = new byte[length];
+                inputStream.readFully(bytes);
+                components[i] = new BigInteger(1, bytes);
+            }
+
+            RSAPrivateCrtKeySpec keySpec = new RSAPrivateCrtKeySpec(components[0], components[1], components[2],
+                    components[3], components[4], components[5], components[6], components[7]);
+            return (RSAPrivateCrtKey) KeyFactory.getInstance("RSA").generatePrivate(keySpec);
+        }
+    }
+
+    /**
+     * Сохраняет ключ в хранилище. Файл записывается во временный файл и затем
+     * атомарно переименовывается, чтобы прерванная запись не испортила существующий ключ.
+     *
+     * @param path       путь к файлу хранилища
+     * @param privateKey закрытый ключ с параметрами CRT
+     */
+    public static void save(Path path, RSAPrivateCrtKey privateKey) throws IOException {
+        Path directory = path.toAbsolutePath().getParent();
+        Path temporary = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+        try {
+            try {
+                // Закрытый ключ доступен только владельцу
+                Files.setPosixFilePermissions(temporary, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                // Файловая система не поддерживает права POSIX
+            }
+
+            BigInteger[] components = {
+                    privateKey.getModulus(), privateKey.getPublicExponent(), privateKey.getPrivateExponent(),
+                    privateKey.getPrimeP(), privateKey.getPrimeQ(), privateKey.getPrimeExponentP(),
+                    privateKey.getPrimeExponentQ(), privateKey.getCrtCoefficient()
+            };
+            try (DataOutputStream outputStream = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                outputStream.writeInt(MAGIC);
+                for (BigInteger component : components) {
+                    byte[] bytes = component.toByteArray();
+                    outputStream.writeInt(bytes.length);
+                    outputStream.write(bytes);
+                }
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+}
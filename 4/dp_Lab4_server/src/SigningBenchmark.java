@@ -0,0 +1,85 @@
+import java.math.BigInteger;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.interfaces.RSAPrivateCrtKey;
+
+/**
+ * Сравнивает скорость слепой подписи полным возведением в степень d
+ * и подписи через CRT ({@link CrtSigner}) для ключей разной длины.
+ */
+public class SigningBenchmark {
+    private static final int[] KEY_SIZES = {2048, 3072, 4096};
+    private static final int MESSAGES = 64;
+    private static final long WARMUP_NANOS = 2_000_000_000L;
+    private static final long MEASURE_NANOS = 5_000_000_000L;
+
+    /**
+     * @param args длины ключей в битах (по умолчанию 2048, 3072, 4096)
+     */
+    public static void main(String[] args) throws NoSuchAlgorithmException {
+        int[] keySizes = KEY_SIZES;
+        if (args.length > 0) {
+            keySizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                keySizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        SecureRandom random = new SecureRandom();
+        for (int keyBits : keySizes) {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(keyBits, random);
+            RSAPrivateCrtKey privateKey = (RSAPrivateCrtKey) generator.generateKeyPair().getPrivate();
+            CrtSigner signer = new CrtSigner(privateKey);
+
+            BigInteger modulus = privateKey.getModulus();
+            BigInteger privateExponent = privateKey.getPrivateExponent();
+            BigInteger[] messages = new BigInteger[MESSAGES];
+            for (int i = 0; i < MESSAGES; i++) {
+                messages[i] = new BigInteger(keyBits - 1, random);
+            }
+
+            Runnable[] variants = {
+                    new Runnable() {
+                        private int i;
+
+                        @Override
+                        public void run() {
+                            messages[i++ % MESSAGES].modPow(privateExponent, modulus);
+                        }
+                    },
+                    new Runnable() {
+                        private int i;
+
+                        @Override
+                        public void run() {
+                            signer.sign(messages[i++ % MESSAGES]);
+                        }
+                    }
+            };
+
+            double plainRate = measure(variants[0]);
+            double crtRate = measure(variants[1]);
+            System.out.printf("RSA-%d: modPow(d, n) %.1f подп./с, CRT %.1f подп./с, ускорение %.2fx%n",
+                    keyBits, plainRate, crtRate, crtRate / plainRate);
+        }
+    }
+
+    private static double measure(Runnable operation) {
+        run(operation, WARMUP_NANOS);
+        long start = System.nanoTime();
+        long count = run(operation, MEASURE_NANOS);
+        return count / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static long run(Runnable operation, long durationNanos) {
+        long deadline = System.nanoTime() + durationNanos;
+        long count = 0;
+        while (System.nanoTime() < deadline) {
+            operation.run();
+            count++;
+        }
+        return count;
+    }
+}
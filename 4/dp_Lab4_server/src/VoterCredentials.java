@@ -0,0 +1,100 @@
+import dp.voting.VotingProtocol;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Выдача и проверка учетных данных избирателей.
+ * Токен избирателя - HMAC-SHA256 от его идентификатора на секретном ключе регистратора,
+ * поэтому регистратору не нужно хранить список токенов: проверка сводится к одному
+ * вычислению HMAC, а подделать токен без секретного ключа нельзя.
+ */
+public final class VoterCredentials {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int SECRET_LENGTH = 32;
+
+    private final SecretKeySpec secret;
+    private final ThreadLocal<Mac> mac;
+
+    private VoterCredentials(byte[] secretBytes) {
+        secret = new SecretKeySpec(secretBytes, ALGORITHM);
+        mac = ThreadLocal.withInitial(() -> {
+            try {
+                Mac instance = Mac.getInstance(ALGORITHM);
+                instance.init(secret);
+                return instance;
+            } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    /**
+     * Загружает секретный ключ или создает новый, если файла еще нет.
+     *
+     * @param path путь к файлу секретного ключа
+     * @return объект для выдачи и проверки учетных данных
+     */
+    public static VoterCredentials loadOrCreate(Path path) throws IOException, GeneralSecurityException {
+        if (Files.exists(path)) {
+            byte[] secretBytes = Files.readAllBytes(path);
+            if (secretBytes.length != SECRET_LENGTH) {
+                throw new IOException("Неверный формат секретного ключа избирателей: " + path);
+            }
+            return new VoterCredentials(secretBytes);
+        }
+
+        byte[] secretBytes = new byte[SECRET_LENGTH];
+        new SecureRandom().nextBytes(secretBytes);
+        Path directory = path.toAbsolutePath().getParent();
+        Path temporary = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+        try {
+            try {
+                // Секретный ключ доступен только владельцу
+                Files.setPosixFilePermissions(temporary, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                // Файловая система не поддерживает права POSIX
+            }
+            Files.write(temporary, secretBytes);
+            Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        return new VoterCredentials(secretBytes);
+    }
+
+    /**
+     * Выдает токен избирателю.
+     *
+     * @param voterId идентификатор избирателя
+     * @return токен длиной {@link VotingProtocol#TOKEN_LENGTH} байт
+     */
+    public byte[] issue(long voterId) {
+        Mac instance = mac.get();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            instance.update((byte) (voterId >>> shift));
+        }
+        return instance.doFinal();
+    }
+
+    /**
+     * Проверяет учетные данные избирателя.
+     *
+     * @param credential идентификатор и токен
+     * @return true, если токен выдан этим регистратором для этого идентификатора
+     */
+    public boolean verify(VotingProtocol.Credential credential) {
+        // Сравнение за постоянное время, чтобы время ответа не раскрывало совпадающие байты
+        return MessageDigest.isEqual(issue(credential.getVoterId()), credential.getToken());
+    }
+}
@@ -0,0 +1,280 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Реестр избирателей, уже получивших подпись бюллетеня.
+ * <p>
+ * Идентификаторы хранятся в таблице с открытой адресацией, отображенной в память из файла,
+ * поэтому проверка занимает микросекунды и переживает перезапуск регистратора.
+ * Таблица разбита на полосы с собственными блокировками: избиратель попадает в полосу
+ * по хешу идентификатора, и операции с разными полосами выполняются параллельно.
+ * <p>
+ * Формат файла: [сигнатура: 4][резерв: 4][количество ячеек: 8][ячейки по 8 байт].
+ * Пустая ячейка - 0, освобожденная - -1, занятая - идентификатор избирателя (больше 0).
+ * Освобожденная ячейка занимает место в цепочке проб, пока ее не займет новый избиратель;
+ * если полоса заполнена освобожденными ячейками, она перестраивается без них.
+ */
+public class VoterRegistry implements AutoCloseable {
+    // "VRG1" - сигнатура и версия формата
+    private static final int MAGIC = 0x56524731;
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_SIZE = 8;
+    private static final long EMPTY = 0;
+    private static final long RELEASED = -1;
+    private static final int STRIPES = 64;
+    private static final long MIN_SLOTS = STRIPES * 1024L;
+    // Ячейки одной полосы лежат подряд и отображаются одним буфером (не более 2 ГБ)
+    private static final long MAX_SLOTS_PER_STRIPE = (Integer.MAX_VALUE - HEADER_SIZE) / SLOT_SIZE;
+    // Полоса считается заполненной при загрузке 3/4, чтобы цепочки проб оставались короткими
+    private static final int LOAD_FACTOR_PERCENT = 75;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] stripes = new MappedByteBuffer[STRIPES];
+    private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+    // Занятые и освобожденные ячейки полос
+    private final int[] used = new int[STRIPES];
+    private final int[] released = new int[STRIPES];
+    // Номер последнего изменения полосы (под блокировкой полосы) и номер изменения, сброшенного на диск
+    private final long[] modified = new long[STRIPES];
+    private final long[] forced = new long[STRIPES];
+    private final Object[] forceLocks = new Object[STRIPES];
+    private final int stripeMask;
+    private final int stripeLimit;
+
+    /**
+     * Открывает реестр или создает новый.
+     *
+     * @param path     путь к файлу реестра
+     * @param capacity количество ячеек для нового реестра (округляется вверх до степени двойки);
+     *                 для существующего реестра используется сохраненное значение
+     * @throws IOException если файл не читается или имеет неверный формат
+     */
+    public VoterRegistry(Path path, long capacity) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        long slots = header.getLong(8);
+        if (header.getInt(0) == 0 && slots == 0) {
+            slots = Long.highestOneBit(Math.max(MIN_SLOTS, capacity) - 1) << 1;
+            header.putInt(0, MAGIC);
+            header.putLong(8, slots);
+            header.force();
+        } else if (header.getInt(0) != MAGIC) {
+            channel.close();
+            throw new IOException("Неверный формат реестра избирателей: " + path);
+        }
+
+        long slotsPerStripe = slots / STRIPES;
+        if (slotsPerStripe > MAX_SLOTS_PER_STRIPE) {
+            channel.close();
+            throw new IOException("Слишком большой реестр избирателей: " + slots);
+        }
+        stripeMask = (int) slotsPerStripe - 1;
+        stripeLimit = (int) (slotsPerStripe * LOAD_FACTOR_PERCENT / 100);
+
+        long stripeBytes = slotsPerStripe * SLOT_SIZE;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + i * stripeBytes, stripeBytes);
+            locks[i] = new ReentrantLock();
+            forceLocks[i] = new Object();
+            for (int slot = 0; slot <= stripeMask; slot++) {
+                long stored = stripes[i].getLong(slot * SLOT_SIZE);
+                if (stored == RELEASED) {
+                    released[i]++;
+                } else if (stored != EMPTY) {
+                    used[i]++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Атомарно отмечает избирателя как получившего подпись.
+     *
+     * @param voterId идентификатор избирателя (больше 0)
+     * @return true, если избиратель отмечен; false, если он уже был отмечен ранее
+     * @throws IllegalStateException если полоса реестра заполнена
+     */
+    public boolean markUsed(long voterId) {
+        checkId(voterId);
+        long hash = mix(voterId);
+        int stripe = (int) (hash >>> 58);
+        MappedByteBuffer table = stripes[stripe];
+        ReentrantLock lock = locks[stripe];
+        lock.lock();
+        try {
+            int slot = (int) hash & stripeMask;
+            // Первая освобожденная ячейка цепочки; избиратель ищется дальше, до пустой ячейки
+            int free = -1;
+            while (true) {
+                long stored = table.getLong(slot * SLOT_SIZE);
+                if (stored == voterId) {
+                    return false;
+                }
+                if (stored == RELEASED && free < 0) {
+                    free = slot;
+                }
+                if (stored == EMPTY) {
+                    break;
+                }
+                slot = (slot + 1) & stripeMask;
+            }
+            if (free >= 0) {
+                released[stripe]--;
+                slot = free;
+            } else if (used[stripe] + released[stripe] >= stripeLimit) {
+                if (released[stripe] == 0) {
+                    throw new IllegalStateException("Реестр избирателей заполнен");
+                }
+                rebuild(stripe);
+                return markUsed(voterId);
+            }
+            table.putLong(slot * SLOT_SIZE, voterId);
+            used[stripe]++;
+            modified[stripe]++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Снимает отметку, если подпись так и не была выдана (например, запрос оказался некорректным).
+     *
+     * @param voterId идентификатор избирателя
+     */
+    public void release(long voterId) {
+        checkId(voterId);
+        long hash = mix(voterId);
+        int stripe = (int) (hash >>> 58);
+        MappedByteBuffer table = stripes[stripe];
+        ReentrantLock lock = locks[stripe];
+        lock.lock();
+        try {
+            int slot = (int) hash & stripeMask;
+            while (true) {
+                long stored = table.getLong(slot * SLOT_SIZE);
+                if (stored == EMPTY) {
+                    return;
+                }
+                if (stored == voterId) {
+                    // Ячейка остается в цепочке проб, но больше не совпадает ни с одним избирателем
+                    table.putLong(slot * SLOT_SIZE, RELEASED);
+                    used[stripe]--;
+                    released[stripe]++;
+                    modified[stripe]++;
+                    return;
+                }
+                slot = (slot + 1) & stripeMask;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Проверяет, получал ли избиратель подпись.
+     *
+     * @param voterId идентификатор избирателя
+     * @return true, если избиратель отмечен
+     */
+    public boolean isUsed(long voterId) {
+        checkId(voterId);
+        long hash = mix(voterId);
+        int stripe = (int) (hash >>> 58);
+        MappedByteBuffer table = stripes[stripe];
+        ReentrantLock lock = locks[stripe];
+        lock.lock();
+        try {
+            int slot = (int) hash & stripeMask;
+            while (true) {
+                long stored = table.getLong(slot * SLOT_SIZE);
+                if (stored == voterId) {
+                    return true;
+                }
+                if (stored == EMPTY) {
+                    return false;
+                }
+                slot = (slot + 1) & stripeMask;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Сбрасывает изменения реестра на диск. Под блокировкой полосы запоминается только номер
+     * ее последнего изменения, а сброс выполняется без нее, поэтому отметки избирателей в полосе
+     * не ждут записи на диск. Полосы без изменений с прошлого сброса пропускаются.
+     */
+    public void flush() {
+        for (int i = 0; i < STRIPES; i++) {
+            long target = generation(i);
+            synchronized (forceLocks[i]) {
+                // Сброс, начатый другим потоком после нужного изменения, уже записал его
+                if (forced[i] < target) {
+                    long generation = generation(i);
+                    stripes[i].force();
+                    forced[i] = generation;
+                }
+            }
+        }
+    }
+
+    private long generation(int stripe) {
+        locks[stripe].lock();
+        try {
+            return modified[stripe];
+        } finally {
+            locks[stripe].unlock();
+        }
+    }
+
+    /**
+     * Перестраивает полосу без освобожденных ячеек. Вызывается под блокировкой полосы.
+     */
+    private void rebuild(int stripe) {
+        MappedByteBuffer table = stripes[stripe];
+        long[] voterIds = new long[used[stripe]];
+        int count = 0;
+        for (int slot = 0; slot <= stripeMask; slot++) {
+            long stored = table.getLong(slot * SLOT_SIZE);
+            if (stored != EMPTY && stored != RELEASED) {
+                voterIds[count++] = stored;
+            }
+            table.putLong(slot * SLOT_SIZE, EMPTY);
+        }
+        for (long voterId : voterIds) {
+            int slot = (int) mix(voterId) & stripeMask;
+            while (table.getLong(slot * SLOT_SIZE) != EMPTY) {
+                slot = (slot + 1) & stripeMask;
+            }
+            table.putLong(slot * SLOT_SIZE, voterId);
+        }
+        released[stripe] = 0;
+        modified[stripe]++;
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+
+    private static void checkId(long voterId) {
+        if (voterId <= 0) {
+            throw new IllegalArgumentException("Некорректный идентификатор избирателя: " + voterId);
+        }
+    }
+
+    private static long mix(long value) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 31;
+        h *= 0xBF58476D1CE4E5B9L;
+        return h ^ (h >>> 29);
+    }
+}
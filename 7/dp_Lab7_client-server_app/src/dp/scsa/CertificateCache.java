@@ -0,0 +1,163 @@
+package dp.scsa;
+
+import java.io.ByteArrayInputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.cert.CertPathValidator;
+import java.security.cert.CertificateFactory;
+import java.security.cert.PKIXParameters;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Кэш разобранных сертификатов, ключ - отпечаток SHA-256 сертификата в DER.
+ * Хранит сертификат, его открытый ключ и результат проверки цепочки (CertPathValidator),
+ * поэтому повторная проверка сертификата того же отправителя не разбирает его заново
+ * и не запускает openssl. Количество записей ограничено, вытесняются давно не использованные.
+ */
+public class CertificateCache {
+    private final Map<String, CachedCertificate> entries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Конструктор класса CertificateCache.
+     *
+     * @param capacity наибольшее количество сертификатов в кэше
+     */
+    public CertificateCache(int capacity) {
+        entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedCertificate> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Возвращает открытый ключ сертификата.
+     *
+     * @param cert сертификат в DER
+     * @return открытый ключ
+     * @throws GeneralSecurityException если сертификат имеет неверный формат
+     */
+    public PublicKey getPublicKey(byte[] cert) throws GeneralSecurityException {
+        return entry(cert).publicKey;
+    }
+
+    /**
+     * Возвращает серийный номер сертификата (младшие 64 бита, см. {@link RevocationList}).
+     *
+     * @param cert сертификат в DER
+     * @return серийный номер
+     * @throws GeneralSecurityException если сертификат имеет неверный формат
+     */
+    public long getSerial(byte[] cert) throws GeneralSecurityException {
+        return entry(cert).serial;
+    }
+
+    /**
+     * Проверяет цепочку: листовой сертификат выдан промежуточным УЦ, промежуточный - корневым.
+     * Успешный результат запоминается до истечения срока действия цепочки.
+     *
+     * @param leafCert         листовой сертификат в DER
+     * @param intermediateCert промежуточный сертификат в DER
+     * @param rootCert         доверенный корневой сертификат в DER
+     * @throws GeneralSecurityException если цепочка недействительна
+     */
+    public void verifyChain(byte[] leafCert, byte[] intermediateCert, byte[] rootCert)
+            throws GeneralSecurityException {
+        CachedCertificate leaf = entry(leafCert);
+        CachedCertificate intermediate = entry(intermediateCert);
+        CachedCertificate root = entry(rootCert);
+        String chain = intermediate.fingerprint + root.fingerprint;
+        long now = System.currentTimeMillis();
+        synchronized (leaf) {
+            if (chain.equals(leaf.verifiedChain) && now < leaf.verifiedUntil) {
+                return;
+            }
+        }
+
+        PKIXParameters parameters = new PKIXParameters(Set.of(new TrustAnchor(root.cert, null)));
+        // УЦ не публикует CRL X.509: отзыв проверяется по списку отзыва клиента (RevocationList)
+        parameters.setRevocationEnabled(false);
+        CertPathValidator.getInstance("PKIX").validate(
+                CertificateFactory.getInstance("X.509").generateCertPath(List.of(leaf.cert, intermediate.cert)),
+                parameters);
+
+        long until = Math.min(leaf.cert.getNotAfter().getTime(),
+                Math.min(intermediate.cert.getNotAfter().getTime(), root.cert.getNotAfter().getTime()));
+        synchronized (leaf) {
+            leaf.verifiedChain = chain;
+            leaf.verifiedUntil = until;
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public String toString() {
+        int size;
+        synchronized (entries) {
+            size = entries.size();
+        }
+        return String.format("кэш сертификатов: %d записей, попаданий %d из %d",
+                size, getHits(), getHits() + getMisses());
+    }
+
+    /**
+     * Возвращает запись кэша для сертификата, разбирая его при первом обращении.
+     */
+    private CachedCertificate entry(byte[] cert) throws GeneralSecurityException {
+        String fingerprint = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(cert));
+        synchronized (entries) {
+            CachedCertificate entry = entries.get(fingerprint);
+            if (entry != null) {
+                hits.increment();
+                return entry;
+            }
+        }
+
+        misses.increment();
+        X509Certificate parsed = (X509Certificate) CertificateFactory.getInstance("X.509")
+                .generateCertificate(new ByteArrayInputStream(cert));
+        CachedCertificate entry = new CachedCertificate(fingerprint, parsed);
+        synchronized (entries) {
+            CachedCertificate existing = entries.putIfAbsent(fingerprint, entry);
+            return existing != null ? existing : entry;
+        }
+    }
+
+    /**
+     * Запись кэша: разобранный сертификат, открытый ключ, серийный номер и последняя успешно проверенная цепочка.
+     */
+    private static final class CachedCertificate {
+        private final String fingerprint;
+        private final X509Certificate cert;
+        private final PublicKey publicKey;
+        private final long serial;
+        // Отпечатки промежуточного и корневого сертификатов проверенной цепочки
+        private String verifiedChain;
+        private long verifiedUntil;
+
+        private CachedCertificate(String fingerprint, X509Certificate cert) {
+            this.fingerprint = fingerprint;
+            this.cert = cert;
+            this.publicKey = cert.getPublicKey();
+            this.serial = cert.getSerialNumber().longValue();
+        }
+    }
+}
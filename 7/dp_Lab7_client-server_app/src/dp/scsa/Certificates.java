@@ -0,0 +1,286 @@
+package dp.scsa;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.spec.X509EncodedKeySpec;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Выпуск ключей, запросов на сертификат (PKCS#10) и сертификатов X.509 средствами JCA.
+ * Запросы и сертификаты передаются в памяти в виде массивов DER, без запуска openssl
+ * и промежуточных файлов, поэтому выдача сертификата занимает около миллисекунды.
+ */
+public final class Certificates {
+    private static final String KEY_ALGORITHM = "RSA";
+    // Длина ключа RSA по умолчанию, как у openssl genpkey
+    private static final int KEY_BITS = 2048;
+    private static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+    private static final String SHA256_WITH_RSA = "1.2.840.113549.1.1.11";
+    private static final String SHA512_WITH_RSA = "1.2.840.113549.1.1.13";
+    private static final String COMMON_NAME = "2.5.4.3";
+    private static final String BASIC_CONSTRAINTS = "2.5.29.19";
+    private static final String EXTENSION_REQUEST = "1.2.840.113549.1.9.14";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private Certificates() {
+    }
+
+    /**
+     * Генерирует пару ключей RSA.
+     *
+     * @return пара ключей
+     */
+    public static KeyPair generateKeyPair() throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance(KEY_ALGORITHM);
+        generator.initialize(KEY_BITS);
+        return generator.generateKeyPair();
+    }
+
+    /**
+     * Создает запрос на сертификат (CSR) с расширением basicConstraints
+     * (аналог openssl req -new -subj /CN=... -addext basicConstraints=critical,CA:...).
+     *
+     * @param keyPair    ключевая пара владельца
+     * @param commonName имя владельца (CN)
+     * @param ca         является ли владелец удостоверяющим центром
+     * @return запрос на сертификат в DER
+     */
+    public static byte[] createCSR(KeyPair keyPair, String commonName, boolean ca) throws GeneralSecurityException {
+        byte[] basicConstraints = ca ? Der.sequence(Der.bool(true)) : Der.sequence();
+        byte[] extensions = Der.sequence(
+                Der.sequence(Der.oid(BASIC_CONSTRAINTS), Der.bool(true), Der.octetString(basicConstraints)));
+        byte[] attributes = Der.context(0,
+                Der.sequence(Der.oid(EXTENSION_REQUEST), Der.set(extensions)));
+
+        byte[] requestInfo = Der.sequence(
+                Der.integer(BigInteger.ZERO),
+                name(commonName),
+                keyPair.getPublic().getEncoded(),
+                attributes);
+        return signed(requestInfo, keyPair.getPrivate());
+    }
+
+    /**
+     * Выпускает самоподписанный сертификат по запросу (корневой УЦ).
+     *
+     * @param csr  запрос на сертификат в DER
+     * @param key  закрытый ключ, соответствующий ключу запроса
+     * @param days срок действия в днях
+     * @return сертификат в DER
+     */
+    public static byte[] selfSign(byte[] csr, PrivateKey key, int days) throws IOException, GeneralSecurityException {
+        Request request = parseCSR(csr);
+        return build(request, request.subject, key, days);
+    }
+
+    /**
+     * Выпускает сертификат по запросу, подписанный удостоверяющим центром.
+     * Расширения из запроса копируются в сертификат (как openssl x509 -copy_extensions copyall).
+     *
+     * @param csr        запрос на сертификат в DER
+     * @param issuerCert сертификат удостоверяющего центра в DER
+     * @param issuerKey  закрытый ключ удостоверяющего центра
+     * @param days       срок действия в днях
+     * @return сертификат в DER
+     * @throws IOException              если запрос или сертификат УЦ имеют неверный формат
+     * @throws GeneralSecurityException если подпись запроса неверна
+     */
+    public static byte[] issue(byte[] csr, byte[] issuerCert, PrivateKey issuerKey, int days)
+            throws IOException, GeneralSecurityException {
+        return build(parseCSR(csr), subjectOf(issuerCert), issuerKey, days);
+    }
+
+    /**
+     * Выпускает сертификат по запросу, сделанному на указанное имя (листовой сертификат клиента):
+     * имя в сертификате связывает ключ с клиентом, например при подключении к серверу пересылки.
+     *
+     * @param csr        запрос на сертификат в DER
+     * @param commonName имя клиента, которое должно стоять в запросе (CN)
+     * @param issuerCert сертификат удостоверяющего центра в DER
+     * @param issuerKey  закрытый ключ удостоверяющего центра
+     * @param days       срок действия в днях
+     * @return сертификат в DER
+     * @throws IOException              если запрос или сертификат УЦ имеют неверный формат
+     * @throws GeneralSecurityException если подпись запроса неверна или запрос сделан на другое имя
+     */
+    public static byte[] issue(byte[] csr, String commonName, byte[] issuerCert, PrivateKey issuerKey, int days)
+            throws IOException, GeneralSecurityException {
+        Request request = parseCSR(csr);
+        if (!Arrays.equals(request.subject, name(commonName))) {
+            throw new GeneralSecurityException("Запрос на сертификат сделан не на имя " + commonName);
+        }
+        return build(request, subjectOf(issuerCert), issuerKey, days);
+    }
+
+    /**
+     * Проверяет, что сертификат выдан на указанное имя.
+     *
+     * @param cert       сертификат в DER
+     * @param commonName имя владельца (CN)
+     * @return true, если имя владельца сертификата совпадает
+     * @throws IOException если сертификат имеет неверный формат
+     */
+    public static boolean hasCommonName(byte[] cert, String commonName) throws IOException {
+        return Arrays.equals(subjectOf(cert), name(commonName));
+    }
+
+    /**
+     * Кодирует данные DER в PEM.
+     *
+     * @param type тип содержимого, например "CERTIFICATE"
+     * @param der  данные DER
+     * @return текст PEM
+     */
+    public static String toPEM(String type, byte[] der) {
+        String body = Base64.getMimeEncoder(64, "\n".getBytes(StandardCharsets.US_ASCII)).encodeToString(der);
+        return "-----BEGIN " + type + "-----\n" + body + "\n-----END " + type + "-----\n";
+    }
+
+    /**
+     * Декодирует текст PEM с одним объектом в DER.
+     *
+     * @param pem текст PEM
+     * @return данные DER
+     */
+    public static byte[] fromPEM(String pem) {
+        StringBuilder body = new StringBuilder();
+        for (String line : pem.split("\\R")) {
+            if (!line.startsWith("-----")) {
+                body.append(line.trim());
+            }
+        }
+        return Base64.getDecoder().decode(body.toString());
+    }
+
+    private static byte[] build(Request request, byte[] issuer, PrivateKey issuerKey, int days)
+            throws GeneralSecurityException {
+        Instant notBefore = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+        Instant notAfter = notBefore.plus(Duration.ofDays(days));
+        BigInteger serial = new BigInteger(64, RANDOM).add(BigInteger.ONE);
+
+        byte[] tbs = Der.sequence(
+                Der.context(0, Der.integer(BigInteger.TWO)),
+                Der.integer(serial),
+                signatureAlgorithm(),
+                issuer,
+                Der.sequence(Der.time(notBefore), Der.time(notAfter)),
+                request.subject,
+                request.publicKeyInfo,
+                request.extensions == null ? new byte[0] : Der.context(3, request.extensions));
+        return signed(tbs, issuerKey);
+    }
+
+    /**
+     * Подписывает структуру и оборачивает ее в SEQUENCE {данные, алгоритм, подпись}
+     * (общий вид сертификата и запроса на сертификат).
+     */
+    private static byte[] signed(byte[] content, PrivateKey key) throws GeneralSecurityException {
+        Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+        signature.initSign(key);
+        signature.update(content);
+        return Der.sequence(content, signatureAlgorithm(), Der.bitString(signature.sign()));
+    }
+
+    private static byte[] signatureAlgorithm() {
+        return Der.sequence(Der.oid(SHA256_WITH_RSA), Der.nullValue());
+    }
+
+    private static byte[] name(String commonName) {
+        return Der.sequence(Der.set(Der.sequence(Der.oid(COMMON_NAME), Der.utf8String(commonName))));
+    }
+
+    /**
+     * Разбирает запрос на сертификат и проверяет его подпись ключом из самого запроса.
+     */
+    private static Request parseCSR(byte[] csr) throws IOException, GeneralSecurityException {
+        List<Der.Element> request = Der.decode(csr).children();
+        if (request.size() != 3) {
+            throw new IOException("Неверный формат запроса на сертификат");
+        }
+        Der.Element info = request.get(0);
+        List<Der.Element> fields = info.children();
+        if (fields.size() < 3) {
+            throw new IOException("Неверный формат запроса на сертификат");
+        }
+
+        byte[] subject = fields.get(1).encoded();
+        byte[] publicKeyInfo = fields.get(2).encoded();
+        PublicKey publicKey = KeyFactory.getInstance(KEY_ALGORITHM).generatePublic(new X509EncodedKeySpec(publicKeyInfo));
+
+        String algorithm = switch (request.get(1).children().get(0).oidValue()) {
+            case SHA256_WITH_RSA -> "SHA256withRSA";
+            case SHA512_WITH_RSA -> "SHA512withRSA";
+            default -> throw new IOException("Неподдерживаемый алгоритм подписи запроса на сертификат");
+        };
+        Signature signature = Signature.getInstance(algorithm);
+        signature.initVerify(publicKey);
+        signature.update(info.encoded());
+        if (!signature.verify(request.get(2).bitStringValue())) {
+            throw new SignatureException("Подпись запроса на сертификат неверна");
+        }
+
+        byte[] extensions = null;
+        if (fields.size() > 3 && fields.get(3).tag() == (Der.CONTEXT_CONSTRUCTED | 0)) {
+            for (Der.Element attribute : fields.get(3).children()) {
+                List<Der.Element> parts = attribute.children();
+                if (parts.get(0).oidValue().equals(EXTENSION_REQUEST)) {
+                    extensions = parts.get(1).children().get(0).encoded();
+                }
+            }
+        }
+        return new Request(subject, publicKeyInfo, extensions);
+    }
+
+    /**
+     * Возвращает серийный номер сертификата.
+     *
+     * @param cert сертификат в DER
+     * @return серийный номер
+     * @throws IOException если сертификат имеет неверный формат
+     */
+    public static BigInteger serialOf(byte[] cert) throws IOException {
+        List<Der.Element> tbs = Der.decode(cert).children().get(0).children();
+        int offset = tbs.get(0).tag() == (Der.CONTEXT_CONSTRUCTED | 0) ? 1 : 0;
+        return tbs.get(offset).integerValue();
+    }
+
+    /**
+     * Возвращает имя владельца сертификата в DER.
+     */
+    private static byte[] subjectOf(byte[] cert) throws IOException {
+        List<Der.Element> tbs = Der.decode(cert).children().get(0).children();
+        // Поле версии [0] необязательно, за ним следуют serial, signature, issuer, validity, subject
+        int offset = tbs.get(0).tag() == (Der.CONTEXT_CONSTRUCTED | 0) ? 1 : 0;
+        return tbs.get(offset + 4).encoded();
+    }
+
+    /**
+     * Разобранный запрос на сертификат: имя владельца, открытый ключ и запрошенные расширения в DER.
+     */
+    private static final class Request {
+        private final byte[] subject;
+        private final byte[] publicKeyInfo;
+        private final byte[] extensions;
+
+        private Request(byte[] subject, byte[] publicKeyInfo, byte[] extensions) {
+            this.subject = subject;
+            this.publicKeyInfo = publicKeyInfo;
+            this.extensions = extensions;
+        }
+    }
+}
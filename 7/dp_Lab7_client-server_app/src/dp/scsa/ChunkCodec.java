@@ -0,0 +1,312 @@
+package dp.scsa;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Сжатие и распаковка кадров одного потока передачи. Не потокобезопасен:
+ * у каждого потока свой экземпляр.
+ */
+final class ChunkCodec implements AutoCloseable {
+    // Размер образца из начала файла для оценки сжимаемости
+    private static final int SAMPLE_SIZE = 16 * 1024;
+    // Сжатие отключается, если образец сжимается хуже, чем до этой доли исходного размера
+    private static final double MAX_SAMPLE_RATIO = 0.9;
+    // Форматы, которые уже сжаты (архивы, изображения, документы Office Open XML)
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of("zip", "gz", "bz2", "xz", "7z", "rar",
+            "jpg", "jpeg", "png", "gif", "webp", "mp3", "mp4", "mkv", "docx", "xlsx", "pptx", "odt", "ods");
+
+    // Параметры формата блока LZ4
+    private static final int HASH_BITS = 14;
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MATCH_FIND_LIMIT = 12;
+    private static final int MAX_OFFSET = 65535;
+
+    private final int level;
+    private Deflater deflater;
+    private Inflater inflater;
+    private int[] hashTable;
+
+    /**
+     * @param level уровень Deflate (для остальных способов не используется)
+     */
+    ChunkCodec(int level) {
+        this.level = level;
+    }
+
+    /**
+     * Выбирает способ сжатия файла: уже сжатые форматы и файлы, образец которых
+     * сжимается плохо, передаются без сжатия.
+     *
+     * @param file      файл
+     * @param requested запрошенный способ сжатия
+     * @param level     уровень Deflate
+     * @return способ сжатия для потока
+     */
+    static Compression choose(Path file, Compression requested, int level) throws IOException {
+        if (requested == Compression.NONE) {
+            return Compression.NONE;
+        }
+        String name = file.getFileName().toString();
+        String extension = name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+        if (COMPRESSED_EXTENSIONS.contains(extension)) {
+            return Compression.NONE;
+        }
+
+        byte[] sample = new byte[SAMPLE_SIZE];
+        int length;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.wrap(sample);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Чтение до заполнения образца или конца файла
+            }
+            length = buffer.position();
+        }
+        try (ChunkCodec codec = new ChunkCodec(level)) {
+            int compressed = codec.compress(requested, sample, length, new byte[length]);
+            return compressed >= 0 && compressed <= length * MAX_SAMPLE_RATIO ? requested : Compression.NONE;
+        }
+    }
+
+    /**
+     * Сжимает кадр.
+     *
+     * @param compression способ сжатия
+     * @param source      исходные данные
+     * @param length      длина исходных данных
+     * @param target      буфер для сжатых данных
+     * @return длина сжатых данных или -1, если сжатие не уменьшает кадр
+     */
+    int compress(Compression compression, byte[] source, int length, byte[] target) {
+        int capacity = Math.min(target.length, length - 1);
+        if (capacity <= 0) {
+            return -1;
+        }
+        return switch (compression) {
+            case FAST -> compressFast(source, length, target, capacity);
+            case DEFLATE -> compressDeflate(source, length, target, capacity);
+            default -> -1;
+        };
+    }
+
+    /**
+     * Распаковывает кадр.
+     *
+     * @param compression способ сжатия кадра
+     * @param source      сжатые данные
+     * @param offset      начало сжатых данных
+     * @param length      длина сжатых данных
+     * @param target      буфер для исходных данных
+     * @param expected    длина исходных данных
+     * @throws IOException если данные повреждены
+     */
+    void decompress(Compression compression, byte[] source, int offset, int length, byte[] target, int expected)
+            throws IOException {
+        switch (compression) {
+            case FAST -> decompressFast(source, offset, length, target, expected);
+            case DEFLATE -> {
+                if (inflater == null) {
+                    inflater = new Inflater(true);
+                }
+                inflater.reset();
+                inflater.setInput(source, offset, length);
+                try {
+                    if (inflater.inflate(target, 0, expected) != expected || !inflater.finished()) {
+                        throw new IOException("Неверная длина распакованного кадра");
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("Поврежденный сжатый кадр", e);
+                }
+            }
+            default -> throw new IOException("Кадр не сжат");
+        }
+    }
+
+    @Override
+    public void close() {
+        if (deflater != null) {
+            deflater.end();
+        }
+        if (inflater != null) {
+            inflater.end();
+        }
+    }
+
+    private int compressDeflate(byte[] source, int length, byte[] target, int capacity) {
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        }
+        deflater.reset();
+        deflater.setInput(source, 0, length);
+        deflater.finish();
+        int compressed = deflater.deflate(target, 0, capacity);
+        return deflater.finished() ? compressed : -1;
+    }
+
+    /**
+     * Сжимает данные в формате блока LZ4: последовательности
+     * [маркер: длина литералов и совпадения][литералы][смещение: 2][продолжение длины совпадения].
+     */
+    private int compressFast(byte[] source, int length, byte[] target, int capacity) {
+        if (hashTable == null) {
+            hashTable = new int[1 << HASH_BITS];
+        }
+        // В таблице хранятся позиции + 1, 0 - пустая ячейка
+        Arrays.fill(hashTable, 0);
+        int anchor = 0;
+        int position = 0;
+        int out = 0;
+
+        while (position < length - MATCH_FIND_LIMIT) {
+            int sequence = readInt(source, position);
+            int hash = (sequence * -1640531535) >>> (32 - HASH_BITS);
+            int reference = hashTable[hash] - 1;
+            hashTable[hash] = position + 1;
+            if (reference < 0 || position - reference > MAX_OFFSET || readInt(source, reference) != sequence) {
+                position++;
+                continue;
+            }
+
+            int matchLength = MIN_MATCH;
+            while (position + matchLength < length - LAST_LITERALS
+                    && source[reference + matchLength] == source[position + matchLength]) {
+                matchLength++;
+            }
+            out = writeSequence(source, anchor, position - anchor, position - reference, matchLength,
+                    target, out, capacity);
+            if (out < 0) {
+                return -1;
+            }
+            position += matchLength;
+            anchor = position;
+        }
+        return writeSequence(source, anchor, length - anchor, 0, 0, target, out, capacity);
+    }
+
+    /**
+     * Записывает последовательность; matchLength 0 - последняя последовательность из одних литералов.
+     *
+     * @return позиция после записанной последовательности или -1, если буфер переполнен
+     */
+    private static int writeSequence(byte[] source, int literalStart, int literalLength, int offset,
+                                     int matchLength, byte[] target, int out, int capacity) {
+        int matchCode = matchLength == 0 ? 0 : matchLength - MIN_MATCH;
+        if (out >= capacity) {
+            return -1;
+        }
+        target[out++] = (byte) ((Math.min(literalLength, 15) << 4) | Math.min(matchCode, 15));
+        out = writeLength(literalLength, target, out, capacity);
+        if (out < 0 || literalLength > capacity - out) {
+            return -1;
+        }
+        System.arraycopy(source, literalStart, target, out, literalLength);
+        out += literalLength;
+        if (matchLength == 0) {
+            return out;
+        }
+        if (capacity - out < 2) {
+            return -1;
+        }
+        target[out++] = (byte) offset;
+        target[out++] = (byte) (offset >>> 8);
+        return writeLength(matchCode, target, out, capacity);
+    }
+
+    /**
+     * Записывает продолжение длины, если она не уместилась в 4 бита маркера.
+     */
+    private static int writeLength(int length, byte[] target, int out, int capacity) {
+        if (length < 15) {
+            return out;
+        }
+        int remaining = length - 15;
+        while (true) {
+            if (out >= capacity) {
+                return -1;
+            }
+            if (remaining < 255) {
+                target[out++] = (byte) remaining;
+                return out;
+            }
+            target[out++] = (byte) 255;
+            remaining -= 255;
+        }
+    }
+
+    private static void decompressFast(byte[] source, int offset, int length, byte[] target, int expected)
+            throws IOException {
+        int in = offset;
+        int end = offset + length;
+        int out = 0;
+        while (true) {
+            if (in >= end) {
+                throw new IOException("Поврежденный сжатый кадр");
+            }
+            int token = source[in++] & 0xFF;
+            int literalLength = token >>> 4;
+            if (literalLength == 15) {
+                int value;
+                do {
+                    if (in >= end || literalLength > expected) {
+                        throw new IOException("Поврежденный сжатый кадр");
+                    }
+                    value = source[in++] & 0xFF;
+                    literalLength += value;
+                } while (value == 255);
+            }
+            if (literalLength > end - in || literalLength > expected - out) {
+                throw new IOException("Поврежденный сжатый кадр");
+            }
+            System.arraycopy(source, in, target, out, literalLength);
+            in += literalLength;
+            out += literalLength;
+            if (in == end) {
+                break;
+            }
+
+            if (end - in < 2) {
+                throw new IOException("Поврежденный сжатый кадр");
+            }
+            int matchOffset = (source[in] & 0xFF) | (source[in + 1] & 0xFF) << 8;
+            in += 2;
+            int matchLength = token & 15;
+            if (matchLength == 15) {
+                int value;
+                do {
+                    if (in >= end || matchLength > expected) {
+                        throw new IOException("Поврежденный сжатый кадр");
+                    }
+                    value = source[in++] & 0xFF;
+                    matchLength += value;
+                } while (value == 255);
+            }
+            matchLength += MIN_MATCH;
+            if (matchOffset == 0 || matchOffset > out || matchLength > expected - out) {
+                throw new IOException("Поврежденный сжатый кадр");
+            }
+            // Совпадение может перекрывать копируемые данные, поэтому копирование побайтовое
+            for (int i = 0; i < matchLength; i++) {
+                target[out + i] = target[out - matchOffset + i];
+            }
+            out += matchLength;
+        }
+        if (out != expected) {
+            throw new IOException("Неверная длина распакованного кадра");
+        }
+    }
+
+    private static int readInt(byte[] data, int position) {
+        return (data[position] & 0xFF) | (data[position + 1] & 0xFF) << 8
+                | (data[position + 2] & 0xFF) << 16 | (data[position + 3] & 0xFF) << 24;
+    }
+}
@@ -2,8 +2,22 @@ package dp.scsa;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.Signature;
 import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.zip.Deflater;
 
 import static dp.scsa.Tools.*;
 
@@ -14,46 +28,121 @@ import static dp.scsa.Tools.*;
  * Также верифицирует полученные сертификаты.
  */
 public class Client {
-    private static String rootCert;
-    private static String intermediateCert;
-    private static String leafCert;
-    private static String leafCSR;
+    private static byte[] rootCert;
+    private static byte[] intermediateCert;
+    private static byte[] leafCert;
+    private static KeyPair leafKeyPair;
+    private static byte[] leafCSR;
     private static String clientLogin;
-    private static String clientMessage;
+    private static String[] clientMessages;
+    private static final String SIGNATURE_ALGORITHM = "SHA512withRSA";
+    private static final String LEAF_CERT_FILE = "leaf_cert.pem";
+    private static Signature[] documentSignatures;
+    private static Compression compression = Compression.FAST;
+    private static int compressionLevel = Deflater.BEST_SPEED;
+    private static boolean merkleSigning;
+    // Кэш разобранных сертификатов и результатов проверки цепочек отправителей
+    private static final int CERT_CACHE_CAPACITY = 256;
+    private static final CertificateCache certificateCache = new CertificateCache(CERT_CACHE_CAPACITY);
+    // Пул ключей начинает генерацию при создании клиента, пока устанавливается соединение с сервером
+    private static final int KEY_POOL_WATERMARK = 1;
+    private static final int KEY_POOL_THREADS = 1;
+    private static KeyPairPool keyPairPool;
+    // Сохраненный сертификат обновляется, если до его истечения осталось меньше этого срока
+    private static final Duration RENEW_BEFORE = Duration.ofDays(30);
+    private static final CredentialStore credentialStore = new CredentialStore(Paths.get("credentials"));
+    // Копия списка отзыва УЦ: проверка отзыва не обращается к серверу, обновление загружает только дельту
+    private static final Path REVOCATIONS_FILE = Paths.get("revocations.bin");
+    private static final String REVOCATION_SIGNATURE_ALGORITHM = "SHA256withRSA";
+    private static final RevocationList revocations = RevocationList.load(REVOCATIONS_FILE);
+    private static CredentialStore.Credential storedCredential;
 
     /**
-     * Конструктор класса Client.
+     * Конструктор класса Client. Загружает сохраненные учетные данные клиента;
+     * если их нет, ключевая пара генерируется в фоне и забирается из пула
+     * при первом запросе сертификата.
      *
      * @param name имя клиента
      * @throws IOException если возникают проблемы при генерации ключевой пары и запроса на сертификат
      */
     public Client(String name) throws IOException {
         clientLogin = name;
-        generateLeafKeyPair();
-        generateLeafCSR();
+        storedCredential = credentialStore.load(name);
+        if (storedCredential == null) {
+            getKeyPairPool();
+        }
     }
 
     /**
-     * Отправляет запрос на сертификат (CSR) для листового сертификата на сервер.
+     * Возвращает пул ключевых пар клиента (например, для вывода метрик).
      *
-     * @param socket объект Socket для обмена данными с сервером
+     * @return пул ключевых пар
+     */
+    public static synchronized KeyPairPool getKeyPairPool() {
+        if (keyPairPool == null) {
+            keyPairPool = new KeyPairPool(KEY_POOL_WATERMARK, KEY_POOL_THREADS);
+        }
+        return keyPairPool;
+    }
+
+    /**
+     * Отправляет запрос на листовой сертификат на сервер.
+     *
+     * @param socket  объект Socket для обмена данными с сервером
+     * @param request {CSR в DER} или {CSR, подтверждение {@link NameProof#RENEWAL}};
+     *                пустой массив, если новый сертификат не нужен
      * @throws IOException если возникают проблемы при отправке данных
      */
-    private static void sendLeafCSR(Socket socket) throws IOException {
+    private static void sendLeafRequest(Socket socket, byte[][] request) throws IOException {
         ObjectOutputStream outputStream = new ObjectOutputStream(socket.getOutputStream());
-        outputStream.writeObject(leafCSR);
+        outputStream.writeObject(request);
     }
 
     /**
-     * Получает набор сертификатов для верификации от сервера.
+     * Получает текущую цепочку УЦ сервера.
      *
      * @param socket объект Socket для обмена данными с сервером
+     * @return корневой и промежуточный сертификаты в DER
      * @throws IOException            если возникают проблемы при получении данных
      * @throws ClassNotFoundException если класс сертификатов не найден
      */
+    private static byte[][] receiveChain(Socket socket) throws IOException, ClassNotFoundException {
+        ObjectInputStream inputStream = new ObjectInputStream(socket.getInputStream());
+        return (byte[][]) inputStream.readObject();
+    }
+
+    /**
+     * Возвращает кэш сертификатов клиента (например, для вывода метрик).
+     *
+     * @return кэш сертификатов
+     */
+    public static CertificateCache getCertificateCache() {
+        return certificateCache;
+    }
+
+    /**
+     * Возвращает копию списка отзыва клиента (например, для вывода метрик).
+     *
+     * @return список отзыва
+     */
+    public static RevocationList getRevocationList() {
+        return revocations;
+    }
+
+    /**
+     * Получает набор сертификатов для верификации от сервера.
+     *
+     * @param socket объект Socket для обмена данными с сервером
+     * @throws IOException            если возникают проблемы при получении данных или сервер отказал
+     * @throws ClassNotFoundException если класс сертификатов не найден
+     */
     private static void receiveCertPack(Socket socket) throws IOException, ClassNotFoundException {
         ObjectInputStream inputStream = new ObjectInputStream(socket.getInputStream());
-        String[] certs = (String[]) inputStream.readObject();
+        Object response = inputStream.readObject();
+        if (response instanceof String failure) {
+            throw new IOException("Сервер отказал в выдаче сертификата: " + failure);
+        }
+        byte[][] certs = (byte[][]) response;
         rootCert = certs[0];
         intermediateCert = certs[1];
         leafCert = certs[2];
@@ -64,28 +153,110 @@ public class Client {
     }
 
     /**
-     * Устанавливает сообщение и хэш-значение для клиентского сообщения.
+     * Устанавливает документы для отправки; несколько документов передаются одновременно.
      *
-     * @param filePath путь к файлу сообщения
+     * @param filePaths пути к файлам документов
      */
-    public void setMessage(String filePath) {
-        clientMessage = filePath;
+    public void setMessage(String... filePaths) {
+        clientMessages = filePaths;
     }
 
     /**
      * Создает листовой сертификат и верифицирует его.
+     * Сервер запрашивается только если сохраненного сертификата нет, он близок к истечению,
+     * отозван (по сохраненной копии списка отзыва), выдан на другое имя или цепочка УЦ сервера
+     * изменилась; иначе используется сохраненный сертификат.
      *
      * @param socket сокет для обмена данными
      * @throws IOException            если возникают ошибки ввода-вывода при взаимодействии с сокетом
      * @throws ClassNotFoundException если класс не найден при десериализации
      */
     public void createCertificate(Socket socket) throws IOException, ClassNotFoundException {
-        sendLeafCSR(socket);
-        receiveCertPack(socket);
+        byte[][] chain = receiveChain(socket);
+        if (storedCredential != null && storedCredential.isReusable(chain[0], chain[1], RENEW_BEFORE)
+                && !isRevoked(storedCredential.getLeafCert())
+                && Certificates.hasCommonName(storedCredential.getLeafCert(), clientLogin)) {
+            sendLeafRequest(socket, new byte[0][]);
+            rootCert = storedCredential.getRootCert();
+            intermediateCert = storedCredential.getIntermediateCert();
+            leafCert = storedCredential.getLeafCert();
+            writePrivateKey(storedCredential.getPrivateKey());
+            System.out.println("Используется сохраненный сертификат клиента " + clientLogin);
+        } else {
+            if (leafCSR == null) {
+                generateLeafKeyPair();
+                generateLeafCSR();
+            }
+            sendLeafRequest(socket, leafRequest());
+            receiveCertPack(socket);
+            storedCredential = new CredentialStore.Credential(leafKeyPair.getPrivate(), leafCert,
+                    intermediateCert, rootCert);
+            credentialStore.save(clientLogin, storedCredential);
+        }
         verifyLeafCert();
         socket.close();
     }
 
+    /**
+     * Составляет запрос на новый сертификат. Если сохранен сертификат на то же имя, запрос
+     * подписывается его ключом: УЦ выдает закрепленное имя только владельцу его ключа.
+     *
+     * @return {CSR} или {CSR, листовой сертификат, промежуточный сертификат, подпись CSR}
+     * @throws IOException если запрос не удалось подписать
+     */
+    private static byte[][] leafRequest() throws IOException {
+        if (storedCredential == null || !Certificates.hasCommonName(storedCredential.getLeafCert(), clientLogin)) {
+            return new byte[][]{leafCSR};
+        }
+        byte[][] proof = NameProof.create(NameProof.RENEWAL, leafCSR, storedCredential.getPrivateKey(),
+                storedCredential.getLeafCert(), storedCredential.getIntermediateCert());
+        return new byte[][]{leafCSR, proof[0], proof[1], proof[2]};
+    }
+
+    /**
+     * Обновляет копию списка отзыва: сервер отправляет только номера, отозванные после версии копии
+     * (или весь список, если УЦ сменился). Дельта проверяется по подписи корневого УЦ и по вызову,
+     * отправленному в запросе, чтобы старый ответ не отменил отзыв, и сохраняется в revocations.bin.
+     * Вызывается после {@link #createCertificate}.
+     *
+     * @param serverAddress IP-адрес сервера
+     * @param serverPort    порт сервера
+     */
+    public void refreshRevocations(String serverAddress, int serverPort) {
+        try (Socket socket = new Socket(serverAddress, serverPort)) {
+            long nonce = new SecureRandom().nextLong();
+            ObjectOutputStream outputStream = new ObjectOutputStream(socket.getOutputStream());
+            outputStream.writeObject(revocations.request(nonce));
+            outputStream.flush();
+            byte[][] response = (byte[][]) new ObjectInputStream(socket.getInputStream()).readObject();
+
+            Signature verifier = Signature.getInstance(REVOCATION_SIGNATURE_ALGORITHM);
+            verifier.initVerify(certificateCache.getPublicKey(rootCert));
+            verifier.update(response[0]);
+            if (!verifier.verify(response[1])) {
+                throw new IOException("Подпись списка отзыва неверна");
+            }
+            int added = revocations.apply(response[0], nonce);
+            revocations.save(REVOCATIONS_FILE);
+            System.out.println("Список отзыва обновлен: версия " + revocations.getVersion() + ", новых номеров " + added);
+            if (isRevoked(leafCert)) {
+                System.err.println("Сертификат клиента " + clientLogin
+                        + " отозван; новый будет запрошен при следующем подключении к серверу");
+            }
+        } catch (IOException | ClassNotFoundException | GeneralSecurityException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static boolean isRevoked(byte[] cert) {
+        try {
+            return revocations.isRevoked(certificateCache.getSerial(cert));
+        } catch (GeneralSecurityException e) {
+            // Неразбираемый сертификат не используется повторно
+            return true;
+        }
+    }
+
     /**
      * Устанавливает соединение с сервером.
      *
@@ -108,152 +279,348 @@ public class Client {
     }
 
     /**
-     * Отправляет файлы клиенту Б, включая сообщение,
-     * цифровую подпись и листовой сертификат.
+     * Отправляет документы клиенту Б по одному соединению (см. {@link Multiplexer}).
+     * Каждый документ подписывается во время отправки; вместе с ним передается
+     * листовой сертификат для проверки подписи. Если документ уже частично передан
+     * в прерванном сеансе, передача продолжается с подтвержденного клиентом Б смещения.
+     * Документы сжимаются способом, заданным {@link #setCompression}, если они сжимаемы.
+     * В режиме {@link #setMerkleSigning} подписывается корень дерева Меркла документа.
      *
      * @param socket объект Socket для обмена данными с клиентом Б
      */
     public void sendFiles(Socket socket) {
         try {
-            // Подготовка файлов для отправки
-            File[] filesToSend = {new File(clientMessage), new File("leaf_cert.pem"), new File("signature.bin")};
-
-            DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream()); // Инициализируем outputStream
+            List<Multiplexer.Outgoing> files = new ArrayList<>();
+            for (int i = 0; i < clientMessages.length; i++) {
+                files.add(new Multiplexer.Outgoing(Paths.get(clientMessages[i]), documentSignatures[i], leafCert,
+                        compression, compressionLevel, merkleSigning));
+            }
 
-            // Отправка количества файлов
-            outputStream.writeInt(filesToSend.length);
-            outputStream.flush();
+            printReports(Multiplexer.send(socket, files), clientMessages);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-            // Отправка файлов
-            for (File file : filesToSend) {
-                sendFile(socket, file);
+    /**
+     * Отправляет документы по двунаправленному соединению (см. {@link #openDuplex}).
+     * Каждый вызов подписывает документы отдельно, поэтому документы можно
+     * одновременно отправлять нескольким корреспондентам из разных потоков выполнения.
+     *
+     * @param duplex    соединение с корреспондентом
+     * @param filePaths пути к файлам документов
+     */
+    public void sendFiles(Multiplexer.Duplex duplex, String... filePaths) {
+        try {
+            List<Multiplexer.Outgoing> files = new ArrayList<>();
+            for (String filePath : filePaths) {
+                files.add(new Multiplexer.Outgoing(Paths.get(filePath), newDocumentSignature(), leafCert,
+                        compression, compressionLevel, merkleSigning));
             }
+            printReports(duplex.send(files), filePaths);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Отправляет файл клиенту Б.
+     * Отправляет документы нескольким клиентам через сервер пересылки (см. {@link Relay}):
+     * адреса получателей не нужны, достаточно их имен. Документы подписываются во время
+     * отправки, как в {@link #sendFiles(Multiplexer.Duplex, String...)}; подпись проверяют получатели.
+     * Получатель, не подключенный к серверу или отключенный им во время пересылки, получит
+     * документы при повторной отправке; уже принятые части при этом пропускаются.
      *
-     * @param socket объект Socket для обмена данными с клиентом Б
-     * @param file   отправляемый файл
+     * @param serverAddress IP-адрес сервера
+     * @param serverPort    порт сервера
+     * @param recipients    имена получателей
+     * @param filePaths     пути к файлам документов
      */
-    private void sendFile(Socket socket, File file) throws IOException {
-        DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
-
-        // Отправка имени файла и размера
-        outputStream.writeUTF(file.getName());
-        outputStream.writeLong(file.length());
-        outputStream.flush();
+    public void relayFiles(String serverAddress, int serverPort, String[] recipients, String... filePaths) {
+        try (Socket socket = new Socket(serverAddress, serverPort)) {
+            String[] request = new String[recipients.length + 2];
+            request[0] = Relay.SEND;
+            request[1] = clientLogin;
+            System.arraycopy(recipients, 0, request, 2, recipients.length);
+            sendRelayRequest(socket, request);
+
+            List<Multiplexer.Outgoing> files = new ArrayList<>();
+            for (String filePath : filePaths) {
+                files.add(new Multiplexer.Outgoing(Paths.get(filePath), newDocumentSignature(), leafCert,
+                        compression, compressionLevel, merkleSigning));
+            }
+            for (Multiplexer.Report report : Multiplexer.sendBundle(socket, files)) {
+                System.out.println("Файл передан серверу: " + report);
+            }
 
-        // Отправка содержимого файла
-        FileInputStream fileInputStream = new FileInputStream(file);
-        byte[] buffer = new byte[4096];
-        int bytesRead;
+            // Результаты доставки сервер отправляет, когда пакет записан всем получателям
+            String[] statuses = (String[]) new ObjectInputStream(socket.getInputStream()).readObject();
+            for (int i = 0; i < recipients.length; i++) {
+                System.out.println("Получатель " + recipients[i] + ": " + statuses[i]);
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            e.printStackTrace();
+        }
+    }
 
-        while ((bytesRead = fileInputStream.read(buffer)) != -1) {
-            outputStream.write(buffer, 0, bytesRead);
+    /**
+     * Подключается к серверу пересылки как получатель: документы, которые другие клиенты
+     * отправляют на имя этого клиента, принимаются в фоне в папки received_files_[отправитель].
+     * Подпись каждого документа проверяется, как при приеме напрямую.
+     *
+     * @param serverAddress IP-адрес сервера
+     * @param serverPort    порт сервера
+     * @return объект Socket соединения с сервером; его закрытие прекращает прием
+     * @throws IOException если не удалось подключиться к серверу или сервер не принял подтверждение имени
+     */
+    public Socket connectToRelay(String serverAddress, int serverPort) throws IOException {
+        Socket socket = new Socket(serverAddress, serverPort);
+        try {
+            sendRelayRequest(socket, new String[]{Relay.RECEIVE, clientLogin});
+        } catch (IOException e) {
+            socket.close();
+            throw e;
         }
 
+        Thread receiver = new Thread(() -> {
+            try {
+                while (true) {
+                    // Перед каждым пакетом сервер сообщает имя отправителя
+                    String sender = (String) new ObjectInputStream(socket.getInputStream()).readObject();
+                    if (!isValidName(sender)) {
+                        throw new IOException("Недопустимое имя отправителя: " + sender);
+                    }
+                    String folderName = receiveFolder(sender);
+                    Multiplexer.receiveBundle(socket, Paths.get(folderName), receiveHandler(sender, folderName));
+                }
+            } catch (EOFException e) {
+                System.out.println("Сервер пересылки закрыл соединение");
+            } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                // Закрытие сокета вызывающим - обычное завершение приема
+                if (!socket.isClosed()) {
+                    e.printStackTrace();
+                }
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // Сокет уже закрыт
+                }
+            }
+        }, "relay-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+        return socket;
+    }
+
+    /**
+     * Отправляет запрос пересылки и подтверждает имя клиента: подписывает вызов сервера
+     * закрытым ключом листового сертификата (см. {@link Relay}).
+     *
+     * @param socket  объект Socket для обмена данными с сервером
+     * @param request запрос пересылки
+     * @throws IOException если сервер не принял подтверждение или соединение прервано
+     */
+    private static void sendRelayRequest(Socket socket, String[] request) throws IOException {
+        ObjectOutputStream outputStream = new ObjectOutputStream(socket.getOutputStream());
+        outputStream.writeObject(request);
         outputStream.flush();
-        System.out.println("Файл успешно отправлен: " + file.getName());
+        try {
+            byte[] nonce = (byte[]) new ObjectInputStream(socket.getInputStream()).readObject();
+            outputStream = new ObjectOutputStream(socket.getOutputStream());
+            outputStream.writeObject(NameProof.create(NameProof.RELAY, nonce, storedCredential.getPrivateKey(),
+                    leafCert, intermediateCert));
+            outputStream.flush();
+
+            String failure = (String) new ObjectInputStream(socket.getInputStream()).readObject();
+            if (!failure.isEmpty()) {
+                throw new IOException("Сервер пересылки не принял подтверждение имени: " + failure);
+            }
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Неверный ответ сервера пересылки", e);
+        }
+    }
 
-        fileInputStream.close();
+    private static void printReports(List<Multiplexer.Report> reports, String[] filePaths) {
+        for (int i = 0; i < reports.size(); i++) {
+            if (reports.get(i).isAccepted()) {
+                System.out.println("Файл успешно отправлен: " + reports.get(i));
+            } else {
+                System.err.println("Получатель отклонил подпись файла " + filePaths[i]);
+            }
+        }
     }
 
     /**
-     * Получает файлы клиента Б, включая сообщение,
-     * цифровую подпись и листовой сертификат.
+     * Получает документы клиента Б. Подпись каждого документа проверяется
+     * открытым ключом из сертификата отправителя во время получения;
+     * документ с неверной подписью удаляется.
      *
      * @param socket     объект Socket для обмена данными с клиентом Б
      * @param clientName имя клиента Б
      */
     public void receiveFiles(Socket socket, String clientName) {
         try {
-            DataInputStream inputStream = new DataInputStream(socket.getInputStream());
-
-            // Получение количества файлов от клиента
-            int fileCount = inputStream.readInt();
-            System.out.println("Количество файлов для получения: " + fileCount);
-
-            // Создание папки для сохранения файлов, если она не существует
-            String folderName = "received_files_" + clientName;
-            createFolder(folderName);
-
-            // Получение файлов от клиента
-            String[] temp;
-            String sign = "", cert = "", file = "";
-            for (int i = 0; i < fileCount; i++) {
-                temp = receiveFile(inputStream, folderName);
-                switch (temp[0]) {
-                    case ("s") -> sign = temp[1];
-                    case ("c") -> cert = temp[1];
-                    default -> file = temp[1];
-                }
-            }
-
-            verifySignature(sign, cert, file);
+            String folderName = receiveFolder(clientName);
+            Multiplexer.receive(socket, Paths.get(folderName), receiveHandler(clientName, folderName));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
     /**
-     * Получает файл клиента Б.
+     * Открывает двунаправленное соединение с корреспондентом: его документы принимаются
+     * в фоне в папку received_files_[имя], а свои отправляются {@link #sendFiles(Multiplexer.Duplex, String...)}
+     * одновременно с приемом.
      *
-     * @param inputStream входной поток данных для чтения файла от клиента Б
-     * @param folderName  имя папки, в которую будет сохранен файл
-     * @throws IOException если возникают проблемы ввода-вывода при чтении или записи файла
+     * @param socket     объект Socket для обмена данными с корреспондентом
+     * @param clientName имя корреспондента
+     * @return соединение с корреспондентом
+     * @throws IOException если возникают проблемы с сокетом
      */
-    private String[] receiveFile(DataInputStream inputStream, String folderName) throws IOException {
-        // Создание объекта для форматирования даты и времени
-        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss");
+    public Multiplexer.Duplex openDuplex(Socket socket, String clientName) throws IOException {
+        String folderName = receiveFolder(clientName);
+        return new Multiplexer.Duplex(socket, Paths.get(folderName), receiveHandler(clientName, folderName));
+    }
 
-        // Получение информации о файле
-        String fileRole = inputStream.readUTF();
-        String fileName = dateFormat.format(new Date()) + "_" + fileRole;
-        long fileSize = inputStream.readLong();
-        System.out.println("Получение файла: " + fileName + " (" + fileSize + " байт)");
-
-        // Создание файлового потока для записи файла
-        String filePath = folderName + "/" + fileName;
-        FileOutputStream fileOutputStream = new FileOutputStream(filePath);
-
-        // Чтение и запись содержимого файла
-        byte[] buffer = new byte[4096];
-        int bytesRead;
-        long totalBytesRead = 0;
-
-        while (totalBytesRead < fileSize) {
-            int bytesToRead = (int) Math.min(buffer.length, fileSize - totalBytesRead);
-            bytesRead = inputStream.read(buffer, 0, bytesToRead);
-            if (bytesRead == -1) {
-                break;
+    /**
+     * Обменивается именами с корреспондентом, подключившимся напрямую, и проверяет его имя.
+     * Каждая сторона посылает случайный вызов, а корреспондент подписывает его вместе с именем
+     * проверяющего закрытым ключом листового сертификата, выданного на свое имя
+     * (см. {@link NameProof#PEER}). Имя проверяющего в подписи не дает выдать подтверждение,
+     * полученное при подключении к одному корреспонденту, за подтверждение другому.
+     * Каждая сторона сообщает другой результат проверки.
+     *
+     * @param socket объект Socket для обмена данными с корреспондентом
+     * @return подтвержденное имя корреспондента
+     * @throws IOException если корреспондент не подтвердил имя, не принял подтверждение клиента
+     *                     или соединение прервано
+     */
+    public String authenticatePeer(Socket socket) throws IOException {
+        byte[] nonce = NameProof.newNonce();
+        ObjectOutputStream outputStream = new ObjectOutputStream(socket.getOutputStream());
+        outputStream.writeObject(clientLogin);
+        outputStream.writeObject(nonce);
+        outputStream.flush();
+        try {
+            ObjectInputStream inputStream = new ObjectInputStream(socket.getInputStream());
+            String peer = (String) inputStream.readObject();
+            byte[] peerNonce = (byte[]) inputStream.readObject();
+            // Имя корреспондента становится частью имени папки
+            if (!isValidName(peer) || peer.equals(clientLogin)) {
+                throw new IOException("Недопустимое имя корреспондента: " + peer);
+            }
+            outputStream.writeObject(NameProof.create(NameProof.PEER, peerProofData(peerNonce, peer),
+                    storedCredential.getPrivateKey(), leafCert, intermediateCert));
+            outputStream.flush();
+
+            String failure = NameProof.verify(inputStream.readObject(), NameProof.PEER,
+                    peerProofData(nonce, clientLogin), peer, rootCert, certificateCache, revocations);
+            outputStream.writeObject(failure == null ? "" : failure);
+            outputStream.flush();
+            String peerFailure = (String) inputStream.readObject();
+            if (failure != null) {
+                throw new IOException("Корреспондент не подтвердил имя " + peer + ": " + failure);
+            }
+            if (!peerFailure.isEmpty()) {
+                throw new IOException("Корреспондент " + peer + " не принял подтверждение имени: " + peerFailure);
             }
-            fileOutputStream.write(buffer, 0, bytesRead);
-            totalBytesRead += bytesRead;
+            return peer;
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Неверный ответ корреспондента", e);
         }
+    }
+
+    /**
+     * Данные подтверждения имени корреспондента: вызов проверяющего и его имя.
+     */
+    private static byte[] peerProofData(byte[] nonce, String verifier) {
+        byte[] name = verifier.getBytes(StandardCharsets.UTF_8);
+        byte[] data = new byte[nonce.length + name.length];
+        System.arraycopy(nonce, 0, data, 0, nonce.length);
+        System.arraycopy(name, 0, data, nonce.length, name.length);
+        return data;
+    }
+
+    /**
+     * Создает папку для документов корреспондента, если она не существует.
+     *
+     * @return имя папки
+     */
+    private static String receiveFolder(String clientName) {
+        String folderName = "received_files_" + clientName;
+        createFolder(folderName);
+        return folderName;
+    }
 
-        System.out.println("Файл успешно получен: " + fileName);
+    /**
+     * Обработчик приема документов корреспондента. Подпись каждого документа проверяется
+     * открытым ключом из сертификата отправителя во время получения;
+     * документ с неверной подписью удаляется.
+     */
+    private Multiplexer.Handler receiveHandler(String clientName, String folderName) {
+        // Создание объекта для форматирования даты и времени
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss");
+        return new Multiplexer.Handler() {
+            @Override
+            public Signature createVerifier(byte[] signerCert) throws IOException {
+                return Client.this.createVerifier(signerCert, clientName);
+            }
 
-        fileOutputStream.close();
+            @Override
+            public Path started(String fileName, long size, long offset) {
+                if (offset > 0) {
+                    System.out.println("Продолжение получения файла от " + clientName + ": " + fileName
+                            + " (" + offset + " из " + size + " байт)");
+                } else {
+                    System.out.println("Получение файла от " + clientName + ": " + fileName + " (" + size + " байт)");
+                }
+                return Paths.get(folderName, dateFormat.format(new Date()) + "_" + fileName);
+            }
 
-        return switch (fileRole) {
-            case ("signature.bin") -> new String[]{"s", "\"" + filePath + "\""};
-            case ("leaf_cert.pem") -> new String[]{"c", "\"" + filePath + "\""};
-            default -> new String[]{"f", "\"" + filePath + "\""};
+            @Override
+            public void completed(String fileName, Path file, boolean verified) {
+                if (verified) {
+                    System.out.println("Файл успешно получен, подпись верна: " + file.getFileName());
+                } else {
+                    System.err.println("Подпись файла " + fileName + " неверна или отсутствует, файл удален");
+                }
+            }
         };
     }
 
     /**
      * Генерирует пару ключей для листового сертификата.
+     * Закрытый ключ сохраняется в leaf_keypair.pem для подписи документов.
      *
      * @throws IOException если возникают проблемы при генерации пары ключей
      */
     private void generateLeafKeyPair() throws IOException {
-        ProcessBuilder builder = new ProcessBuilder("openssl", "genpkey", "-algorithm", "RSA", "-out", "leaf_keypair.pem");
-        executeCommand(builder);
+        try {
+            leafKeyPair = getKeyPairPool().take();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Не удалось сгенерировать ключевую пару", e);
+        }
+        writePrivateKey(leafKeyPair.getPrivate());
+    }
+
+    /**
+     * Сохраняет закрытый ключ листового сертификата в leaf_keypair.pem для подписи документов.
+     *
+     * @param privateKey закрытый ключ
+     * @throws IOException если возникают проблемы при записи файла
+     */
+    private void writePrivateKey(PrivateKey privateKey) throws IOException {
+        Path keyPairFile = Paths.get("leaf_keypair.pem");
+        Files.deleteIfExists(keyPairFile);
+        Files.createFile(keyPairFile);
+        try {
+            // Закрытый ключ доступен только владельцу
+            Files.setPosixFilePermissions(keyPairFile, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            // Файловая система не поддерживает права POSIX
+        }
+        Files.writeString(keyPairFile, Certificates.toPEM("PRIVATE KEY", privateKey.getEncoded()),
+                StandardCharsets.US_ASCII);
     }
 
     /**
@@ -262,55 +629,102 @@ public class Client {
      * @throws IOException если возникают проблемы при создании CSR
      */
     private void generateLeafCSR() throws IOException {
-        ProcessBuilder builder = new ProcessBuilder("openssl", "req", "-new", "-subj", "\"/CN=Leaf\"", "-addext", "\"basicConstraints=critical,CA:FALSE\"", "-key", "leaf_keypair.pem", "-out", "leaf_csr.pem");
-        executeCommand(builder);
-
-        leafCSR = convertPEMFileToString("leaf_csr.pem");
+        try {
+            // Сертификат выдается на имя клиента: по нему сервер пересылки проверяет владельца имени
+            leafCSR = Certificates.createCSR(leafKeyPair, clientLogin, false);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Не удалось создать запрос на сертификат", e);
+        }
     }
 
     /**
-     * Проверяет листовой сертификат.
+     * Проверяет листовой сертификат и сохраняет его в leaf_cert.pem.
      *
-     * @throws IOException если возникают проблемы при проверке сертификата
+     * @throws IOException если цепочка сертификатов недействительна
      */
     private void verifyLeafCert() throws IOException {
-        convertStringToPEMFile(rootCert, "root_cert.pem");
-        convertStringToPEMFile(intermediateCert, "intermediate_cert.pem");
-        convertStringToPEMFile(leafCert, "leaf_cert.pem");
-
         // Проверка подписи листового сертификата
         // с использованием цепочки корневого и промежуточного сертификатов
-        ProcessBuilder builder = new ProcessBuilder("openssl", "verify", "-verbose", "-show_chain", "-trusted", "root_cert.pem", "-untrusted", "intermediate_cert.pem", "leaf_cert.pem");
-        executeReadableCommand(builder);
+        try {
+            certificateCache.verifyChain(leafCert, intermediateCert, rootCert);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Цепочка сертификатов клиента " + clientLogin + " недействительна", e);
+        }
+        System.out.println("Цепочка сертификатов клиента " + clientLogin + " проверена");
+        convertStringToPEMFile(Certificates.toPEM("CERTIFICATE", leafCert), LEAF_CERT_FILE);
     }
 
     /**
-     * Получает цифровую подпись документа.
+     * Задает способ сжатия отправляемых документов.
+     *
+     * @param compression способ сжатия
+     * @param level       уровень Deflate от 1 до 9 (для {@link Compression#DEFLATE})
+     */
+    public void setCompression(Compression compression, int level) {
+        Client.compression = compression;
+        compressionLevel = level;
+    }
+
+    /**
+     * Включает подпись корня дерева Меркла вместо подписи всего документа.
+     * Документ хешируется фрагментами параллельно на всех ядрах, а клиент Б проверяет
+     * каждый фрагмент при получении и сразу запрашивает повтор поврежденного;
+     * режим полезен для больших документов.
+     *
+     * @param merkleSigning true - подписывать корень дерева Меркла
+     */
+    public void setMerkleSigning(boolean merkleSigning) {
+        Client.merkleSigning = merkleSigning;
+    }
+
+    /**
+     * Подготавливает цифровые подписи документов (SHA-512 с RSA) закрытым ключом листового сертификата.
+     * Сами подписи вычисляются в {@link #sendFiles(Socket)} во время отправки документов.
      *
      * @throws IOException если возникают проблемы при получении цифровой подписи
      */
     public void createSignature() throws IOException {
-        // Получение цифровой подписи
-        ProcessBuilder builder = new ProcessBuilder("openssl", "dgst", "-sha512", "-sign", "leaf_keypair.pem", "-out", "signature.bin", "\"" + clientMessage + "\"");
-        executeCommand(builder);
+        documentSignatures = new Signature[clientMessages.length];
+        for (int i = 0; i < documentSignatures.length; i++) {
+            documentSignatures[i] = newDocumentSignature();
+        }
+    }
+
+    private Signature newDocumentSignature() throws IOException {
+        try {
+            Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+            signature.initSign(storedCredential.getPrivateKey());
+            return signature;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Не удалось подготовить цифровую подпись", e);
+        }
     }
 
     /**
-     * Проверяет цифровую подпись полученного документа.
+     * Создает объект проверки цифровой подписи по открытому ключу из листового сертификата отправителя.
+     * Сертификат должен быть выдан тем же УЦ, что и сертификат клиента, на имя отправителя
+     * и не должен быть отозван; разобранный сертификат и результат проверки цепочки берутся из кэша, если этот отправитель
+     * уже встречался, а отзыв проверяется по копии списка отзыва без обращения к серверу.
      *
-     * @throws IOException если возникают проблемы при проверке цифровой подписи
+     * @param cert   сертификат в DER
+     * @param sender имя отправителя
+     * @return объект проверки подписи
+     * @throws IOException если цепочка недействительна, сертификат выдан другому клиенту или отозван
      */
-    private void verifySignature(String sign, String cert, String file) throws IOException {
-        // Получение подписанного публичного ключа из листового сертификата
-        ProcessBuilder builder = new ProcessBuilder("openssl",
-                "x509", "-in", cert, "-pubkey", "-noout", "-out", "public_key.pem");
-        executeCommand(builder);
-
-        // Получение цифровой подписи
-        builder = new ProcessBuilder("openssl",
-                "dgst", "-sha512", "-verify", "public_key.pem", "-signature", sign, file);
-        executeReadableCommand(builder);
-
-        (new File("public_key.pem")).delete();
+    private Signature createVerifier(byte[] cert, String sender) throws IOException {
+        try {
+            certificateCache.verifyChain(cert, intermediateCert, rootCert);
+            if (!Certificates.hasCommonName(cert, sender)) {
+                throw new IOException("Сертификат отправителя выдан не клиенту " + sender);
+            }
+            if (revocations.isRevoked(certificateCache.getSerial(cert))) {
+                throw new IOException("Сертификат отправителя отозван");
+            }
+            Signature verifier = Signature.getInstance(SIGNATURE_ALGORITHM);
+            verifier.initVerify(certificateCache.getPublicKey(cert));
+            return verifier;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Сертификат отправителя недействителен", e);
+        }
     }
 }
@@ -0,0 +1,39 @@
+package dp.scsa;
+
+import java.io.IOException;
+
+/**
+ * Сжатие документов при передаче (см. {@link Multiplexer}).
+ * Способ согласуется для каждого потока; каждый кадр сжимается отдельно
+ * и передается без сжатия, если сжатие не уменьшает его.
+ */
+public enum Compression {
+    /**
+     * Без сжатия.
+     */
+    NONE,
+    /**
+     * Быстрое сжатие LZ (формат блока LZ4): мало нагружает процессор, сжимает слабее Deflate.
+     */
+    FAST,
+    /**
+     * Deflate с выбранным уровнем (от {@link java.util.zip.Deflater#BEST_SPEED}
+     * до {@link java.util.zip.Deflater#BEST_COMPRESSION}).
+     */
+    DEFLATE;
+
+    /**
+     * Возвращает способ сжатия по номеру, переданному по сети.
+     *
+     * @param id номер способа
+     * @return способ сжатия
+     * @throws IOException если номер неизвестен
+     */
+    static Compression fromId(int id) throws IOException {
+        Compression[] values = values();
+        if (id < 0 || id >= values.length) {
+            throw new IOException("Неизвестный способ сжатия: " + id);
+        }
+        return values[id];
+    }
+}
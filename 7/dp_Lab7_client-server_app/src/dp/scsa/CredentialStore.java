@@ -0,0 +1,188 @@
+package dp.scsa;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+/**
+ * Локальное хранилище учетных данных клиента: закрытый ключ, листовой сертификат
+ * и цепочка УЦ, по одному файлу на имя клиента.
+ * Сохраненный сертификат используется повторно, пока он не близок к истечению
+ * и цепочка сервера не изменилась, поэтому перезапуск клиента не требует
+ * генерации ключа и выдачи нового сертификата.
+ * <p>
+ * Формат файла: [сигнатура: 4][ключ PKCS#8][листовой][промежуточный][корневой],
+ * каждый элемент - [длина: 4][данные DER].
+ */
+public class CredentialStore {
+    // "LCS1" - сигнатура и версия формата
+    private static final int MAGIC = 0x4C435331;
+    private static final int MAX_ITEM_LENGTH = 64 * 1024;
+    private final Path directory;
+
+    /**
+     * Конструктор класса CredentialStore.
+     *
+     * @param directory папка хранилища
+     */
+    public CredentialStore(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Загружает учетные данные клиента.
+     *
+     * @param clientLogin имя клиента
+     * @return учетные данные или null, если их нет или файл поврежден
+     */
+    public Credential load(String clientLogin) {
+        Path path = pathOf(clientLogin);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (inputStream.readInt() != MAGIC) {
+                throw new IOException("Неверный формат хранилища учетных данных: " + path);
+            }
+            byte[] key = readItem(inputStream);
+            byte[] leafCert = readItem(inputStream);
+            byte[] intermediateCert = readItem(inputStream);
+            byte[] rootCert = readItem(inputStream);
+            PrivateKey privateKey = KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(key));
+            return new Credential(privateKey, leafCert, intermediateCert, rootCert);
+        } catch (IOException | GeneralSecurityException e) {
+            System.err.println("Сохраненные учетные данные не прочитаны: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Сохраняет учетные данные клиента. Файл записывается во временный файл
+     * и атомарно переименовывается, чтобы прерванная запись не испортила прежние данные.
+     *
+     * @param clientLogin имя клиента
+     * @param credential  учетные данные
+     */
+    public void save(String clientLogin, Credential credential) throws IOException {
+        Files.createDirectories(directory);
+        Path path = pathOf(clientLogin);
+        Path temporary = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+        try {
+            try {
+                // Закрытый ключ доступен только владельцу
+                Files.setPosixFilePermissions(temporary, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                // Файловая система не поддерживает права POSIX
+            }
+            try (DataOutputStream outputStream = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                outputStream.writeInt(MAGIC);
+                for (byte[] item : new byte[][]{credential.privateKey.getEncoded(), credential.leafCert,
+                        credential.intermediateCert, credential.rootCert}) {
+                    outputStream.writeInt(item.length);
+                    outputStream.write(item);
+                }
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Возвращает файл учетных данных клиента. Имя файла - SHA-256 от имени клиента,
+     * чтобы любые имена (в том числе с символами, недопустимыми в путях) не пересекались.
+     */
+    private Path pathOf(String clientLogin) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(clientLogin.getBytes(StandardCharsets.UTF_8));
+            return directory.resolve(HexFormat.of().formatHex(digest) + ".cred");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] readItem(DataInputStream inputStream) throws IOException {
+        int length = inputStream.readInt();
+        if (length <= 0 || length > MAX_ITEM_LENGTH) {
+            throw new IOException("Поврежденное хранилище учетных данных");
+        }
+        byte[] item = new byte[length];
+        inputStream.readFully(item);
+        return item;
+    }
+
+    /**
+     * Учетные данные клиента: закрытый ключ, листовой сертификат и цепочка УЦ в DER.
+     */
+    public static final class Credential {
+        private final PrivateKey privateKey;
+        private final byte[] leafCert;
+        private final byte[] intermediateCert;
+        private final byte[] rootCert;
+
+        public Credential(PrivateKey privateKey, byte[] leafCert, byte[] intermediateCert, byte[] rootCert) {
+            this.privateKey = privateKey;
+            this.leafCert = leafCert;
+            this.intermediateCert = intermediateCert;
+            this.rootCert = rootCert;
+        }
+
+        public PrivateKey getPrivateKey() {
+            return privateKey;
+        }
+
+        public byte[] getLeafCert() {
+            return leafCert;
+        }
+
+        public byte[] getIntermediateCert() {
+            return intermediateCert;
+        }
+
+        public byte[] getRootCert() {
+            return rootCert;
+        }
+
+        /**
+         * Проверяет, что сертификат можно использовать повторно: цепочка совпадает с текущей
+         * цепочкой сервера, а до истечения сертификата остается не меньше указанного запаса.
+         *
+         * @param currentRootCert         текущий корневой сертификат сервера в DER
+         * @param currentIntermediateCert текущий промежуточный сертификат сервера в DER
+         * @param renewBefore             запас до истечения, при котором сертификат обновляется
+         * @return true, если новый сертификат не нужен
+         */
+        public boolean isReusable(byte[] currentRootCert, byte[] currentIntermediateCert, Duration renewBefore) {
+            if (!Arrays.equals(rootCert, currentRootCert) || !Arrays.equals(intermediateCert, currentIntermediateCert)) {
+                return false;
+            }
+            try {
+                X509Certificate leaf = (X509Certificate) CertificateFactory.getInstance("X.509")
+                        .generateCertificate(new ByteArrayInputStream(leafCert));
+                return leaf.getNotAfter().toInstant().isAfter(Instant.now().plus(renewBefore));
+            } catch (GeneralSecurityException e) {
+                return false;
+            }
+        }
+    }
+}
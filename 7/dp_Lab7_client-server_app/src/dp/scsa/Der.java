@@ -0,0 +1,317 @@
+package dp.scsa;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Минимальный кодировщик и декодер DER (подмножество ASN.1, нужное для сертификатов X.509
+ * и запросов на сертификат PKCS#10).
+ */
+final class Der {
+    static final int BOOLEAN = 0x01;
+    static final int INTEGER = 0x02;
+    static final int BIT_STRING = 0x03;
+    static final int OCTET_STRING = 0x04;
+    static final int NULL = 0x05;
+    static final int OBJECT_IDENTIFIER = 0x06;
+    static final int UTF8_STRING = 0x0C;
+    static final int PRINTABLE_STRING = 0x13;
+    static final int UTC_TIME = 0x17;
+    static final int GENERALIZED_TIME = 0x18;
+    static final int SEQUENCE = 0x30;
+    static final int SET = 0x31;
+    // Признак контекстного составного тега [n]
+    static final int CONTEXT_CONSTRUCTED = 0xA0;
+
+    private static final DateTimeFormatter UTC_TIME_FORMAT = DateTimeFormatter.ofPattern("yyMMddHHmmss'Z'");
+    private static final DateTimeFormatter GENERALIZED_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMddHHmmss'Z'");
+
+    private Der() {
+    }
+
+    /**
+     * Кодирует элемент с указанным тегом; содержимое - конкатенация переданных массивов.
+     *
+     * @param tag      тег элемента
+     * @param contents части содержимого
+     * @return закодированный элемент
+     */
+    static byte[] encode(int tag, byte[]... contents) {
+        int length = 0;
+        for (byte[] content : contents) {
+            length += content.length;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length + 6);
+        out.write(tag);
+        if (length < 0x80) {
+            out.write(length);
+        } else {
+            int bytes = (32 - Integer.numberOfLeadingZeros(length) + 7) / 8;
+            out.write(0x80 | bytes);
+            for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8) {
+                out.write(length >>> shift);
+            }
+        }
+        for (byte[] content : contents) {
+            out.writeBytes(content);
+        }
+        return out.toByteArray();
+    }
+
+    static byte[] sequence(byte[]... items) {
+        return encode(SEQUENCE, items);
+    }
+
+    static byte[] set(byte[]... items) {
+        return encode(SET, items);
+    }
+
+    /**
+     * Кодирует контекстный составной тег [n] (явная маркировка или неявная маркировка SET/SEQUENCE).
+     */
+    static byte[] context(int number, byte[]... items) {
+        return encode(CONTEXT_CONSTRUCTED | number, items);
+    }
+
+    static byte[] integer(BigInteger value) {
+        return encode(INTEGER, value.toByteArray());
+    }
+
+    static byte[] bool(boolean value) {
+        return encode(BOOLEAN, new byte[]{(byte) (value ? 0xFF : 0x00)});
+    }
+
+    static byte[] nullValue() {
+        return encode(NULL);
+    }
+
+    static byte[] octetString(byte[] value) {
+        return encode(OCTET_STRING, value);
+    }
+
+    /**
+     * Кодирует строку битов без неиспользуемых битов (подпись, открытый ключ).
+     */
+    static byte[] bitString(byte[] value) {
+        return encode(BIT_STRING, new byte[]{0}, value);
+    }
+
+    static byte[] utf8String(String value) {
+        return encode(UTF8_STRING, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Кодирует время: UTCTime до 2050 года, GeneralizedTime начиная с 2050 (RFC 5280, 4.1.2.5).
+     */
+    static byte[] time(Instant instant) {
+        ZonedDateTime time = instant.atZone(ZoneOffset.UTC);
+        if (time.getYear() < 2050) {
+            return encode(UTC_TIME, UTC_TIME_FORMAT.format(time).getBytes(StandardCharsets.US_ASCII));
+        }
+        return encode(GENERALIZED_TIME, GENERALIZED_TIME_FORMAT.format(time).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Кодирует идентификатор объекта.
+     *
+     * @param dotted идентификатор в точечной записи, например "2.5.4.3"
+     */
+    static byte[] oid(String dotted) {
+        String[] parts = dotted.split("\\.");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeBase128(out, Long.parseLong(parts[0]) * 40 + Long.parseLong(parts[1]));
+        for (int i = 2; i < parts.length; i++) {
+            writeBase128(out, Long.parseLong(parts[i]));
+        }
+        return encode(OBJECT_IDENTIFIER, out.toByteArray());
+    }
+
+    private static void writeBase128(ByteArrayOutputStream out, long value) {
+        int groups = Math.max(1, (64 - Long.numberOfLeadingZeros(value) + 6) / 7);
+        for (int i = groups - 1; i >= 0; i--) {
+            int group = (int) (value >>> (7 * i)) & 0x7F;
+            out.write(i == 0 ? group : group | 0x80);
+        }
+    }
+
+    /**
+     * Разбирает один элемент, занимающий весь массив.
+     *
+     * @param data закодированный элемент
+     * @return элемент
+     * @throws IOException если данные не являются корректным элементом DER
+     */
+    static Element decode(byte[] data) throws IOException {
+        Element element = decode(data, 0, data.length);
+        if (element.end() != data.length) {
+            throw new IOException("Лишние данные после элемента DER");
+        }
+        return element;
+    }
+
+    private static Element decode(byte[] data, int offset, int limit) throws IOException {
+        if (limit - offset < 2) {
+            throw new IOException("Неполный элемент DER");
+        }
+        int tag = data[offset] & 0xFF;
+        if ((tag & 0x1F) == 0x1F) {
+            throw new IOException("Многобайтовые теги DER не поддерживаются");
+        }
+        int first = data[offset + 1] & 0xFF;
+        int header = 2;
+        int length;
+        if (first < 0x80) {
+            length = first;
+        } else {
+            int bytes = first & 0x7F;
+            if (bytes == 0 || bytes > 3 || offset + 2 + bytes > limit) {
+                throw new IOException("Недопустимая длина элемента DER");
+            }
+            length = 0;
+            for (int i = 0; i < bytes; i++) {
+                length = (length << 8) | (data[offset + 2 + i] & 0xFF);
+            }
+            header += bytes;
+        }
+        if (length > limit - offset - header) {
+            throw new IOException("Элемент DER выходит за границы данных");
+        }
+        return new Element(data, offset, header, length);
+    }
+
+    /**
+     * Разобранный элемент DER. Ссылается на исходный массив без копирования.
+     */
+    static final class Element {
+        private final byte[] data;
+        private final int offset;
+        private final int header;
+        private final int length;
+
+        private Element(byte[] data, int offset, int header, int length) {
+            this.data = data;
+            this.offset = offset;
+            this.header = header;
+            this.length = length;
+        }
+
+        int tag() {
+            return data[offset] & 0xFF;
+        }
+
+        private int end() {
+            return offset + header + length;
+        }
+
+        /**
+         * Возвращает элемент целиком (тег, длину и содержимое), например для проверки подписи.
+         */
+        byte[] encoded() {
+            byte[] result = new byte[header + length];
+            System.arraycopy(data, offset, result, 0, result.length);
+            return result;
+        }
+
+        /**
+         * Возвращает содержимое элемента без тега и длины.
+         */
+        byte[] value() {
+            byte[] result = new byte[length];
+            System.arraycopy(data, offset + header, result, 0, length);
+            return result;
+        }
+
+        /**
+         * Разбирает содержимое составного элемента.
+         *
+         * @return вложенные элементы по порядку
+         */
+        List<Element> children() throws IOException {
+            if ((tag() & 0x20) == 0) {
+                throw new IOException("Элемент DER с тегом " + tag() + " не является составным");
+            }
+            List<Element> children = new ArrayList<>();
+            int position = offset + header;
+            while (position < end()) {
+                Element child = decode(data, position, end());
+                children.add(child);
+                position = child.end();
+            }
+            return children;
+        }
+
+        BigInteger integerValue() throws IOException {
+            expectTag(INTEGER);
+            return new BigInteger(value());
+        }
+
+        boolean booleanValue() throws IOException {
+            expectTag(BOOLEAN);
+            return length == 1 && data[offset + header] != 0;
+        }
+
+        /**
+         * Возвращает содержимое строки битов без байта неиспользуемых битов.
+         */
+        byte[] bitStringValue() throws IOException {
+            expectTag(BIT_STRING);
+            if (length < 1 || data[offset + header] != 0) {
+                throw new IOException("Неподдерживаемая строка битов DER");
+            }
+            byte[] result = new byte[length - 1];
+            System.arraycopy(data, offset + header + 1, result, 0, result.length);
+            return result;
+        }
+
+        byte[] octetStringValue() throws IOException {
+            expectTag(OCTET_STRING);
+            return value();
+        }
+
+        /**
+         * Возвращает идентификатор объекта в точечной записи.
+         */
+        String oidValue() throws IOException {
+            expectTag(OBJECT_IDENTIFIER);
+            StringBuilder dotted = new StringBuilder();
+            long value = 0;
+            boolean first = true;
+            for (int i = offset + header; i < end(); i++) {
+                value = (value << 7) | (data[i] & 0x7F);
+                if ((data[i] & 0x80) == 0) {
+                    if (first) {
+                        long arc = Math.min(2, value / 40);
+                        dotted.append(arc).append('.').append(value - arc * 40);
+                        first = false;
+                    } else {
+                        dotted.append('.').append(value);
+                    }
+                    value = 0;
+                }
+            }
+            return dotted.toString();
+        }
+
+        /**
+         * Возвращает строковое значение (UTF8String, PrintableString и другие однобайтовые строки).
+         */
+        String stringValue() {
+            return new String(data, offset + header, length,
+                    tag() == UTF8_STRING ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+        }
+
+        void expectTag(int expected) throws IOException {
+            if (tag() != expected) {
+                throw new IOException("Ожидался тег DER " + expected + ", получен " + tag());
+            }
+        }
+    }
+}
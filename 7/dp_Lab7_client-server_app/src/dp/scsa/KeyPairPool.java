@@ -0,0 +1,146 @@
+package dp.scsa;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Пул заранее сгенерированных пар ключей RSA.
+ * Фоновые потоки с низким приоритетом поддерживают в пуле заданное количество пар
+ * (уровень заполнения), поэтому выдача ключа не ждет генерации простых чисел.
+ * Если пул пуст, пара генерируется в вызывающем потоке.
+ * <p>
+ * Метрики: доля выдач из пула и время восстановления пула до уровня заполнения
+ * после того, как из него взяли ключ.
+ */
+public class KeyPairPool implements AutoCloseable {
+    private final int watermark;
+    private final ConcurrentLinkedQueue<KeyPair> keyPairs = new ConcurrentLinkedQueue<>();
+    // Свободные места в пуле; поток заполнения занимает место до генерации, чтобы не создавать лишних пар
+    private final Semaphore freeSlots;
+    private final Thread[] workers;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    // Момент, когда пул опустился ниже уровня заполнения; 0 - пул заполнен
+    private final AtomicLong belowWatermarkSince = new AtomicLong();
+    private final AtomicLong lastRefillLagNanos = new AtomicLong();
+    private final LongAccumulator maxRefillLagNanos = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Конструктор класса KeyPairPool. Запускает фоновые потоки заполнения.
+     *
+     * @param watermark количество пар ключей, поддерживаемых в пуле
+     * @param threads   количество фоновых потоков
+     */
+    public KeyPairPool(int watermark, int threads) {
+        this.watermark = watermark;
+        freeSlots = new Semaphore(watermark);
+        belowWatermarkSince.set(System.nanoTime());
+        workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(this::fill, "key-pairs-" + i);
+            workers[i].setDaemon(true);
+            workers[i].setPriority(Thread.MIN_PRIORITY);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Возвращает пару ключей из пула или генерирует ее, если пул пуст.
+     * Каждая пара выдается только один раз.
+     *
+     * @return пара ключей RSA
+     */
+    public KeyPair take() throws GeneralSecurityException {
+        KeyPair keyPair = keyPairs.poll();
+        belowWatermarkSince.compareAndSet(0, System.nanoTime());
+        if (keyPair != null) {
+            hits.increment();
+            freeSlots.release();
+            return keyPair;
+        }
+        misses.increment();
+        return Certificates.generateKeyPair();
+    }
+
+    /**
+     * @return количество готовых пар ключей
+     */
+    public int size() {
+        return keyPairs.size();
+    }
+
+    /**
+     * @return доля выдач из пула без ожидания генерации (от 0 до 1)
+     */
+    public double getHitRate() {
+        long total = hits.sum() + misses.sum();
+        return total == 0 ? 0 : (double) hits.sum() / total;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return время последнего восстановления пула до уровня заполнения в миллисекундах
+     */
+    public double getLastRefillLagMillis() {
+        return lastRefillLagNanos.get() / 1e6;
+    }
+
+    /**
+     * @return наибольшее время восстановления пула до уровня заполнения в миллисекундах
+     */
+    public double getMaxRefillLagMillis() {
+        return maxRefillLagNanos.get() / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("пул ключей: %d из %d, попаданий %.0f%% (%d/%d), восстановление %.0f мс (макс. %.0f мс)",
+                size(), watermark, getHitRate() * 100, getHits(), getHits() + getMisses(),
+                getLastRefillLagMillis(), getMaxRefillLagMillis());
+    }
+
+    /**
+     * Останавливает фоновые потоки.
+     */
+    @Override
+    public void close() {
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    private void fill() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                freeSlots.acquire();
+                keyPairs.add(Certificates.generateKeyPair());
+
+                if (keyPairs.size() >= watermark) {
+                    long since = belowWatermarkSince.getAndSet(0);
+                    if (since != 0) {
+                        long lag = System.nanoTime() - since;
+                        lastRefillLagNanos.set(lag);
+                        maxRefillLagNanos.accumulate(lag);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // Пул закрыт
+        } catch (GeneralSecurityException e) {
+            // Без генератора RSA пул не заполняется, ключи генерируются при выдаче
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package dp.scsa;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Дерево Меркла по фрагментам файла (SHA-256). Лист - хеш фрагмента, узел - хеш пары
+ * дочерних узлов; непарный последний узел уровня переходит на следующий уровень без изменений.
+ * Листья и узлы хешируются с разными префиксами, поэтому узел нельзя выдать за лист.
+ * Подписывается только корень, а каждый фрагмент проверяется по корню и хешам соседних
+ * узлов (доказательству), поэтому поврежденный фрагмент обнаруживается сразу после приема.
+ */
+final class MerkleTree {
+    static final int HASH_LENGTH = 32;
+    private static final byte LEAF = 0;
+    private static final byte NODE = 1;
+    // "MRK1" - начало подписываемых данных: [сигнатура: 4][размер файла: 8][корень: 32]
+    private static final int SIGNED_MAGIC = 0x4D524B31;
+
+    // levels[0] - листья, последний уровень - корень
+    private final byte[][][] levels;
+
+    private MerkleTree(byte[][][] levels) {
+        this.levels = levels;
+    }
+
+    /**
+     * Строит дерево по файлу; фрагменты хешируются параллельно задачами пула.
+     *
+     * @param file      файл
+     * @param size      размер файла
+     * @param chunkSize размер фрагмента
+     * @param pool      пул для хеширования
+     * @return дерево файла
+     * @throws IOException если файл не читается
+     */
+    static MerkleTree build(Path file, long size, int chunkSize, ExecutorService pool) throws IOException {
+        int count = Math.toIntExact(leafCount(size, chunkSize));
+        byte[][] leaves = new byte[count][];
+        int parts = Math.min(count, Runtime.getRuntime().availableProcessors());
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // Каждая задача читает свой непрерывный диапазон фрагментов
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int part = 0; part < parts; part++) {
+                int from = (int) ((long) count * part / parts);
+                int to = (int) ((long) count * (part + 1) / parts);
+                tasks.add(() -> {
+                    MessageDigest digest = newDigest();
+                    byte[] chunk = new byte[chunkSize];
+                    for (int leaf = from; leaf < to; leaf++) {
+                        long position = (long) leaf * chunkSize;
+                        int length = Multiplexer.readChunk(channel, chunk, position, size);
+                        leaves[leaf] = leafHash(digest, chunk, 0, length);
+                    }
+                    return null;
+                });
+            }
+            for (Future<Void> result : pool.invokeAll(tasks)) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Хеширование файла " + file + " прервано", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException cause) {
+                throw cause;
+            }
+            throw new IOException("Не удалось хешировать файл " + file, e.getCause());
+        }
+
+        MessageDigest digest = newDigest();
+        List<byte[][]> levels = new ArrayList<>();
+        byte[][] level = leaves;
+        levels.add(level);
+        while (level.length > 1) {
+            byte[][] next = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < next.length; i++) {
+                next[i] = 2 * i + 1 < level.length ? nodeHash(digest, level[2 * i], level[2 * i + 1]) : level[2 * i];
+            }
+            levels.add(next);
+            level = next;
+        }
+        return new MerkleTree(levels.toArray(new byte[0][][]));
+    }
+
+    /**
+     * @return количество листьев дерева файла; у пустого файла один лист
+     */
+    static long leafCount(long size, int chunkSize) {
+        return Math.max(1, (size + chunkSize - 1) / chunkSize);
+    }
+
+    byte[] root() {
+        return levels[levels.length - 1][0];
+    }
+
+    /**
+     * Возвращает доказательство листа: хеши соседних узлов снизу вверх
+     * (на уровнях, где у узла нет пары, хеш не добавляется).
+     *
+     * @param leaf номер листа
+     * @return хеши, записанные подряд
+     */
+    byte[] proof(int leaf) {
+        List<byte[]> siblings = new ArrayList<>();
+        int index = leaf;
+        for (int i = 0; i < levels.length - 1; i++) {
+            if ((index ^ 1) < levels[i].length) {
+                siblings.add(levels[i][index ^ 1]);
+            }
+            index >>= 1;
+        }
+        ByteBuffer proof = ByteBuffer.allocate(HASH_LENGTH * siblings.size());
+        siblings.forEach(proof::put);
+        return proof.array();
+    }
+
+    /**
+     * Проверяет фрагмент по корню дерева.
+     *
+     * @param root       корень дерева
+     * @param leafCount  количество листьев
+     * @param leaf       номер листа
+     * @param leafHash   хеш фрагмента (см. {@link #leafHash})
+     * @param proof      массив с доказательством
+     * @param offset     начало доказательства
+     * @param count      количество хешей в доказательстве
+     * @param digest     объект SHA-256
+     * @return true, если фрагмент принадлежит дереву с этим корнем
+     */
+    static boolean verify(byte[] root, long leafCount, long leaf, byte[] leafHash, byte[] proof, int offset,
+                          int count, MessageDigest digest) {
+        if (leaf < 0 || leaf >= leafCount || offset + (long) count * HASH_LENGTH > proof.length) {
+            return false;
+        }
+        byte[] hash = leafHash;
+        byte[] sibling = new byte[HASH_LENGTH];
+        long index = leaf;
+        int used = 0;
+        for (long width = leafCount; width > 1; width = (width + 1) / 2) {
+            if ((index ^ 1) < width) {
+                if (used == count) {
+                    return false;
+                }
+                System.arraycopy(proof, offset + used * HASH_LENGTH, sibling, 0, HASH_LENGTH);
+                used++;
+                hash = (index & 1) == 0 ? nodeHash(digest, hash, sibling) : nodeHash(digest, sibling, hash);
+            }
+            index >>= 1;
+        }
+        return used == count && MessageDigest.isEqual(hash, root);
+    }
+
+    static byte[] leafHash(MessageDigest digest, byte[] data, int offset, int length) {
+        digest.update(LEAF);
+        digest.update(data, offset, length);
+        return digest.digest();
+    }
+
+    /**
+     * @return данные, которые подписывает отправитель: корень вместе с размером файла
+     */
+    static byte[] signedData(long size, byte[] root) {
+        return ByteBuffer.allocate(12 + HASH_LENGTH).putInt(SIGNED_MAGIC).putLong(size).put(root).array();
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] nodeHash(MessageDigest digest, byte[] left, byte[] right) {
+        digest.update(NODE);
+        digest.update(left);
+        digest.update(right);
+        return digest.digest();
+    }
+}
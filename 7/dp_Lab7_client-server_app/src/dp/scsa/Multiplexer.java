@@ -0,0 +1,1546 @@
+package dp.scsa;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Передача нескольких файлов по одному соединению.
+ * Каждый файл передается в своем потоке (stream) кадрами фиксированного размера с CRC32,
+ * поэтому файлы идут одновременно. Отправитель держит в пути не больше окна
+ * неподтвержденных байтов; получатель подтверждает принятые данные и записывает
+ * подтвержденное смещение в индексный файл рядом с частично принятым файлом,
+ * поэтому прерванная передача того же файла продолжается с этого смещения.
+ * <p>
+ * Кадр: [тип: 1][поток: 4][длина: 4][данные]. Обмен для одного файла:
+ * OPEN (имя, размер, идентификатор передачи, сертификат подписавшего) -&gt;
+ * RESUME (смещение) &lt;- DATA (смещение, CRC, байты)... -&gt; ACK (смещение) &lt;-
+ * END (подпись) -&gt; DONE (результат проверки) &lt;-. После всех OPEN отправитель
+ * передает BATCH_END. Получатель отвечает RESUME и на поврежденный кадр,
+ * тогда отправитель повторяет передачу с указанного смещения.
+ * <p>
+ * Сжатие согласуется для каждого потока: отправитель предлагает способ в OPEN
+ * (по расширению и образцу из начала файла), получатель подтверждает его в RESUME.
+ * Кадр DATA несет способ сжатия; CRC считается по исходным данным.
+ * <p>
+ * В режиме подписи дерева Меркла (см. {@link MerkleTree}) отправитель до передачи хеширует
+ * фрагменты файла параллельно и передает в OPEN корень дерева с подписью, а каждый кадр DATA
+ * несет доказательство своего фрагмента. Получатель проверяет фрагменты параллельно в пуле
+ * и запрашивает повтор поврежденного фрагмента сразу, не дожидаясь конца файла.
+ * <p>
+ * Пакет для пересылки через сервер ({@link #sendBundle}, {@link #receiveBundle}) передается в одну
+ * сторону: отправитель не ждет RESUME и ACK, передача ограничена только потоком TCP до сервера.
+ * Получатель пропускает уже принятые ранее фрагменты, а файл с поврежденным кадром отклоняет в END,
+ * потому что запросить повтор не у кого.
+ */
+public final class Multiplexer {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    // Окно неподтвержденных данных потока и интервал подтверждений
+    private static final int WINDOW = 16 * CHUNK_SIZE;
+    private static final int ACK_INTERVAL = 4 * CHUNK_SIZE;
+    // [смещение: 8][CRC: 4][способ сжатия: 1][количество хешей доказательства: 1], затем доказательство
+    private static final int DATA_PREFIX = 14;
+    // Доказательство не длиннее высоты дерева из 2^31 листьев
+    private static final int MAX_PROOF = 32 * MerkleTree.HASH_LENGTH;
+    private static final int MAX_PAYLOAD = CHUNK_SIZE + DATA_PREFIX + MAX_PROOF;
+    // Сколько раз подряд фрагмент может не пройти проверку по дереву, прежде чем файл будет отклонен
+    private static final int MAX_CHUNK_RETRIES = 3;
+    // Буферы для асинхронной записи на диск, общие для всех потоков приема
+    private static final int WRITE_BUFFERS = 32;
+
+    // Типы кадров; OPEN, END и BATCH_END нужны серверу пересылки, чтобы найти конец пакета
+    static final int OPEN = 1;
+    static final int RESUME = 2;
+    static final int DATA = 3;
+    static final int ACK = 4;
+    static final int END = 5;
+    static final int DONE = 6;
+    static final int BATCH_END = 7;
+    private static final int FRAME_HEADER = 9;
+
+    // Режим подписи в OPEN: подпись всего потока данных или корня дерева Меркла
+    private static final int STREAM_SIGNATURE = 0;
+    private static final int MERKLE_SIGNATURE = 1;
+
+    // "MXI2" - сигнатура индексного файла:
+    // [сигнатура: 4][смещение: 8][размер: 8][имя][длина корня: 1][корень дерева Меркла]
+    private static final int INDEX_MAGIC = 0x4D584932;
+    private static final int INDEX_OFFSET_POSITION = 4;
+
+    // Пул для хеширования и проверки фрагментов в режиме дерева Меркла
+    private static final ExecutorService HASH_POOL = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), threadFactory("merkle-hash-"));
+    // Пул подтверждений: запись индекса и кадра ACK может блокироваться, поэтому она выполняется
+    // не в потоке завершения асинхронной записи файла
+    private static final ExecutorService ACK_POOL = Executors.newCachedThreadPool(threadFactory("multiplexer-ack-"));
+    private static final ThreadLocal<Worker> WORKERS = ThreadLocal.withInitial(Worker::new);
+
+    private Multiplexer() {
+    }
+
+    /**
+     * Отправляет файлы одновременно и ждет, пока получатель примет все файлы.
+     *
+     * @param socket сокет получателя
+     * @param files  отправляемые файлы
+     * @return отчеты о передаче файлов в порядке списка
+     * @throws IOException если соединение прервано или файл не читается
+     */
+    public static List<Report> send(Socket socket, List<Outgoing> files) throws IOException {
+        Frames frames = new Frames(socket, false);
+        List<OutgoingStream> streams = new ArrayList<>();
+        for (Outgoing file : files) {
+            OutgoingStream stream = new OutgoingStream(streams.size() + 1, file, frames, socket, false);
+            streams.add(stream);
+            frames.write(OPEN, stream.id, stream.openPayload());
+        }
+        frames.write(BATCH_END, 0, new byte[0]);
+        for (OutgoingStream stream : streams) {
+            stream.thread.start();
+        }
+
+        try {
+            int remaining = streams.size();
+            while (remaining > 0) {
+                int type = frames.read();
+                if (frames.stream < 1 || frames.stream > streams.size()) {
+                    throw new IOException("Кадр для неизвестного потока " + frames.stream);
+                }
+                if (sendFrame(type, streams.get(frames.stream - 1), frames.payload())) {
+                    remaining--;
+                }
+            }
+        } catch (IOException e) {
+            // Ошибка потока отправки закрывает сокет; сообщаем исходную причину
+            for (OutgoingStream stream : streams) {
+                stream.thread.interrupt();
+                if (stream.failure != null) {
+                    throw new IOException("Не удалось отправить файл " + stream.file.path, stream.failure);
+                }
+            }
+            throw e;
+        }
+
+        List<Report> reports = new ArrayList<>();
+        for (OutgoingStream stream : streams) {
+            try {
+                stream.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Отправка прервана", e);
+            }
+            reports.add(stream.report());
+        }
+        return reports;
+    }
+
+    /**
+     * Принимает файлы, пока отправитель не завершит все открытые потоки.
+     * Частично принятый файл хранится в папке как [идентификатор].part с индексом [идентификатор].idx;
+     * после проверки подписи он переименовывается в файл, указанный обработчиком.
+     *
+     * @param socket  сокет отправителя
+     * @param folder  папка для частично принятых файлов
+     * @param handler обработчик событий приема
+     * @throws IOException если соединение прервано или файл не записывается
+     */
+    public static void receive(Socket socket, Path folder, Handler handler) throws IOException {
+        receive(new Frames(socket, false), folder, handler);
+    }
+
+    /**
+     * Отправляет пакет файлов для пересылки через сервер: кадры передаются в одну сторону,
+     * без ответов получателей. Доставку получателям сообщает сервер после пакета.
+     *
+     * @param socket сокет сервера пересылки
+     * @param files  отправляемые файлы
+     * @return отчеты о передаче файлов в порядке списка (без результата проверки получателем)
+     * @throws IOException если соединение прервано или файл не читается
+     */
+    public static List<Report> sendBundle(Socket socket, List<Outgoing> files) throws IOException {
+        Frames frames = new Frames(socket, false);
+        List<OutgoingStream> streams = new ArrayList<>();
+        for (Outgoing file : files) {
+            OutgoingStream stream = new OutgoingStream(streams.size() + 1, file, frames, socket, true);
+            streams.add(stream);
+            frames.write(OPEN, stream.id, stream.openPayload());
+        }
+        frames.write(BATCH_END, 0, new byte[0]);
+        for (OutgoingStream stream : streams) {
+            stream.thread.start();
+        }
+
+        List<Report> reports = new ArrayList<>();
+        for (OutgoingStream stream : streams) {
+            try {
+                stream.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Отправка прервана", e);
+            }
+            if (stream.failure != null) {
+                throw new IOException("Не удалось отправить файл " + stream.file.path, stream.failure);
+            }
+            reports.add(stream.report());
+        }
+        return reports;
+    }
+
+    /**
+     * Принимает пакет файлов, пересылаемый сервером: ответные кадры не отправляются.
+     * Прерванный пакет продолжается при повторной отправке тех же файлов: уже принятые
+     * фрагменты пропускаются.
+     *
+     * @param socket  сокет сервера пересылки
+     * @param folder  папка для частично принятых файлов
+     * @param handler обработчик событий приема
+     * @throws IOException если соединение прервано или файл не записывается
+     */
+    public static void receiveBundle(Socket socket, Path folder, Handler handler) throws IOException {
+        receive(new Frames(socket, true), folder, handler);
+    }
+
+    /**
+     * Читает кадр целиком, не разбирая данные; используется сервером пересылки.
+     *
+     * @param in поток сокета отправителя
+     * @return кадр: заголовок и данные
+     * @throws IOException если соединение прервано или длина кадра недопустима
+     */
+    static byte[] readFrame(DataInputStream in) throws IOException {
+        byte[] header = new byte[FRAME_HEADER];
+        in.readFully(header);
+        int length = ByteBuffer.wrap(header).getInt(5);
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new IOException("Недопустимая длина кадра: " + length);
+        }
+        byte[] frame = Arrays.copyOf(header, FRAME_HEADER + length);
+        in.readFully(frame, FRAME_HEADER, length);
+        return frame;
+    }
+
+    private static void receive(Frames frames, Path folder, Handler handler) throws IOException {
+        WriteBuffers buffers = new WriteBuffers();
+        Map<Integer, IncomingStream> streams = new HashMap<>();
+        boolean batchEnd = false;
+        int finished = 0;
+
+        try {
+            while (!batchEnd || finished < streams.size()) {
+                int type = frames.read();
+                if (type == BATCH_END) {
+                    batchEnd = true;
+                    continue;
+                }
+                if (receiveFrame(type, frames, streams, folder, handler, buffers)) {
+                    finished++;
+                }
+            }
+        } finally {
+            for (IncomingStream stream : streams.values()) {
+                stream.close();
+            }
+        }
+    }
+
+    /**
+     * Обрабатывает управляющий кадр отправляемого файла.
+     *
+     * @return true, если получатель завершил прием файла (кадр DONE)
+     */
+    private static boolean sendFrame(int type, OutgoingStream stream, ByteBuffer payload) throws IOException {
+        int expected = switch (type) {
+            case RESUME -> 9;
+            case ACK -> 8;
+            default -> 1;
+        };
+        if (payload.remaining() != expected) {
+            throw new IOException("Недопустимая длина кадра " + type + ": " + payload.remaining());
+        }
+        switch (type) {
+            case RESUME -> stream.rewind(payload.getLong(), Compression.fromId(payload.get()));
+            case ACK -> stream.acknowledge(payload.getLong());
+            case DONE -> {
+                stream.finish(payload.get() != 0);
+                return true;
+            }
+            default -> throw new IOException("Неожиданный кадр " + type);
+        }
+        return false;
+    }
+
+    /**
+     * Обрабатывает кадр принимаемого файла (OPEN, DATA, END).
+     *
+     * @return true, если прием файла завершен
+     */
+    private static boolean receiveFrame(int type, Frames frames, Map<Integer, IncomingStream> streams, Path folder,
+                                        Handler handler, WriteBuffers buffers) throws IOException {
+        if (type == OPEN) {
+            if (streams.containsKey(frames.stream)) {
+                throw new IOException("Поток " + frames.stream + " уже открыт");
+            }
+            IncomingStream stream = IncomingStream.open(frames.stream, frames.payload(), folder, handler, buffers);
+            streams.put(frames.stream, stream);
+            frames.write(RESUME, stream.id, stream.resumePayload(stream.expected));
+            return false;
+        }
+
+        IncomingStream stream = streams.get(frames.stream);
+        if (stream == null) {
+            throw new IOException("Кадр для неизвестного потока " + frames.stream);
+        }
+        switch (type) {
+            case DATA -> stream.data(frames);
+            case END -> {
+                return stream.end(frames, handler);
+            }
+            default -> throw new IOException("Неожиданный кадр " + type);
+        }
+        return false;
+    }
+
+    private static byte[] longPayload(long value) {
+        return ByteBuffer.allocate(8).putLong(value).array();
+    }
+
+    private static ThreadFactory threadFactory(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Двунаправленное соединение с корреспондентом: документы отправляются и принимаются
+     * одновременно. Кадры обоих направлений читает один поток: RESUME, ACK и DONE относятся
+     * к отправляемым файлам, остальные - к принимаемым. Номера потоков у каждой стороны свои,
+     * поэтому пакеты отправки из разных потоков выполнения не мешают друг другу.
+     */
+    public static final class Duplex implements Closeable {
+        private final Socket socket;
+        private final Frames frames;
+        private final Path folder;
+        private final Handler handler;
+        private final WriteBuffers buffers = new WriteBuffers();
+        private final Map<Integer, OutgoingStream> outgoing = new ConcurrentHashMap<>();
+        private final AtomicInteger lastStream = new AtomicInteger();
+        private final Thread reader;
+        private volatile IOException failure;
+
+        /**
+         * Запускает прием документов по соединению.
+         *
+         * @param socket  сокет корреспондента
+         * @param folder  папка для принимаемых файлов
+         * @param handler обработчик событий приема
+         * @throws IOException если не удалось получить потоки сокета
+         */
+        public Duplex(Socket socket, Path folder, Handler handler) throws IOException {
+            this.socket = socket;
+            this.frames = new Frames(socket, false);
+            this.folder = folder;
+            this.handler = handler;
+            reader = new Thread(this::read, "duplex-" + socket.getRemoteSocketAddress());
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * Отправляет файлы одновременно и ждет, пока корреспондент примет их.
+         * Прием документов корреспондента при этом продолжается.
+         *
+         * @param files отправляемые файлы
+         * @return отчеты о передаче файлов в порядке списка
+         * @throws IOException если соединение прервано или файл не читается
+         */
+        public List<Report> send(List<Outgoing> files) throws IOException {
+            List<OutgoingStream> streams = new ArrayList<>();
+            try {
+                for (Outgoing file : files) {
+                    checkOpen();
+                    OutgoingStream stream = new OutgoingStream(lastStream.incrementAndGet(), file, frames, socket,
+                            false);
+                    byte[] open = stream.openPayload();
+                    // Поток регистрируется до OPEN: ответ RESUME может прийти сразу
+                    outgoing.put(stream.id, stream);
+                    streams.add(stream);
+                    frames.write(OPEN, stream.id, open);
+                }
+                for (OutgoingStream stream : streams) {
+                    stream.thread.start();
+                }
+                // Соединение могло прерваться до регистрации потоков
+                if (failure != null) {
+                    streams.forEach(stream -> stream.abort(failure));
+                }
+
+                List<Report> reports = new ArrayList<>();
+                for (OutgoingStream stream : streams) {
+                    stream.thread.join();
+                    if (stream.failure != null) {
+                        throw new IOException("Не удалось отправить файл " + stream.file.path, stream.failure);
+                    }
+                    reports.add(stream.report());
+                }
+                return reports;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Отправка прервана", e);
+            } finally {
+                for (OutgoingStream stream : streams) {
+                    outgoing.remove(stream.id);
+                }
+            }
+        }
+
+        /**
+         * @return true, пока соединение не закрыто
+         */
+        public boolean isOpen() {
+            return reader.isAlive();
+        }
+
+        /**
+         * Ждет закрытия соединения корреспондентом или {@link #close()}.
+         *
+         * @throws InterruptedException если ожидание прервано
+         */
+        public void awaitClose() throws InterruptedException {
+            reader.join();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+
+        private void checkOpen() throws IOException {
+            if (failure != null) {
+                throw new IOException("Соединение закрыто", failure);
+            }
+        }
+
+        private void read() {
+            Map<Integer, IncomingStream> incoming = new HashMap<>();
+            try {
+                while (true) {
+                    int type = frames.read();
+                    if (type == RESUME || type == ACK || type == DONE) {
+                        OutgoingStream stream = outgoing.get(frames.stream);
+                        if (stream == null) {
+                            throw new IOException("Кадр для неизвестного потока " + frames.stream);
+                        }
+                        sendFrame(type, stream, frames.payload());
+                    } else if (type != BATCH_END
+                            && receiveFrame(type, frames, incoming, folder, handler, buffers)) {
+                        incoming.remove(frames.stream);
+                    }
+                }
+            } catch (Throwable e) {
+                // Корреспондент закрыл соединение, оно прервано или кадр поврежден: в любом случае
+                // отправляющие потоки не должны ждать ответа, который уже не придет
+                failure = e instanceof IOException io ? io : new IOException("Поврежденный кадр корреспондента", e);
+                for (OutgoingStream stream : outgoing.values()) {
+                    stream.abort(failure);
+                }
+                if (e instanceof Error error) {
+                    throw error;
+                }
+            } finally {
+                for (IncomingStream stream : incoming.values()) {
+                    try {
+                        stream.close();
+                    } catch (IOException ignored) {
+                        // Частично принятый файл продолжится при следующем соединении
+                    }
+                }
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // Сокет уже закрыт
+                }
+            }
+        }
+    }
+
+    /**
+     * Отправляемый файл.
+     */
+    public static final class Outgoing {
+        private final Path path;
+        private final Signature signature;
+        private final byte[] signerCert;
+        private final Compression compression;
+        private final int level;
+        private final boolean merkle;
+
+        /**
+         * @param path        путь к файлу
+         * @param signature   объект подписи, инициализированный закрытым ключом, или null
+         * @param signerCert  сертификат подписавшего в DER (передается получателю для проверки) или null;
+         *                    файл без сертификата получатель отклоняет
+         * @param compression запрошенный способ сжатия
+         * @param level       уровень Deflate (для {@link Compression#DEFLATE})
+         * @param merkle      подписывать корень дерева Меркла вместо всего потока данных
+         */
+        public Outgoing(Path path, Signature signature, byte[] signerCert, Compression compression, int level,
+                        boolean merkle) {
+            this.path = path;
+            this.signature = signature;
+            this.signerCert = signerCert == null ? new byte[0] : signerCert;
+            this.compression = compression;
+            this.level = level;
+            this.merkle = merkle;
+        }
+    }
+
+    /**
+     * Отчет о передаче файла: принят ли файл, сколько байтов сэкономило сжатие
+     * и сколько процессорного времени заняла передача.
+     */
+    public static final class Report {
+        private final Path path;
+        private final boolean accepted;
+        private final Compression compression;
+        private final long dataBytes;
+        private final long wireBytes;
+        private final long cpuNanos;
+        private final long compressionCpuNanos;
+
+        private Report(Path path, boolean accepted, Compression compression, long dataBytes, long wireBytes,
+                       long cpuNanos, long compressionCpuNanos) {
+            this.path = path;
+            this.accepted = accepted;
+            this.compression = compression;
+            this.dataBytes = dataBytes;
+            this.wireBytes = wireBytes;
+            this.cpuNanos = cpuNanos;
+            this.compressionCpuNanos = compressionCpuNanos;
+        }
+
+        /**
+         * @return true, если получатель принял файл (подпись верна)
+         */
+        public boolean isAccepted() {
+            return accepted;
+        }
+
+        public Compression getCompression() {
+            return compression;
+        }
+
+        /**
+         * @return отправлено байтов файла (с повторами)
+         */
+        public long getDataBytes() {
+            return dataBytes;
+        }
+
+        /**
+         * @return отправлено байтов данных кадров DATA после сжатия
+         */
+        public long getWireBytes() {
+            return wireBytes;
+        }
+
+        /**
+         * @return процессорное время потока отправки (чтение, CRC, подпись, сжатие) в наносекундах
+         */
+        public long getCpuNanos() {
+            return cpuNanos;
+        }
+
+        /**
+         * @return процессорное время сжатия в наносекундах
+         */
+        public long getCompressionCpuNanos() {
+            return compressionCpuNanos;
+        }
+
+        @Override
+        public String toString() {
+            double saved = dataBytes == 0 ? 0 : 100.0 * (dataBytes - wireBytes) / dataBytes;
+            return String.format("%s: %d байт, передано %d (%s, экономия %.1f%%), ЦП %.0f мс, из них сжатие %.0f мс",
+                    path.getFileName(), dataBytes, wireBytes, compression, saved,
+                    cpuNanos / 1e6, compressionCpuNanos / 1e6);
+        }
+    }
+
+    /**
+     * Обработчик событий приема файлов.
+     */
+    public interface Handler {
+        /**
+         * Создает объект проверки подписи по сертификату подписавшего.
+         *
+         * @param signerCert сертификат в DER
+         * @return объект подписи, инициализированный открытым ключом
+         * @throws IOException если сертификату нельзя доверять
+         */
+        Signature createVerifier(byte[] signerCert) throws IOException;
+
+        /**
+         * Вызывается при открытии потока.
+         *
+         * @param fileName имя файла у отправителя
+         * @param size     размер файла
+         * @param offset   смещение, с которого продолжается прерванная передача (0 - новая передача)
+         * @return путь, под которым сохраняется принятый файл
+         */
+        Path started(String fileName, long size, long offset);
+
+        /**
+         * Вызывается после приема файла.
+         *
+         * @param fileName имя файла у отправителя
+         * @param file     путь к принятому файлу (файл с неверной подписью или без подписи удален)
+         * @param verified подпись верна; false, если подпись неверна или отправитель не передал сертификат
+         */
+        void completed(String fileName, Path file, boolean verified);
+    }
+
+    /**
+     * Чтение и запись кадров. Кадры читаются из небуферизованного потока ровно по длине,
+     * чтобы после окончания передачи в сокете не терялись данные следующего обмена.
+     */
+    private static final class Frames {
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final byte[] header = new byte[FRAME_HEADER];
+        private final byte[] buffer = new byte[MAX_PAYLOAD];
+        // Получатель пакета, пересылаемого сервером, не отправляет ответных кадров
+        private final boolean silent;
+        private int stream;
+        private int length;
+
+        private Frames(Socket socket, boolean silent) throws IOException {
+            this.silent = silent;
+            in = new DataInputStream(socket.getInputStream());
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), MAX_PAYLOAD + header.length));
+        }
+
+        /**
+         * Читает кадр; номер потока и данные доступны до чтения следующего кадра.
+         *
+         * @return тип кадра
+         */
+        private int read() throws IOException {
+            in.readFully(header);
+            ByteBuffer fields = ByteBuffer.wrap(header);
+            int type = fields.get();
+            stream = fields.getInt();
+            length = fields.getInt();
+            if (length < 0 || length > MAX_PAYLOAD) {
+                throw new IOException("Недопустимая длина кадра: " + length);
+            }
+            in.readFully(buffer, 0, length);
+            return type;
+        }
+
+        private ByteBuffer payload() {
+            return ByteBuffer.wrap(buffer, 0, length);
+        }
+
+        private void write(int type, int stream, byte[] payload) throws IOException {
+            write(type, stream, payload, null, 0);
+        }
+
+        /**
+         * Записывает кадр, данные которого - prefix и первые bodyLength байт body.
+         * Кадры разных потоков не перемешиваются.
+         */
+        private synchronized void write(int type, int stream, byte[] prefix, byte[] body, int bodyLength)
+                throws IOException {
+            if (silent) {
+                return;
+            }
+            out.writeByte(type);
+            out.writeInt(stream);
+            out.writeInt(prefix.length + bodyLength);
+            out.write(prefix);
+            if (body != null) {
+                out.write(body, 0, bodyLength);
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Поток отправки файла. Отдельный поток выполнения читает файл, обновляет подпись
+     * и отправляет кадры, пока окно не заполнено; управляющие кадры (RESUME, ACK, DONE)
+     * передает ему поток, читающий сокет.
+     */
+    private static final class OutgoingStream {
+        private final int id;
+        private final Outgoing file;
+        private final long size;
+        private final Frames frames;
+        private final Socket socket;
+        private final Thread thread;
+        // Передача в одну сторону: без окна и без ответа DONE
+        private final boolean oneWay;
+        // Способ сжатия, предложенный в OPEN, и способ, подтвержденный получателем
+        private Compression proposed = Compression.NONE;
+        private volatile Compression compression = Compression.NONE;
+        // Дерево Меркла файла в режиме подписи корня, иначе null
+        private MerkleTree tree;
+        private long dataBytes;
+        private long wireBytes;
+        private long cpuNanos;
+        private long compressionCpuNanos;
+        private long acknowledged;
+        // Смещение, с которого получатель просит продолжить передачу; -1 - запроса нет
+        private long rewindTo = -1;
+        private boolean done;
+        private volatile boolean accepted;
+        private volatile Exception failure;
+
+        private OutgoingStream(int id, Outgoing file, Frames frames, Socket socket, boolean oneWay)
+                throws IOException {
+            this.id = id;
+            this.file = file;
+            this.size = Files.size(file.path);
+            this.frames = frames;
+            this.socket = socket;
+            this.oneWay = oneWay;
+            thread = new Thread(this::run, "transfer-" + id);
+            thread.setDaemon(true);
+        }
+
+        /**
+         * Данные кадра OPEN: [имя][размер: 8][идентификатор передачи: 32][длина сертификата: 4][сертификат]
+         * [предлагаемый способ сжатия: 1][режим подписи: 1], в режиме дерева Меркла затем
+         * [корень: 32][длина подписи корня: 4][подпись корня].
+         * Идентификатор передачи зависит от имени, размера и времени изменения файла,
+         * поэтому повторная отправка того же файла продолжает прерванную передачу.
+         */
+        private byte[] openPayload() throws IOException {
+            String name = file.path.getFileName().toString();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream payload = new DataOutputStream(bytes);
+            payload.writeUTF(name);
+            payload.writeLong(size);
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                digest.update(name.getBytes(StandardCharsets.UTF_8));
+                digest.update(longPayload(size));
+                digest.update(longPayload(Files.getLastModifiedTime(file.path).toMillis()));
+                payload.write(digest.digest());
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+            payload.writeInt(file.signerCert.length);
+            payload.write(file.signerCert);
+            proposed = ChunkCodec.choose(file.path, file.compression, file.level);
+            payload.writeByte(proposed.ordinal());
+            if (oneWay) {
+                // Подтверждения способа сжатия не будет: получатель распаковывает кадр по его способу
+                compression = proposed;
+                rewindTo = 0;
+            }
+            if (file.merkle) {
+                tree = MerkleTree.build(file.path, size, CHUNK_SIZE, HASH_POOL);
+                byte[] rootSignature = new byte[0];
+                if (file.signature != null) {
+                    try {
+                        file.signature.update(MerkleTree.signedData(size, tree.root()));
+                        rootSignature = file.signature.sign();
+                    } catch (SignatureException e) {
+                        throw new IOException("Не удалось подписать файл " + name, e);
+                    }
+                }
+                payload.writeByte(MERKLE_SIGNATURE);
+                payload.write(tree.root());
+                payload.writeInt(rootSignature.length);
+                payload.write(rootSignature);
+            } else {
+                payload.writeByte(STREAM_SIGNATURE);
+            }
+            if (bytes.size() > MAX_PAYLOAD) {
+                throw new IOException("Слишком длинное имя файла или сертификат: " + name);
+            }
+            return bytes.toByteArray();
+        }
+
+        private synchronized void rewind(long offset, Compression accepted) throws IOException {
+            if (offset < 0 || offset > size) {
+                throw new IOException("Недопустимое смещение " + offset + " для потока " + id);
+            }
+            if (accepted != Compression.NONE && accepted != proposed) {
+                throw new IOException("Получатель выбрал непредложенный способ сжатия " + accepted);
+            }
+            compression = accepted;
+            rewindTo = offset;
+            acknowledged = Math.max(acknowledged, offset);
+            notifyAll();
+        }
+
+        private synchronized void acknowledge(long offset) {
+            acknowledged = Math.max(acknowledged, offset);
+            notifyAll();
+        }
+
+        private synchronized void finish(boolean accepted) {
+            this.accepted = accepted;
+            done = true;
+            notifyAll();
+        }
+
+        /**
+         * Завершает поток, если соединение прервано до ответа получателя.
+         */
+        private synchronized void abort(IOException cause) {
+            if (!done) {
+                failure = cause;
+                done = true;
+                notifyAll();
+            }
+        }
+
+        private Report report() {
+            return new Report(file.path, accepted, compression, dataBytes, wireBytes, cpuNanos, compressionCpuNanos);
+        }
+
+        /**
+         * Ждет, пока можно отправлять данные с указанного смещения.
+         *
+         * @param position смещение следующего кадра; size - все данные отправлены, -1 - передача не начата
+         * @return смещение, с которого продолжать, или -1, если передача завершена
+         */
+        private synchronized long await(long position) throws InterruptedException {
+            while (true) {
+                if (done) {
+                    return -1;
+                }
+                if (rewindTo >= 0) {
+                    long offset = rewindTo;
+                    rewindTo = -1;
+                    return offset;
+                }
+                if (position >= 0 && position < size && (oneWay || position - acknowledged < WINDOW)) {
+                    return position;
+                }
+                wait();
+            }
+        }
+
+        private void run() {
+            // Корень дерева Меркла подписан до начала передачи
+            Signature signature = tree == null ? file.signature : null;
+            long cpuStart = threadCpuTime();
+            try (FileChannel channel = FileChannel.open(file.path, StandardOpenOption.READ);
+                 ChunkCodec codec = new ChunkCodec(file.level)) {
+                byte[] chunk = new byte[CHUNK_SIZE];
+                byte[] compressed = new byte[CHUNK_SIZE];
+                CRC32 crc = new CRC32();
+                byte[] signed = null;
+
+                long position = await(-1);
+                // Подпись обновляется по данным до смещения, с которого продолжается передача
+                long signedUpTo = 0;
+                while (signature != null && signedUpTo < position) {
+                    int length = readChunk(channel, chunk, signedUpTo, position);
+                    signature.update(chunk, 0, length);
+                    signedUpTo += length;
+                }
+
+                while (position >= 0) {
+                    if (position < size) {
+                        int length = readChunk(channel, chunk, position, size);
+                        crc.reset();
+                        crc.update(chunk, 0, length);
+                        // Повторно отправляемые данные уже учтены в подписи
+                        if (signature != null && position == signedUpTo) {
+                            signature.update(chunk, 0, length);
+                            signedUpTo += length;
+                        }
+
+                        // Кадр отправляется без сжатия, если сжатие его не уменьшает
+                        Compression chunkCompression = compression;
+                        int compressedLength = -1;
+                        if (chunkCompression != Compression.NONE) {
+                            long compressionStart = threadCpuTime();
+                            compressedLength = codec.compress(chunkCompression, chunk, length, compressed);
+                            compressionCpuNanos += threadCpuTime() - compressionStart;
+                        }
+                        if (compressedLength < 0) {
+                            chunkCompression = Compression.NONE;
+                        }
+                        byte[] proof = tree == null ? new byte[0] : tree.proof((int) (position / CHUNK_SIZE));
+                        byte[] prefix = new byte[DATA_PREFIX + proof.length];
+                        ByteBuffer.wrap(prefix).putLong(position).putInt((int) crc.getValue())
+                                .put((byte) chunkCompression.ordinal())
+                                .put((byte) (proof.length / MerkleTree.HASH_LENGTH)).put(proof);
+                        if (compressedLength < 0) {
+                            frames.write(DATA, id, prefix, chunk, length);
+                        } else {
+                            frames.write(DATA, id, prefix, compressed, compressedLength);
+                        }
+                        dataBytes += length;
+                        wireBytes += compressedLength < 0 ? length : compressedLength;
+                        position += length;
+                        if (position < size) {
+                            position = await(position);
+                            continue;
+                        }
+                    }
+                    if (signed == null) {
+                        signed = signature == null ? new byte[0] : signature.sign();
+                    }
+                    frames.write(END, id, signed);
+                    position = oneWay ? -1 : await(size);
+                }
+            } catch (InterruptedException e) {
+                // Отправка прервана из-за ошибки соединения
+            } catch (IOException | SignatureException e) {
+                failure = e;
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // Сокет уже закрыт
+                }
+            }
+            cpuNanos = threadCpuTime() - cpuStart;
+        }
+    }
+
+    /**
+     * @return процессорное время текущего потока в наносекундах или 0, если JVM его не измеряет
+     */
+    private static long threadCpuTime() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : 0;
+    }
+
+    static int readChunk(FileChannel channel, byte[] chunk, long position, long limit) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, (int) Math.min(chunk.length, limit - position));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Файл изменился во время передачи");
+            }
+        }
+        return buffer.position();
+    }
+
+    /**
+     * Состояние потока пула проверки фрагментов: у каждого потока свои кодек, SHA-256 и буфер.
+     */
+    private static final class Worker {
+        private final ChunkCodec codec = new ChunkCodec(0);
+        private final MessageDigest digest = MerkleTree.newDigest();
+        private final byte[] plain = new byte[CHUNK_SIZE];
+    }
+
+    /**
+     * Пул буферов для записи на диск. Буферы прямые (direct), поэтому асинхронная запись
+     * не копирует данные еще раз; поток, которому не хватило буфера, ждет завершения записи.
+     */
+    private static final class WriteBuffers {
+        private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(WRITE_BUFFERS);
+
+        private WriteBuffers() {
+            for (int i = 0; i < WRITE_BUFFERS; i++) {
+                free.add(ByteBuffer.allocateDirect(CHUNK_SIZE));
+            }
+        }
+
+        /**
+         * Копирует фрагмент в свободный буфер.
+         *
+         * @return буфер, подготовленный для записи
+         */
+        private ByteBuffer fill(ByteBuffer chunk) throws IOException {
+            ByteBuffer buffer;
+            try {
+                buffer = free.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Прием прерван", e);
+            }
+            buffer.clear();
+            buffer.put(chunk).flip();
+            return buffer;
+        }
+
+        private void release(ByteBuffer buffer) {
+            free.add(buffer);
+        }
+    }
+
+    /**
+     * Поток приема файла: запись данных во временный файл, проверка подписи и индекс
+     * подтвержденного смещения. Прием из сокета и запись на диск идут одновременно:
+     * принятый фрагмент копируется в буфер из пула и записывается асинхронно
+     * (AsynchronousFileChannel), а подтверждается только непрерывная записанная часть файла.
+     * В режиме дерева Меркла фрагменты до записи проверяются задачами пула.
+     */
+    private static final class IncomingStream {
+        private final int id;
+        private final String name;
+        private final long size;
+        private final Path part;
+        private final Path index;
+        private final Path target;
+        private final AsynchronousFileChannel data;
+        private final FileChannel indexChannel;
+        private final WriteBuffers buffers;
+        private final Signature verifier;
+        private final Compression compression;
+        // Корень дерева Меркла в режиме подписи корня, иначе null
+        private final byte[] root;
+        private final ChunkCodec codec = new ChunkCodec(0);
+        private final byte[] plain = new byte[CHUNK_SIZE];
+        // После поврежденного кадра получатель ждет повтора со смещения received
+        private boolean resync;
+        private volatile boolean finished;
+
+        // Состояние, защищенное монитором потока: непрерывная записанная часть файла,
+        // смещение следующего принимаемого кадра, записанные фрагменты после expected,
+        // количество фрагментов в проверке или записи (и задачи подтверждения),
+        // повторы фрагмента, не прошедшего проверку
+        private long expected;
+        private long acknowledged;
+        private long received;
+        private final BitSet writtenChunks = new BitSet();
+        private int pending;
+        // Задача подтверждения потока поставлена в пул подтверждений
+        private boolean acking;
+        private long failedOffset = -1;
+        private int failures;
+        // Подпись корня неверна или фрагмент не прошел проверку после повторов
+        private boolean rejected;
+        private Throwable failure;
+
+        private IncomingStream(int id, String name, long size, Path part, Path index, Path target,
+                               AsynchronousFileChannel data, FileChannel indexChannel, WriteBuffers buffers,
+                               Signature verifier, Compression compression, byte[] root, boolean rejected,
+                               long offset) {
+            this.id = id;
+            this.name = name;
+            this.size = size;
+            this.part = part;
+            this.index = index;
+            this.target = target;
+            this.data = data;
+            this.indexChannel = indexChannel;
+            this.buffers = buffers;
+            this.verifier = verifier;
+            this.compression = compression;
+            this.root = root;
+            this.rejected = rejected;
+            // Отклоненному файлу сразу запрашивается конец передачи
+            this.expected = rejected ? size : offset;
+            this.acknowledged = expected;
+            this.received = expected;
+        }
+
+        private static IncomingStream open(int id, ByteBuffer payload, Path folder, Handler handler,
+                                           WriteBuffers buffers) throws IOException {
+            DataInputStream fields = new DataInputStream(
+                    new ByteArrayInputStream(payload.array(), payload.position(), payload.remaining()));
+            String name = fields.readUTF();
+            long size = fields.readLong();
+            byte[] transferId = new byte[32];
+            fields.readFully(transferId);
+            byte[] signerCert = readField(fields, name);
+            // Предложенный способ сжатия принимается, если он известен получателю
+            Compression compression;
+            try {
+                compression = Compression.fromId(fields.readUnsignedByte());
+            } catch (IOException e) {
+                compression = Compression.NONE;
+            }
+            byte[] root = null;
+            byte[] rootSignature = null;
+            if (fields.readUnsignedByte() == MERKLE_SIGNATURE) {
+                root = new byte[MerkleTree.HASH_LENGTH];
+                fields.readFully(root);
+                rootSignature = readField(fields, name);
+            }
+            if (size < 0) {
+                throw new IOException("Недопустимый размер файла " + name);
+            }
+
+            // Файл без сертификата отправителя проверить нечем: он отклоняется, как файл с неверной подписью
+            Signature verifier = signerCert.length == 0 ? null : handler.createVerifier(signerCert);
+            boolean rejected = verifier == null;
+            if (root != null && !rejected) {
+                try {
+                    verifier.update(MerkleTree.signedData(size, root));
+                    rejected = !verifier.verify(rootSignature);
+                } catch (SignatureException e) {
+                    rejected = true;
+                }
+            }
+            String base = HexFormat.of().formatHex(transferId);
+            Path part = folder.resolve(base + ".part");
+            Path index = folder.resolve(base + ".idx");
+            // Смещение берется из индекса: файл заранее расширен до полного размера.
+            // Принятая часть проверена по корню из индекса, поэтому с другим корнем прием начинается заново
+            long offset = Files.exists(part) ? Math.min(readIndex(index, name, size, root), Files.size(part)) : 0;
+
+            try (FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                // Неподтвержденные данные отбрасываются, проверка подписи обновляется по принятым ранее;
+                // фрагменты, принятые по дереву Меркла, проверены при записи
+                channel.truncate(offset);
+                if (verifier != null && root == null && offset > 0) {
+                    byte[] chunk = new byte[CHUNK_SIZE];
+                    for (long position = 0; position < offset; ) {
+                        int length = readChunk(channel, chunk, position, offset);
+                        verifier.update(chunk, 0, length);
+                        position += length;
+                    }
+                }
+                // Файл расширяется до объявленного размера записью последнего байта,
+                // чтобы запись фрагментов не увеличивала его размер каждый раз
+                if (offset < size) {
+                    channel.write(ByteBuffer.allocate(1), size - 1);
+                }
+            } catch (IOException | SignatureException e) {
+                throw new IOException("Не удалось продолжить прием файла " + name, e);
+            }
+            AsynchronousFileChannel data = AsynchronousFileChannel.open(part, StandardOpenOption.WRITE);
+            FileChannel indexChannel;
+            try {
+                indexChannel = writeIndex(index, name, size, root, offset);
+            } catch (IOException e) {
+                data.close();
+                throw e;
+            }
+            Path target = handler.started(name, size, offset);
+            return new IncomingStream(id, name, size, part, index, target, data, indexChannel, buffers, verifier,
+                    compression, root, rejected, offset);
+        }
+
+        /**
+         * Читает поле кадра OPEN с длиной; длина проверяется по остатку кадра до выделения массива.
+         */
+        private static byte[] readField(DataInputStream fields, String name) throws IOException {
+            int length = fields.readInt();
+            if (length < 0 || length > fields.available()) {
+                throw new IOException("Недопустимая длина поля в OPEN файла " + name + ": " + length);
+            }
+            byte[] field = new byte[length];
+            fields.readFully(field);
+            return field;
+        }
+
+        /**
+         * Данные кадра RESUME: [смещение: 8][принятый способ сжатия: 1].
+         */
+        private byte[] resumePayload(long offset) {
+            return ByteBuffer.allocate(9).putLong(offset).put((byte) compression.ordinal()).array();
+        }
+
+        private void data(Frames frames) throws IOException {
+            if (root != null) {
+                merkleData(frames);
+                return;
+            }
+            ByteBuffer payload = frames.payload();
+            long offset = dataOffset(payload);
+            synchronized (this) {
+                checkFailure();
+                if (finished || offset != received) {
+                    // Кадры, отправленные до запроса повтора
+                    return;
+                }
+            }
+
+            // Все кадры, кроме последнего, полного размера
+            int length = (int) Math.min(CHUNK_SIZE, size - offset);
+            ByteBuffer chunk = chunk(payload, length, codec, plain);
+            if (chunk == null) {
+                if (!resync) {
+                    resync = true;
+                    frames.write(RESUME, id, resumePayload(offset));
+                }
+                return;
+            }
+            resync = false;
+
+            if (verifier != null) {
+                try {
+                    verifier.update(chunk.array(), chunk.position(), chunk.remaining());
+                } catch (SignatureException e) {
+                    throw new IOException(e);
+                }
+            }
+            synchronized (this) {
+                received += length;
+                pending++;
+            }
+            write(frames, offset, chunk);
+        }
+
+        /**
+         * Передает кадр на проверку в пул. Кадры, пришедшие после запроса повтора
+         * и до повторного кадра, пропускаются.
+         */
+        private void merkleData(Frames frames) throws IOException {
+            ByteBuffer payload = frames.payload();
+            long offset = dataOffset(payload);
+            synchronized (this) {
+                checkFailure();
+                if (finished || rejected || offset != received) {
+                    return;
+                }
+                received += Math.min(CHUNK_SIZE, size - offset);
+                pending++;
+            }
+            byte[] frame = Arrays.copyOf(payload.array(), payload.limit());
+            HASH_POOL.execute(() -> verifyChunk(frames, offset, frame));
+        }
+
+        private long dataOffset(ByteBuffer payload) throws IOException {
+            if (payload.remaining() < DATA_PREFIX) {
+                throw new IOException("Недопустимая длина кадра DATA файла " + name + ": " + payload.remaining());
+            }
+            return payload.getLong();
+        }
+
+        /**
+         * Проверяет фрагмент по корню дерева и передает его на запись; выполняется в пуле.
+         */
+        private void verifyChunk(Frames frames, long offset, byte[] frame) {
+            Worker worker = WORKERS.get();
+            try {
+                int length = (int) Math.min(CHUNK_SIZE, size - offset);
+                ByteBuffer chunk = chunk(ByteBuffer.wrap(frame, 8, frame.length - 8), length, worker.codec,
+                        worker.plain);
+                boolean valid = chunk != null && MerkleTree.verify(root, MerkleTree.leafCount(size, CHUNK_SIZE),
+                        offset / CHUNK_SIZE,
+                        MerkleTree.leafHash(worker.digest, chunk.array(), chunk.position(), chunk.remaining()),
+                        frame, DATA_PREFIX, frame[DATA_PREFIX - 1] & 0xFF, worker.digest);
+                if (valid) {
+                    write(frames, offset, chunk);
+                } else {
+                    chunkRejected(frames, offset);
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Копирует фрагмент в буфер из пула и записывает его асинхронно.
+         */
+        private void write(Frames frames, long offset, ByteBuffer chunk) {
+            ByteBuffer buffer;
+            try {
+                buffer = buffers.fill(chunk);
+            } catch (IOException e) {
+                writeFailed(e);
+                return;
+            }
+            data.write(buffer, offset, offset, new CompletionHandler<>() {
+                @Override
+                public void completed(Integer written, Long position) {
+                    if (buffer.hasRemaining()) {
+                        data.write(buffer, position + written, position + written, this);
+                        return;
+                    }
+                    buffers.release(buffer);
+                    chunkWritten(frames, offset);
+                }
+
+                @Override
+                public void failed(Throwable e, Long position) {
+                    buffers.release(buffer);
+                    writeFailed(e);
+                }
+            });
+        }
+
+        /**
+         * Учитывает записанный фрагмент: продвигает непрерывную записанную часть файла
+         * и ставит ее подтверждение в пул подтверждений. Выполняется в потоке завершения
+         * асинхронной записи, поэтому не пишет ни в индекс, ни в сокет.
+         */
+        private synchronized void chunkWritten(Frames frames, long offset) {
+            pending--;
+            writtenChunks.set((int) (offset / CHUNK_SIZE));
+            if (offset == failedOffset) {
+                failures = 0;
+            }
+            while (expected < size && writtenChunks.get((int) (expected / CHUNK_SIZE))) {
+                expected += Math.min(CHUNK_SIZE, size - expected);
+            }
+            if (!acking && ackDue()) {
+                // Задача учитывается в pending, чтобы END не ответил DONE раньше последнего ACK
+                acking = true;
+                pending++;
+                ACK_POOL.execute(() -> acknowledge(frames));
+            }
+            notifyAll();
+        }
+
+        private boolean ackDue() {
+            return !finished && expected > acknowledged
+                    && (expected - acknowledged >= ACK_INTERVAL || expected == size);
+        }
+
+        /**
+         * Записывает в индекс и подтверждает непрерывную записанную часть файла, пока она
+         * продвигается; монитор потока при записи не удерживается.
+         */
+        private void acknowledge(Frames frames) {
+            try {
+                while (true) {
+                    long offset;
+                    synchronized (this) {
+                        if (!ackDue()) {
+                            acking = false;
+                            pending--;
+                            notifyAll();
+                            return;
+                        }
+                        offset = expected;
+                    }
+                    // Смещение записывается после данных, поэтому индекс не указывает дальше записанного
+                    indexChannel.write(ByteBuffer.wrap(longPayload(offset)), INDEX_OFFSET_POSITION);
+                    frames.write(ACK, id, longPayload(offset));
+                    synchronized (this) {
+                        acknowledged = offset;
+                    }
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    acking = false;
+                    pending--;
+                }
+                fail(e);
+            }
+        }
+
+        /**
+         * Запрашивает повтор с фрагмента, не прошедшего проверку по дереву Меркла.
+         * Кадр RESUME записывается без монитора потока, но до уменьшения pending.
+         */
+        private void chunkRejected(Frames frames, long offset) throws IOException {
+            long resume;
+            synchronized (this) {
+                if (!rejected) {
+                    failures = offset == failedOffset ? failures + 1 : 1;
+                    failedOffset = offset;
+                }
+                if (rejected) {
+                    resume = -1;
+                } else if (failures > MAX_CHUNK_RETRIES) {
+                    // Данные отправителя не совпадают с подписанным деревом: передача
+                    // остальных данных не нужна, отправитель сразу переходит к END
+                    rejected = true;
+                    resume = size;
+                } else if (offset < received) {
+                    received = offset;
+                    resume = offset;
+                } else {
+                    resume = -1;
+                }
+            }
+            try {
+                if (resume >= 0) {
+                    frames.write(RESUME, id, resumePayload(resume));
+                }
+            } finally {
+                synchronized (this) {
+                    pending--;
+                    notifyAll();
+                }
+            }
+        }
+
+        private synchronized void writeFailed(Throwable e) {
+            pending--;
+            fail(e);
+        }
+
+        /**
+         * Запоминает первую ошибку; она передается потоку, читающему сокет.
+         */
+        private synchronized void fail(Throwable e) {
+            if (failure == null) {
+                failure = e;
+            }
+            notifyAll();
+        }
+
+        private void checkFailure() throws IOException {
+            if (failure != null) {
+                throw new IOException("Не удалось записать файл " + name, failure);
+            }
+        }
+
+        /**
+         * Разбирает данные кадра DATA после смещения: пропускает доказательство,
+         * распаковывает данные и сверяет CRC.
+         *
+         * @return данные фрагмента или null, если кадр поврежден
+         */
+        private static ByteBuffer chunk(ByteBuffer payload, int length, ChunkCodec codec, byte[] plain) {
+            int checksum = payload.getInt();
+            int chunkCompression = payload.get();
+            int proofLength = (payload.get() & 0xFF) * MerkleTree.HASH_LENGTH;
+            if (proofLength > payload.remaining()) {
+                return null;
+            }
+            payload.position(payload.position() + proofLength);
+
+            ByteBuffer chunk = payload;
+            if (chunkCompression != Compression.NONE.ordinal()) {
+                try {
+                    codec.decompress(Compression.fromId(chunkCompression), payload.array(), payload.position(),
+                            payload.remaining(), plain, length);
+                    chunk = ByteBuffer.wrap(plain, 0, length);
+                } catch (IOException e) {
+                    return null;
+                }
+            }
+            CRC32 crc = new CRC32();
+            crc.update(chunk.array(), chunk.position(), chunk.remaining());
+            return (int) crc.getValue() == checksum && chunk.remaining() == length ? chunk : null;
+        }
+
+        /**
+         * Завершает прием файла: дожидается записи фрагментов, проверяет подпись,
+         * переименовывает или удаляет файл и отвечает DONE.
+         *
+         * @return true, если поток завершен; false, если кадр END пришел до повтора поврежденных данных
+         *         (в пакете, пересылаемом сервером, повтора не будет, и такой файл отклоняется)
+         */
+        private boolean end(Frames frames, Handler handler) throws IOException {
+            boolean incomplete;
+            synchronized (this) {
+                try {
+                    while (pending > 0) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Прием файла " + name + " прерван", e);
+                }
+                checkFailure();
+                incomplete = !rejected && expected != size;
+                if (finished || incomplete && !frames.silent) {
+                    return false;
+                }
+                finished = true;
+            }
+
+            boolean verified;
+            if (incomplete || rejected) {
+                verified = false;
+            } else if (root != null) {
+                // Подпись корня проверена в OPEN, фрагменты - при приеме
+                verified = true;
+            } else {
+                ByteBuffer payload = frames.payload();
+                byte[] signed = new byte[payload.remaining()];
+                payload.get(signed);
+                try {
+                    verified = verifier.verify(signed);
+                } catch (SignatureException e) {
+                    verified = false;
+                }
+            }
+            close();
+
+            if (verified) {
+                Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.deleteIfExists(part);
+            }
+            Files.deleteIfExists(index);
+            handler.completed(name, target, verified);
+
+            // Результат проверки: 1 - файл принят, 0 - подпись неверна
+            frames.write(DONE, id, new byte[]{(byte) (verified ? 1 : 0)});
+            return true;
+        }
+
+        private void close() throws IOException {
+            data.close();
+            indexChannel.close();
+            codec.close();
+        }
+
+        private static long readIndex(Path index, String name, long size, byte[] root) {
+            if (!Files.exists(index)) {
+                return 0;
+            }
+            try (DataInputStream inputStream = new DataInputStream(Files.newInputStream(index))) {
+                if (inputStream.readInt() != INDEX_MAGIC) {
+                    return 0;
+                }
+                long offset = inputStream.readLong();
+                boolean same = inputStream.readLong() == size && inputStream.readUTF().equals(name);
+                byte[] storedRoot = new byte[inputStream.readUnsignedByte()];
+                inputStream.readFully(storedRoot);
+                same = same && Arrays.equals(storedRoot, root == null ? new byte[0] : root);
+                return same && offset >= 0 && offset <= size ? offset : 0;
+            } catch (IOException e) {
+                // Поврежденный индекс - передача начинается заново
+                return 0;
+            }
+        }
+
+        private static FileChannel writeIndex(Path index, String name, long size, byte[] root, long offset)
+                throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream outputStream = new DataOutputStream(bytes);
+            outputStream.writeInt(INDEX_MAGIC);
+            outputStream.writeLong(offset);
+            outputStream.writeLong(size);
+            outputStream.writeUTF(name);
+            outputStream.writeByte(root == null ? 0 : root.length);
+            if (root != null) {
+                outputStream.write(root);
+            }
+
+            FileChannel channel = FileChannel.open(index, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            channel.write(ByteBuffer.wrap(bytes.toByteArray()), 0);
+            return channel;
+        }
+    }
+}
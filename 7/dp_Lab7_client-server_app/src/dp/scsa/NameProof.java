@@ -0,0 +1,109 @@
+package dp.scsa;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.Arrays;
+
+/**
+ * Подтверждение владения именем: подпись данных закрытым ключом листового сертификата,
+ * выданного УЦ на это имя. Подтверждение передается массивом {листовой сертификат,
+ * промежуточный сертификат, подпись} и используется сервером пересылки (подпись случайного
+ * вызова), УЦ при обновлении сертификата (подпись нового запроса) и точкой подключения
+ * корреспондентов. Подпись берется над контекстом и данными, поэтому подпись для одной цели
+ * нельзя выдать за подпись для другой или за подпись документа.
+ */
+final class NameProof {
+    // Длина случайного вызова
+    static final int NONCE_LENGTH = 32;
+    // Контексты подписи
+    static final String RELAY = "dp.scsa relay proof";
+    static final String RENEWAL = "dp.scsa renewal proof";
+    static final String PEER = "dp.scsa peer proof";
+    private static final String SIGNATURE_ALGORITHM = "SHA512withRSA";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private NameProof() {
+    }
+
+    /**
+     * @return случайный вызов
+     */
+    static byte[] newNonce() {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        RANDOM.nextBytes(nonce);
+        return nonce;
+    }
+
+    /**
+     * Создает подтверждение владения именем.
+     *
+     * @param context          контекст подписи
+     * @param data             подписываемые данные
+     * @param key              закрытый ключ листового сертификата
+     * @param leafCert         листовой сертификат в DER
+     * @param intermediateCert промежуточный сертификат, которым выдан листовой, в DER
+     * @return массив {листовой сертификат, промежуточный сертификат, подпись}
+     * @throws IOException если подпись не удалась
+     */
+    static byte[][] create(String context, byte[] data, PrivateKey key, byte[] leafCert, byte[] intermediateCert)
+            throws IOException {
+        try {
+            Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+            signature.initSign(key);
+            signature.update(signed(context, data));
+            return new byte[][]{leafCert, intermediateCert, signature.sign()};
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Не удалось подписать подтверждение имени", e);
+        }
+    }
+
+    /**
+     * Проверяет подтверждение владения именем: цепочку листового сертификата до корневого УЦ,
+     * имя владельца, отзыв и подпись данных листовым ключом.
+     *
+     * @param proof       массив {листовой сертификат, промежуточный сертификат, подпись}
+     * @param context     контекст подписи
+     * @param data        подписанные данные
+     * @param name        имя, владение которым подтверждается
+     * @param rootCert    доверенный корневой сертификат в DER
+     * @param cache       кэш проверенных сертификатов
+     * @param revocations список отзыва
+     * @return причина отказа или null, если подтверждение верно
+     */
+    static String verify(Object proof, String context, byte[] data, String name, byte[] rootCert,
+                         CertificateCache cache, RevocationList revocations) {
+        if (!(proof instanceof byte[][] parts) || parts.length != 3
+                || parts[0] == null || parts[1] == null || parts[2] == null) {
+            return "неверный формат подтверждения";
+        }
+        try {
+            cache.verifyChain(parts[0], parts[1], rootCert);
+            if (!Certificates.hasCommonName(parts[0], name)) {
+                return "сертификат выдан не на имя " + name;
+            }
+            if (revocations.isRevoked(cache.getSerial(parts[0]))) {
+                return "сертификат отозван";
+            }
+            Signature verifier = Signature.getInstance(SIGNATURE_ALGORITHM);
+            verifier.initVerify(cache.getPublicKey(parts[0]));
+            verifier.update(signed(context, data));
+            if (!verifier.verify(parts[2])) {
+                return "подпись неверна";
+            }
+            return null;
+        } catch (GeneralSecurityException | IOException | RuntimeException e) {
+            return "сертификат недействителен: " + e.getMessage();
+        }
+    }
+
+    private static byte[] signed(String context, byte[] data) {
+        byte[] prefix = (context + "\0").getBytes(StandardCharsets.US_ASCII);
+        byte[] result = Arrays.copyOf(prefix, prefix.length + data.length);
+        System.arraycopy(data, 0, result, prefix.length, data.length);
+        return result;
+    }
+}
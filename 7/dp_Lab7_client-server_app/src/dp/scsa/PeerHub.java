@@ -0,0 +1,176 @@
+package dp.scsa;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Точка подключения корреспондентов: принимает соединения многих корреспондентов одновременно.
+ * Подключения принимает один поток с селектором (Selector); у каждого корреспондента свое
+ * двунаправленное соединение ({@link Multiplexer.Duplex}) и своя папка received_files_[имя],
+ * поэтому документы одного корреспондента принимаются, пока другому отправляются свои.
+ * Корреспондент подтверждает свое имя подписью листового ключа до того, как соединение
+ * зарегистрировано под этим именем.
+ */
+public class PeerHub implements Closeable {
+    // Тайм-аут обмена именами и их подтверждения, чтобы зависшее подключение не занимало поток
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 10_000;
+
+    private final Client client;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final Map<String, Multiplexer.Duplex> peers = new ConcurrentHashMap<>();
+    private final ExecutorService sessions = Executors.newCachedThreadPool(sessionThreadFactory());
+
+    /**
+     * Конструктор класса PeerHub. Начинает принимать подключения корреспондентов.
+     *
+     * @param client клиент с выпущенным листовым сертификатом
+     * @param port   порт для подключения корреспондентов
+     * @throws IOException если порт занят
+     */
+    public PeerHub(Client client, int port) throws IOException {
+        this.client = client;
+        serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        selector = Selector.open();
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        Thread acceptor = new Thread(this::acceptLoop, "peer-hub-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Возвращает имена подключенных корреспондентов.
+     *
+     * @return имена корреспондентов
+     */
+    public Set<String> getPeers() {
+        return Set.copyOf(peers.keySet());
+    }
+
+    /**
+     * Отправляет документы корреспонденту; прием документов от всех корреспондентов
+     * при этом продолжается.
+     *
+     * @param peer      имя корреспондента
+     * @param filePaths пути к файлам документов
+     * @return false, если корреспондент не подключен
+     */
+    public boolean send(String peer, String... filePaths) {
+        Multiplexer.Duplex duplex = peers.get(peer);
+        if (duplex == null) {
+            return false;
+        }
+        client.sendFiles(duplex, filePaths);
+        return true;
+    }
+
+    /**
+     * Прекращает прием подключений и закрывает соединения со всеми корреспондентами.
+     */
+    @Override
+    public void close() throws IOException {
+        selector.close();
+        serverChannel.close();
+        for (Multiplexer.Duplex duplex : peers.values()) {
+            duplex.close();
+        }
+        sessions.shutdown();
+    }
+
+    private void acceptLoop() {
+        try {
+            while (true) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isAcceptable()) {
+                        continue;
+                    }
+                    SocketChannel channel = serverChannel.accept();
+                    if (channel != null) {
+                        // Документы передаются потоками сокета, поэтому канал переводится в блокирующий режим
+                        channel.configureBlocking(true);
+                        sessions.execute(() -> session(channel.socket()));
+                    }
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // Точка подключения закрыта
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Проверяет имя корреспондента ({@link Client#authenticatePeer}) и обслуживает соединение
+     * до его закрытия. Повторное подключение корреспондента, подтвердившего то же имя,
+     * заменяет прежнее соединение.
+     *
+     * @param socket объект Socket для обмена данными с корреспондентом
+     */
+    private void session(Socket socket) {
+        String peer;
+        Multiplexer.Duplex duplex;
+        try {
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            // Имя подтверждается до регистрации, иначе чужое подключение закрыло бы соединение корреспондента
+            peer = client.authenticatePeer(socket);
+            socket.setSoTimeout(0);
+            duplex = client.openDuplex(socket, peer);
+        } catch (IOException e) {
+            e.printStackTrace();
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Сокет уже закрыт
+            }
+            return;
+        }
+
+        Multiplexer.Duplex previous = peers.put(peer, duplex);
+        if (previous != null) {
+            try {
+                previous.close();
+            } catch (IOException ignored) {
+                // Прежнее соединение уже закрыто
+            }
+        }
+        System.out.println("Корреспондент подключен: " + peer);
+        try {
+            duplex.awaitClose();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (peers.remove(peer, duplex)) {
+            System.out.println("Корреспондент отключен: " + peer);
+        }
+    }
+
+    private static ThreadFactory sessionThreadFactory() {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "peer-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
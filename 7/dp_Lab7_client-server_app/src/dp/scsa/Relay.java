@@ -0,0 +1,357 @@
+package dp.scsa;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Пересылка пакетов подписанных документов через сервер. Получатель держит с сервером
+ * постоянное соединение и регистрируется в нем по имени, поэтому отправителю достаточно
+ * знать имена получателей, а не их адреса.
+ * <p>
+ * Запросы передаются первым объектом соединения вместо имени клиента:
+ * {@code {RECEIVE, имя}} - регистрация получателя, {@code {SEND, имя, получатель...}} - пакет,
+ * за которым после проверки имени следуют кадры {@link Multiplexer#sendBundle}. Перед каждым
+ * пакетом получатель получает имя отправителя (объект String), затем кадры пакета; после пакета
+ * отправитель получает массив результатов доставки в порядке имен получателей.
+ * <p>
+ * После запроса клиент доказывает, что имя принадлежит ему: сервер отправляет случайный вызов
+ * (byte[{@link NameProof#NONCE_LENGTH}]), клиент отвечает подтверждением {@link NameProof}
+ * (подписью вызова листовым ключом), а сервер отвечает строкой - пустой при успехе или причиной
+ * отказа. УЦ выдает имя только его владельцу (см. {@link Server}), поэтому без ключа клиента
+ * нельзя заменить его подключение получателя или отправить пакет от его имени.
+ * <p>
+ * Пакет не сохраняется на сервере целиком: каждый кадр читается из сокета отправителя
+ * и ставится в очереди получателей, а в сокет получателя его записывает отдельный поток,
+ * поэтому медленный получатель не задерживает запись остальным. Отправитель читается
+ * со скоростью самого быстрого получателя; получатель, отставший от него больше чем на
+ * {@link #MAX_LAG_BYTES}, отключается и продолжит прием при повторной отправке пакета
+ * (принятые фрагменты пропускаются). Подписи документов проверяют получатели, а не сервер.
+ * <p>
+ * Пока пакет пересылается, другие пакеты тем же получателям ждут, поэтому отправитель должен
+ * передавать пакет со средней скоростью не ниже {@link #MIN_SENDER_BYTES_PER_SECOND} (время
+ * ожидания медленных получателей не учитывается); иначе пересылка прерывается, а получатели
+ * пакета отключаются, так как их поток оборван посреди пакета.
+ */
+final class Relay {
+    static final String SEND = "relay-send";
+    static final String RECEIVE = "relay-receive";
+    // Наибольший объем кадров в очереди получателя, то есть его отставание от самого быстрого получателя
+    private static final int MAX_LAG_BYTES = 16 * 1024 * 1024;
+    // Тайм-аут чтения пакета: отправитель может хешировать большие файлы до первого кадра
+    private static final int SENDER_READ_TIMEOUT_MILLIS = 60_000;
+    // Наименьшая средняя скорость отправителя после начального тайм-аута: медленный отправитель
+    // не удерживает получателей сколь угодно долго
+    private static final long MIN_SENDER_BYTES_PER_SECOND = 64 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 128 * 1024;
+
+    private final Map<String, Recipient> recipients;
+    // Монитор ожидания места в очередях: потоки записи сообщают о каждом записанном кадре
+    private final Object progress = new Object();
+
+    /**
+     * @param recipients реестр подключенных получателей по именам
+     */
+    Relay(Map<String, Recipient> recipients) {
+        this.recipients = recipients;
+    }
+
+    /**
+     * Регистрирует получателя; соединение остается открытым, пока получатель его не закроет.
+     * Повторное подключение получателя с тем же именем заменяет прежнее соединение,
+     * поэтому вызывается только после проверки владения именем.
+     *
+     * @param name   имя получателя
+     * @param socket объект Socket для обмена данными с получателем
+     * @throws IOException если не удалось получить потоки сокета
+     */
+    void register(String name, Socket socket) throws IOException {
+        Recipient recipient = new Recipient(name, socket);
+        Recipient previous = recipients.put(name, recipient);
+        if (previous != null) {
+            previous.disconnect("подключение заменено новым");
+        }
+        recipient.writer.start();
+        recipient.watcher.start();
+    }
+
+    /**
+     * Пересылает пакет отправителя получателям и сообщает отправителю результат доставки.
+     *
+     * @param socket объект Socket для обмена данными с отправителем
+     * @param sender имя отправителя
+     * @param names  имена получателей
+     * @throws IOException если соединение с отправителем прервано
+     */
+    void forward(Socket socket, String sender, String[] names) throws IOException {
+        socket.setSoTimeout(SENDER_READ_TIMEOUT_MILLIS);
+        byte[] header = senderHeader(sender);
+        // Получатели захватываются в порядке имен, чтобы встречные пакеты не ждали друг друга бесконечно
+        Map<String, Recipient> targets = new TreeMap<>();
+        for (String name : names) {
+            Recipient recipient = recipients.get(name);
+            if (recipient != null) {
+                targets.put(name, recipient);
+            }
+        }
+
+        List<Recipient> locked = new ArrayList<>();
+        try {
+            for (Recipient recipient : targets.values()) {
+                // Пакеты одному получателю передаются по очереди, иначе их кадры перемешаются
+                recipient.lock.lock();
+                locked.add(recipient);
+                recipient.offer(header);
+            }
+            try {
+                forwardFrames(socket, new DataInputStream(socket.getInputStream()), targets.values());
+            } catch (IOException e) {
+                // Получатели уже получили начало пакета, и их поток нельзя продолжить следующим пакетом
+                for (Recipient recipient : targets.values()) {
+                    recipient.disconnect("отправитель прервал пакет: " + e.getMessage());
+                }
+                throw e;
+            }
+            for (Recipient recipient : targets.values()) {
+                recipient.awaitDrained();
+            }
+        } finally {
+            for (Recipient recipient : locked) {
+                recipient.lock.unlock();
+            }
+        }
+
+        String[] statuses = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            Recipient recipient = targets.get(names[i]);
+            statuses[i] = recipient == null ? "не подключен" : recipient.status();
+        }
+        ObjectOutputStream outputStream = new ObjectOutputStream(socket.getOutputStream());
+        outputStream.writeObject(statuses);
+        outputStream.flush();
+    }
+
+    /**
+     * Читает кадры пакета, пока отправитель не завершит все открытые потоки, и ставит их в очереди
+     * получателей. Один массив кадра разделяется всеми очередями. Тайм-аут чтения каждого кадра
+     * ограничен сроком, к которому отправитель должен его передать при наименьшей средней скорости.
+     */
+    private void forwardFrames(Socket socket, DataInputStream in, Collection<Recipient> targets) throws IOException {
+        int opened = 0;
+        int ended = 0;
+        boolean batchEnd = false;
+        long start = System.nanoTime();
+        // Время ожидания места в очередях получателей не засчитывается отправителю
+        long stalled = 0;
+        long received = 0;
+        while (!batchEnd || ended < opened) {
+            long deadline = start + stalled + TimeUnit.MILLISECONDS.toNanos(SENDER_READ_TIMEOUT_MILLIS)
+                    + received * (TimeUnit.SECONDS.toNanos(1) / MIN_SENDER_BYTES_PER_SECOND);
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                throw new IOException("отправитель передает пакет медленнее "
+                        + MIN_SENDER_BYTES_PER_SECOND + " байт/с");
+            }
+            socket.setSoTimeout((int) Math.min(SENDER_READ_TIMEOUT_MILLIS, remaining));
+            byte[] frame = Multiplexer.readFrame(in);
+            received += frame.length;
+            switch (frame[0]) {
+                case Multiplexer.OPEN -> opened++;
+                case Multiplexer.END -> ended++;
+                case Multiplexer.BATCH_END -> batchEnd = true;
+                default -> {
+                    // Кадры DATA пересылаются без разбора
+                }
+            }
+            long waitStart = System.nanoTime();
+            awaitSpace(targets);
+            stalled += System.nanoTime() - waitStart;
+            for (Recipient recipient : targets) {
+                recipient.offer(frame);
+            }
+        }
+    }
+
+    /**
+     * Ждет, пока в очереди хотя бы одного подключенного получателя не освободится место.
+     */
+    private void awaitSpace(Collection<Recipient> targets) throws IOException {
+        synchronized (progress) {
+            while (true) {
+                boolean connected = false;
+                for (Recipient recipient : targets) {
+                    if (recipient.isOpen()) {
+                        connected = true;
+                        if (recipient.queued.get() < MAX_LAG_BYTES) {
+                            return;
+                        }
+                    }
+                }
+                if (!connected) {
+                    // Кадры дочитываются, чтобы отправитель получил результаты доставки
+                    return;
+                }
+                try {
+                    progress.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Пересылка прервана", e);
+                }
+            }
+        }
+    }
+
+    private static byte[] senderHeader(String sender) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream outputStream = new ObjectOutputStream(bytes);
+        outputStream.writeObject(sender);
+        outputStream.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Подключенный получатель: очередь кадров и поток, записывающий их в сокет.
+     * Второй поток ждет закрытия соединения получателем, чтобы реестр не хранил отключенных.
+     */
+    final class Recipient {
+        private final String name;
+        private final Socket socket;
+        private final OutputStream out;
+        private final InputStream in;
+        private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+        private final AtomicLong queued = new AtomicLong();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Thread writer;
+        private final Thread watcher;
+        private volatile String failure;
+
+        private Recipient(String name, Socket socket) throws IOException {
+            this.name = name;
+            this.socket = socket;
+            out = new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_SIZE);
+            in = socket.getInputStream();
+            writer = new Thread(this::write, "relay-" + name);
+            writer.setDaemon(true);
+            watcher = new Thread(this::watch, "relay-watch-" + name);
+            watcher.setDaemon(true);
+        }
+
+        private boolean isOpen() {
+            return failure == null;
+        }
+
+        /**
+         * @return результат доставки пакета
+         */
+        private String status() {
+            String reason = failure;
+            return reason == null ? "доставлено" : "не доставлено: " + reason;
+        }
+
+        /**
+         * Ставит кадр в очередь; получатель, очередь которого заполнена, отключается.
+         */
+        private void offer(byte[] frame) {
+            if (!isOpen()) {
+                return;
+            }
+            if (queued.get() >= MAX_LAG_BYTES) {
+                disconnect("не успевает принимать, отставание больше " + MAX_LAG_BYTES + " байт");
+                return;
+            }
+            queued.addAndGet(frame.length);
+            queue.add(frame);
+        }
+
+        /**
+         * Ждет записи всех кадров из очереди в сокет или отключения получателя.
+         */
+        private void awaitDrained() throws IOException {
+            synchronized (progress) {
+                while (isOpen() && queued.get() > 0) {
+                    try {
+                        progress.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Пересылка прервана", e);
+                    }
+                }
+            }
+        }
+
+        private void write() {
+            try {
+                while (true) {
+                    byte[] frame = queue.take();
+                    out.write(frame);
+                    // Буфер сбрасывается, когда очередь пуста, а не после каждого кадра
+                    if (queue.isEmpty()) {
+                        out.flush();
+                    }
+                    queued.addAndGet(-frame.length);
+                    synchronized (progress) {
+                        progress.notifyAll();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Получатель отключен
+            } catch (IOException e) {
+                disconnect("соединение прервано: " + e.getMessage());
+            }
+        }
+
+        private void watch() {
+            try {
+                // Получатель ничего не передает серверу: чтение завершается при закрытии соединения
+                while (in.read() >= 0) {
+                    // Лишние данные игнорируются
+                }
+                disconnect("получатель закрыл соединение");
+            } catch (IOException e) {
+                disconnect("соединение прервано: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Закрывает соединение с получателем и удаляет его из реестра.
+         *
+         * @param reason причина отключения
+         */
+        private void disconnect(String reason) {
+            synchronized (this) {
+                if (failure != null) {
+                    return;
+                }
+                failure = reason;
+            }
+            recipients.remove(name, this);
+            writer.interrupt();
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Сокет уже закрыт
+            }
+            queue.clear();
+            queued.set(0);
+            synchronized (progress) {
+                progress.notifyAll();
+            }
+            System.out.println("Получатель отключен: " + name + " (" + reason + ")");
+        }
+    }
+}
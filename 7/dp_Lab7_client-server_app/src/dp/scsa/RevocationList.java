@@ -0,0 +1,328 @@
+package dp.scsa;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Список отзыва листовых сертификатов (аналог CRL). Серийные номера хранятся в отсортированном
+ * массиве long, перед которым стоит фильтр Блума, поэтому частый ответ "сертификат не отозван"
+ * стоит одной проверки слова фильтра, а двоичный поиск нужен только при срабатывании фильтра.
+ * Список и фильтр образуют неизменяемый снимок; изменение публикует новый снимок,
+ * поэтому проверка не берет блокировок.
+ * <p>
+ * УЦ ведет список в порядке отзыва; версия списка - количество отозванных номеров. Клиент хранит
+ * копию с версией и запрашивает только номера, отозванные после нее (дельту). Идентификатор списка
+ * меняется при перезапуске УЦ; клиенту с чужим идентификатором отправляется весь список.
+ * <p>
+ * Дельта подписывается вместе со случайным вызовом клиента из запроса, поэтому перехваченный
+ * ранее ответ (например, старый полный список без последних отзывов) не принимается повторно;
+ * кроме того, полный список того же УЦ не может уменьшить версию копии.
+ * <p>
+ * Серийный номер сертификата (не длиннее 64 бит) хранится как младшие 64 бита.
+ */
+public final class RevocationList {
+    static final String REQUEST = "revocations";
+    // "CRL1" - сигнатура файла списка
+    private static final int MAGIC = 0x43524C31;
+    // "CRL2" - сигнатура дельты с вызовом клиента
+    private static final int DELTA_MAGIC = 0x43524C32;
+    // Бит фильтра на номер: при 4 битах в слове из 64 ложные срабатывания - около 0,5%
+    private static final int BITS_PER_SERIAL = 16;
+    private static final int MIN_FILTER_WORDS = 16;
+    private static final int MAX_DELTA_SERIALS = 1 << 24;
+
+    private volatile Snapshot snapshot;
+    // Номера в порядке отзыва; ведется только у УЦ
+    private long[] log = new long[16];
+    private int logSize;
+
+    private RevocationList(Snapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Создает пустой список УЦ с новым идентификатором.
+     *
+     * @return список отзыва
+     */
+    public static RevocationList create() {
+        long listId;
+        do {
+            listId = new SecureRandom().nextLong();
+        } while (listId == 0);
+        return new RevocationList(new Snapshot(listId, new long[0]));
+    }
+
+    /**
+     * Загружает сохраненную копию списка; если файла нет или он поврежден, копия пуста
+     * и при обновлении будет загружена целиком.
+     *
+     * @param file файл списка
+     * @return список отзыва
+     */
+    public static RevocationList load(Path file) {
+        if (Files.exists(file)) {
+            try (DataInputStream inputStream = new DataInputStream(Files.newInputStream(file))) {
+                if (inputStream.readInt() == MAGIC) {
+                    long listId = inputStream.readLong();
+                    long[] serials = readSerials(inputStream, inputStream.readInt());
+                    Arrays.sort(serials);
+                    return new RevocationList(new Snapshot(listId, serials));
+                }
+            } catch (IOException e) {
+                // Поврежденная копия - список загружается заново
+            }
+        }
+        return new RevocationList(new Snapshot(0, new long[0]));
+    }
+
+    /**
+     * Проверяет, отозван ли сертификат; не обращается к сети.
+     *
+     * @param serial серийный номер сертификата
+     * @return true, если сертификат отозван
+     */
+    public boolean isRevoked(BigInteger serial) {
+        return isRevoked(serial.longValue());
+    }
+
+    public boolean isRevoked(long serial) {
+        return snapshot.contains(serial);
+    }
+
+    /**
+     * @return версия списка: количество отозванных номеров
+     */
+    public long getVersion() {
+        return snapshot.serials.length;
+    }
+
+    /**
+     * Отзывает сертификат (на стороне УЦ).
+     *
+     * @param serial серийный номер сертификата
+     * @return false, если сертификат уже отозван
+     */
+    public synchronized boolean revoke(BigInteger serial) {
+        long value = serial.longValue();
+        Snapshot current = snapshot;
+        if (current.contains(value)) {
+            return false;
+        }
+        if (logSize == log.length) {
+            log = Arrays.copyOf(log, log.length * 2);
+        }
+        log[logSize++] = value;
+        snapshot = current.with(new long[]{value});
+        return true;
+    }
+
+    /**
+     * @param nonce случайный вызов, который сервер вернет в подписанной дельте
+     * @return запрос дельты для сервера: {@link #REQUEST}, идентификатор и версия копии, вызов
+     */
+    String[] request(long nonce) {
+        Snapshot current = snapshot;
+        return new String[]{REQUEST, Long.toString(current.listId), Long.toString(current.serials.length),
+                Long.toString(nonce)};
+    }
+
+    /**
+     * Составляет дельту для копии клиента (на стороне УЦ):
+     * [сигнатура: 4][вызов: 8][идентификатор: 8][версия копии: 8][новая версия: 8][номера: 8 * n].
+     * Если копия относится к другому списку или новее, дельта содержит весь список.
+     *
+     * @param listId  идентификатор списка копии
+     * @param version версия копии
+     * @param nonce   вызов из запроса клиента
+     * @return данные дельты
+     */
+    synchronized byte[] delta(long listId, long version, long nonce) throws IOException {
+        Snapshot current = snapshot;
+        long from = listId == current.listId && version >= 0 && version <= logSize ? version : 0;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream outputStream = new DataOutputStream(bytes);
+        outputStream.writeInt(DELTA_MAGIC);
+        outputStream.writeLong(nonce);
+        outputStream.writeLong(current.listId);
+        outputStream.writeLong(from);
+        outputStream.writeLong(logSize);
+        for (int i = (int) from; i < logSize; i++) {
+            outputStream.writeLong(log[i]);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Применяет дельту к копии клиента. Подпись дельты проверяет вызывающий.
+     *
+     * @param delta данные дельты
+     * @param nonce вызов из запроса, на который получена дельта
+     * @return количество добавленных номеров
+     * @throws IOException если дельта повреждена, получена не на этот запрос, не продолжает копию
+     *                     или содержит более старую версию того же списка
+     */
+    synchronized int apply(byte[] delta, long nonce) throws IOException {
+        DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(delta));
+        if (inputStream.readInt() != DELTA_MAGIC) {
+            throw new IOException("Неверный формат дельты списка отзыва");
+        }
+        if (inputStream.readLong() != nonce) {
+            throw new IOException("Дельта списка отзыва получена не на этот запрос");
+        }
+        long listId = inputStream.readLong();
+        long from = inputStream.readLong();
+        long version = inputStream.readLong();
+        if (from < 0 || version < from || version - from > MAX_DELTA_SERIALS) {
+            throw new IOException("Неверная версия дельты списка отзыва");
+        }
+        long[] serials = readSerials(inputStream, (int) (version - from));
+
+        Snapshot current = snapshot;
+        if (from == 0 && listId == current.listId && version < current.serials.length) {
+            // Список УЦ только растет: более короткий список того же УЦ - старый ответ
+            throw new IOException("Список отзыва версии " + version + " старше копии версии "
+                    + current.serials.length);
+        } else if (from == 0) {
+            // Весь список (например, список УЦ заменен): копия заменяется целиком
+            Arrays.sort(serials);
+            snapshot = new Snapshot(listId, serials);
+        } else if (listId != current.listId || from != current.serials.length) {
+            throw new IOException("Дельта списка отзыва не продолжает версию " + current.serials.length);
+        } else if (serials.length > 0) {
+            snapshot = current.with(serials);
+        }
+        return serials.length;
+    }
+
+    /**
+     * Сохраняет копию списка; файл заменяется целиком.
+     *
+     * @param file файл списка
+     * @throws IOException если файл не записывается
+     */
+    void save(Path file) throws IOException {
+        Snapshot current = snapshot;
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream outputStream = new DataOutputStream(Files.newOutputStream(temporary))) {
+            outputStream.writeInt(MAGIC);
+            outputStream.writeLong(current.listId);
+            outputStream.writeInt(current.serials.length);
+            for (long serial : current.serials) {
+                outputStream.writeLong(serial);
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public String toString() {
+        Snapshot current = snapshot;
+        return String.format("список отзыва: %d номеров, фильтр %d байт", current.serials.length,
+                current.filter.length * 8L);
+    }
+
+    private static long[] readSerials(DataInputStream inputStream, int count) throws IOException {
+        if (count < 0 || count > MAX_DELTA_SERIALS) {
+            throw new IOException("Неверное количество номеров в списке отзыва: " + count);
+        }
+        long[] serials = new long[count];
+        for (int i = 0; i < count; i++) {
+            serials[i] = inputStream.readLong();
+        }
+        return serials;
+    }
+
+    /**
+     * Неизменяемый снимок: отсортированные номера и фильтр Блума по ним. Фильтр блочный:
+     * все биты номера лежат в одном слове long, поэтому проверка читает одно слово.
+     */
+    private static final class Snapshot {
+        private final long listId;
+        private final long[] serials;
+        private final long[] filter;
+
+        private Snapshot(long listId, long[] serials) {
+            this(listId, serials, new long[filterWords(serials.length)], serials);
+        }
+
+        /**
+         * @param filter фильтр, в который добавляются номера added
+         */
+        private Snapshot(long listId, long[] serials, long[] filter, long[] added) {
+            this.listId = listId;
+            this.serials = serials;
+            this.filter = filter;
+            for (long serial : added) {
+                long hash = mix(serial);
+                filter[word(hash)] |= bits(hash);
+            }
+        }
+
+        /**
+         * @return количество слов фильтра - степень двойки, чтобы номер слова выбирался маской
+         */
+        private static int filterWords(int count) {
+            long words = Math.max(MIN_FILTER_WORDS, (long) count * BITS_PER_SERIAL / 64);
+            return (int) Math.min(1 << 30, Long.highestOneBit(words - 1) << 1);
+        }
+
+        /**
+         * Возвращает снимок с добавленными номерами: номера сливаются с отсортированным массивом,
+         * а фильтр дополняется, пока его размер подходит для нового количества номеров.
+         *
+         * @param added номера, которых еще нет в снимке
+         */
+        private Snapshot with(long[] added) {
+            long[] sortedAdded = added.clone();
+            Arrays.sort(sortedAdded);
+            long[] merged = new long[serials.length + added.length];
+            int i = 0;
+            int j = 0;
+            for (int k = 0; k < merged.length; k++) {
+                merged[k] = j == sortedAdded.length || i < serials.length && serials[i] < sortedAdded[j]
+                        ? serials[i++] : sortedAdded[j++];
+            }
+            if (filterWords(merged.length) == filter.length) {
+                return new Snapshot(listId, merged, filter.clone(), sortedAdded);
+            }
+            return new Snapshot(listId, merged);
+        }
+
+        private boolean contains(long serial) {
+            long hash = mix(serial);
+            long bits = bits(hash);
+            return (filter[word(hash)] & bits) == bits && Arrays.binarySearch(serials, serial) >= 0;
+        }
+
+        private int word(long hash) {
+            return (int) hash & (filter.length - 1);
+        }
+
+        /**
+         * @return маска из 4 битов слова, выбранных старшими битами хеша
+         */
+        private static long bits(long hash) {
+            return 1L << (hash >>> 40) | 1L << (hash >>> 46) | 1L << (hash >>> 52) | 1L << (hash >>> 58);
+        }
+
+        /**
+         * Перемешивает биты номера (финализатор SplitMix64): последовательные номера
+         * попадают в разные слова фильтра.
+         */
+        private static long mix(long value) {
+            long hash = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+            hash = (hash ^ (hash >>> 27)) * 0x94D049BB133111EBL;
+            return hash ^ (hash >>> 31);
+        }
+    }
+}
@@ -3,173 +3,337 @@ package dp.scsa;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.math.BigInteger;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
-
-import static dp.scsa.Tools.*;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Класс, представляющий серверную часть приложения.
  * Сервер принимает подключение клиентов и обрабатывает их запросы.
  * Также сервер генерирует ключевые пары и сертификаты для корневого и промежуточного Удостоверяющих Центров (УЦ),
  * а также подписывает листовые сертификаты клиентов.
+ * <p>
+ * Промежуточный УЦ создается один раз при запуске и хранится как неизменяемый снимок;
+ * при плановой ротации новый УЦ атомарно подменяет снимок, поэтому выдача листового
+ * сертификата стоит одной подписи. Ключи, запросы и сертификаты существуют только в памяти
+ * (см. {@link Certificates}).
+ * <p>
+ * Имя клиента закрепляется за ним при первой выдаче сертификата: пока последний выданный на имя
+ * сертификат действителен и не отозван, новый сертификат на это имя выдается только по запросу,
+ * подписанному ключом действующего сертификата того же имени ({@link NameProof}). Поэтому
+ * сертификат на имя нельзя получить, не владея ключом этого имени, и подтверждение имени
+ * при пересылке не замкнуто само на себя. Отзыв сертификата освобождает имя.
+ * <p>
+ * Поток приема подключений только принимает сокеты и передает их ограниченному пулу
+ * обработчиков; если очередь пула заполнена, новое подключение сразу закрывается,
+ * поэтому всплеск запросов не исчерпывает память.
+ * <p>
+ * Кроме выдачи сертификатов сервер пересылает пакеты подписанных документов между
+ * подключенными клиентами по именам (см. {@link Relay}): клиентам не нужно знать адреса друг друга.
+ * <p>
+ * УЦ ведет список отзыва листовых сертификатов ({@link RevocationList}) и по запросу клиента
+ * отправляет только номера, отозванные после версии его копии; дельта подписывается корневым ключом
+ * вместе со случайным вызовом из запроса клиента.
  */
 public class Server {
-    private static String rootCert;
-    private static String intermediateCert;
-    private final HashMap<String, Socket> connectedClients;
+    // Срок действия выпускаемых сертификатов
+    private static final int CERT_DAYS = 3650;
+    private static final String REVOCATION_SIGNATURE_ALGORITHM = "SHA256withRSA";
+    // Количество обработчиков: выдача сертификата занимает процессор, а ожидание данных от клиента ограничено тайм-аутом
+    private static final int HANDLER_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    // Количество подключений, ожидающих свободного обработчика
+    private static final int HANDLER_QUEUE_CAPACITY = 4096;
+    private static final int ACCEPT_BACKLOG = 1024;
+    // Размер стека потока обработчика: глубокая рекурсия не нужна
+    private static final long HANDLER_STACK_SIZE = 256 * 1024;
+    // Тайм-аут чтения, чтобы медленный или зависший клиент не занимал обработчик
+    private static final int CLIENT_READ_TIMEOUT_MILLIS = 10_000;
+    private static final long REPORT_PERIOD_SECONDS = 10;
+    // Проверенные цепочки клиентов пересылки: повторное подключение не запускает CertPathValidator
+    private static final int CERT_CACHE_CAPACITY = 1024;
+    // Пул ключей УЦ: корневой и промежуточный ключи генерируются параллельно при запуске,
+    // а при ротации ключ нового промежуточного УЦ уже готов
+    private static final int KEY_POOL_WATERMARK = 2;
+    private static final int KEY_POOL_THREADS = 2;
+    private final KeyPairPool keyPairPool = new KeyPairPool(KEY_POOL_WATERMARK, KEY_POOL_THREADS);
+    private KeyPair rootKeyPair;
+    private byte[] rootCert;
+    // Клиенты, подключенные для получения пересылаемых документов, по именам
+    private final ConcurrentHashMap<String, Relay.Recipient> connectedClients;
+    private final Relay relay;
+    private final RevocationList revocations = RevocationList.create();
+    private final CertificateCache certificateCache = new CertificateCache(CERT_CACHE_CAPACITY);
+    // Последний выданный сертификат на каждое имя клиента
+    private final ConcurrentHashMap<String, NameBinding> nameBindings = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor clientExecutor = new ThreadPoolExecutor(HANDLER_THREADS, HANDLER_THREADS,
+            0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(HANDLER_QUEUE_CAPACITY), handlerThreadFactory());
+    private final LongAdder issuedCerts = new LongAdder();
+    private final LongAdder reusedCerts = new LongAdder();
+    private final LongAdder rejectedClients = new LongAdder();
+    private final LongAdder failedClients = new LongAdder();
+    private final LongAdder relayedBundles = new LongAdder();
+    private final AtomicReference<IntermediateAuthority> intermediateAuthority = new AtomicReference<>();
+    private int intermediateGeneration;
 
     /**
-     * Конструктор класса Server.
+     * Конструктор класса Server. Промежуточный УЦ создается один раз и не ротируется.
      *
      * @throws IOException если возникают проблемы при генерации ключевой пары и сертификатов
      */
     public Server() throws IOException {
-        connectedClients = new HashMap<>();
-        createFolder("--root");
-        createFolder("--inter");
-        createFolder("--leaf");
-        generateRootKeyPair();
-        generateRootCSR();
-        releaseSignedRootCert();
+        this(0);
     }
 
     /**
-     * Генерирует пару ключей для корневого УЦ.
+     * Конструктор класса Server с плановой ротацией промежуточного УЦ.
      *
-     * @throws IOException если возникают проблемы при выполнении команды
+     * @param rotationPeriodMinutes период ротации промежуточного УЦ в минутах; 0 - без ротации
+     * @throws IOException если возникают проблемы при генерации ключевой пары и сертификатов
      */
-    private static void generateRootKeyPair() throws IOException {
-        // Генерация ключевой пары корневого УЦ
-        ProcessBuilder builder = new ProcessBuilder("openssl",
-                "genpkey", "-algorithm", "RSA", "-out", "--root/root_keypair.pem");
-        executeCommand(builder);
+    public Server(long rotationPeriodMinutes) throws IOException {
+        connectedClients = new ConcurrentHashMap<>();
+        relay = new Relay(connectedClients);
+        releaseSignedRootCert();
+        rotateIntermediateAuthority();
+
+        if (rotationPeriodMinutes > 0) {
+            ScheduledExecutorService rotation = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "intermediate-ca-rotation");
+                thread.setDaemon(true);
+                return thread;
+            });
+            rotation.scheduleAtFixedRate(() -> {
+                try {
+                    rotateIntermediateAuthority();
+                } catch (IOException e) {
+                    // Клиенты продолжают получать сертификаты от прежнего промежуточного УЦ
+                    e.printStackTrace();
+                }
+            }, rotationPeriodMinutes, rotationPeriodMinutes, TimeUnit.MINUTES);
+        }
     }
 
     /**
-     * Создает запрос на сертификат (CSR) для корневого УЦ.
+     * Генерирует пару ключей и самоподписанный сертификат корневого УЦ.
      *
-     * @throws IOException если возникают проблемы при выполнении команды
+     * @throws IOException если возникают проблемы при выпуске сертификата
      */
-    private static void generateRootCSR() throws IOException {
-        // Создание запроса на сертификат (CSR) для корневого УЦ
-        ProcessBuilder builder = new ProcessBuilder("openssl",
-                "req", "-new", "-subj", "\"/CN=Root CA\"", "-addext",
-                "\"basicConstraints=critical,CA:TRUE\"", "-key",
-                "--root/root_keypair.pem", "-out", "--root/root_csr.pem");
-        executeCommand(builder);
+    private void releaseSignedRootCert() throws IOException {
+        try {
+            // Генерация ключевой пары корневого УЦ
+            rootKeyPair = keyPairPool.take();
+            // Создание запроса на сертификат (CSR) и подписание его собственным ключом корневого УЦ
+            byte[] rootCSR = Certificates.createCSR(rootKeyPair, "Root CA", true);
+            rootCert = Certificates.selfSign(rootCSR, rootKeyPair.getPrivate(), CERT_DAYS);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Не удалось выпустить сертификат корневого УЦ", e);
+        }
     }
 
     /**
-     * Подписывает сертификат корневым УЦ.
+     * Создает новый промежуточный УЦ и атомарно подменяет им текущий.
+     * Обработчики, начавшие выдачу до ротации, завершают ее со своим снимком.
      *
-     * @throws IOException если возникают проблемы при выполнении команды
+     * @throws IOException если возникают проблемы при выпуске сертификата
      */
-    private static void releaseSignedRootCert() throws IOException {
-        // Подписание сертификата корневым УЦ
-        ProcessBuilder builder = new ProcessBuilder("openssl",
-                "x509", "-req", "-in", "--root/root_csr.pem", "-copy_extensions",
-                "copyall", "-key", "--root/root_keypair.pem", "-days",
-                "3650", "-out", "--root/root_cert.pem");
-        executeCommand(builder);
+    private synchronized void rotateIntermediateAuthority() throws IOException {
+        try {
+            // Генерация ключевой пары промежуточного УЦ
+            KeyPair keyPair = keyPairPool.take();
+            // Создание запроса на сертификат (CSR) для промежуточного УЦ
+            byte[] csr = Certificates.createCSR(keyPair, "Intermediate CA", true);
+            // Подписание промежуточного сертификата корневым УЦ
+            byte[] cert = Certificates.issue(csr, rootCert, rootKeyPair.getPrivate(), CERT_DAYS);
 
-        rootCert = convertPEMFileToString("--root/root_cert.pem");
+            intermediateAuthority.set(new IntermediateAuthority(keyPair.getPrivate(), cert));
+            System.out.println("Промежуточный УЦ выпущен, поколение " + ++intermediateGeneration);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Не удалось выпустить сертификат промежуточного УЦ", e);
+        }
     }
 
     /**
-     * Генерирует пару ключей для промежуточного УЦ.
+     * Подписывает листовой сертификат промежуточным УЦ. Сертификат выдается на имя клиента,
+     * по которому он затем подключается к пересылке (см. {@link Relay}).
      *
-     * @throws IOException если возникают проблемы при выполнении команды
+     * @param authority  снимок промежуточного УЦ, которым подписывается сертификат
+     * @param leafCSR    CSR (Certificate Signing Request) листового сертификата в DER
+     * @param clientName имя клиента, на которое должен быть сделан запрос
+     * @return подписанный листовой сертификат в DER
+     * @throws IOException если запрос имеет неверный формат, его подпись неверна или он сделан на другое имя
      */
-    private static void generateIntermediateKeyPair() throws IOException {
-        // Генерация ключевой пары промежуточного УЦ
-        ProcessBuilder builder = new ProcessBuilder("openssl",
-                "genpkey", "-algorithm", "RSA", "-out", "--inter/intermediate_keypair.pem");
-        executeCommand(builder);
+    private static byte[] releaseSignedLeafCert(IntermediateAuthority authority, byte[] leafCSR, String clientName)
+            throws IOException {
+        try {
+            // Подписание листового сертификата промежуточным УЦ
+            return Certificates.issue(leafCSR, clientName, authority.cert, authority.key, CERT_DAYS);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Запрос на сертификат отклонен: " + e.getMessage(), e);
+        }
     }
 
     /**
-     * Создает запрос на сертификат (CSR) для промежуточного УЦ.
+     * Запускает сервер на указанном порту.
      *
-     * @throws IOException если возникают проблемы при выполнении команды
+     * @param serverPort порт сервера
      */
-    private static void generateIntermediateCSR() throws IOException {
-        // Создание запроса на сертификат (CSR) для промежуточного УЦ
-        ProcessBuilder builder = new ProcessBuilder("openssl",
-                "req", "-new", "-subj", "\"/CN=Intermediate CA\"", "-addext",
-                "\"basicConstraints=critical,CA:TRUE\"", "-key",
-                "--inter/intermediate_keypair.pem", "-out", "--inter/intermediate_csr.pem");
-        executeCommand(builder);
+    public void start(int serverPort) {
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "server-stats");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(new StatsReporter(), REPORT_PERIOD_SECONDS,
+                REPORT_PERIOD_SECONDS, TimeUnit.SECONDS);
+
+        try (ServerSocket serverSocket = new ServerSocket(serverPort, ACCEPT_BACKLOG)) {
+            System.out.println("Сервер запущен. Ожидание подключения клиентов...");
+
+            while (true) {
+                Socket socket = serverSocket.accept();
+
+                // Имя клиента читается обработчиком, чтобы медленный клиент не задерживал прием остальных
+                try {
+                    clientExecutor.execute(new ClientHandler(socket));
+                } catch (RejectedExecutionException e) {
+                    // Очередь обработчиков заполнена: клиент получит отказ сразу, а не по тайм-ауту
+                    rejectedClients.increment();
+                    socket.close();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            reporter.shutdownNow();
+            clientExecutor.shutdown();
+        }
     }
 
     /**
-     * Подписывает промежуточный сертификат корневым УЦ.
+     * Отзывает листовой сертификат. Клиенты узнают об отзыве при следующем обновлении списка отзыва.
      *
-     * @throws IOException если возникают проблемы при выполнении команды
+     * @param serial серийный номер сертификата
+     * @return false, если сертификат уже отозван
      */
-    private static void releaseSignedIntermediateCert() throws IOException {
-        // Подписание промежуточного сертификата корневым УЦ
-        ProcessBuilder builder = new ProcessBuilder("openssl",
-                "x509", "-req", "-in", "--inter/intermediate_csr.pem", "-copy_extensions",
-                "copyall", "-CA", "--root/root_cert.pem", "-CAkey", "--root/root_keypair.pem",
-                "-days", "3650", "-out", "--inter/intermediate_cert.pem");
-        executeCommand(builder);
-
-        intermediateCert = convertPEMFileToString("--inter/intermediate_cert.pem");
+    public boolean revoke(BigInteger serial) {
+        boolean revoked = revocations.revoke(serial);
+        if (revoked) {
+            System.out.println("Сертификат " + serial.toString(16) + " отозван, версия списка отзыва "
+                    + revocations.getVersion());
+        }
+        return revoked;
     }
 
     /**
-     * Подписывает листовой сертификат промежуточным УЦ.
+     * Возвращает количество подключений, ожидающих свободного обработчика.
      *
-     * @param leafCSR    CSR (Certificate Signing Request) листового сертификата
-     * @param clientHash хеш клиента
-     * @return подписанный листовой сертификат в виде строки
-     * @throws IOException если возникают проблемы при выполнении команды
+     * @return длина очереди обработчиков
      */
-    private static String releaseSignedLeafCert(String leafCSR, int clientHash) throws IOException {
-        String leafCSRFile = "--leaf/leaf_csr_" + clientHash + ".pem";
-        convertStringToPEMFile(leafCSR, leafCSRFile);
-        String leafCertFile = "--leaf/leaf_cert_" + clientHash + ".pem";
-
-        // Подписание листового сертификата промежуточным УЦ
-        ProcessBuilder builder = new ProcessBuilder("openssl",
-                "x509", "-req", "-in", leafCSRFile, "-copy_extensions",
-                "copyall", "-CA", "--inter/intermediate_cert.pem", "-CAkey",
-                "--inter/intermediate_keypair.pem", "-days", "3650",
-                "-out", leafCertFile);
-        executeCommand(builder);
-
-        return convertPEMFileToString(leafCertFile);
+    public int getQueueDepth() {
+        return clientExecutor.getQueue().size();
     }
 
     /**
-     * Запускает сервер на указанном порту.
+     * Получает запрос клиента: имя клиента для выдачи сертификата или запрос пересылки.
      *
-     * @param serverPort порт сервера
+     * @param socket объект Socket для обмена данными с клиентом
+     * @return имя клиента (String) или запрос пересылки (String[])
+     * @throws IOException            если возникают проблемы при обмене данными
+     * @throws ClassNotFoundException если класс запроса не найден
      */
-    public void start(int serverPort) {
-        try {
-            ServerSocket serverSocket = new ServerSocket(serverPort);
-            System.out.println("Сервер запущен. Ожидание подключения клиентов...");
-
-            while (true) {
-                Socket socket = serverSocket.accept();
+    private Object receiveRequest(Socket socket) throws IOException, ClassNotFoundException {
+        ObjectInputStream inputStream = new ObjectInputStream(socket.getInputStream());
+        return inputStream.readObject();
+    }
 
-                ObjectInputStream inputStream = new ObjectInputStream(socket.getInputStream());
-                String clientName = (String) inputStream.readObject();
-                System.out.println("Подключено клиент: " + clientName + ", " + socket.getInetAddress().getHostAddress());
+    /**
+     * Обрабатывает запрос пересылки или списка отзыва: регистрирует получателя, пересылает пакет
+     * отправителя или отправляет дельту списка отзыва. Перед пересылкой клиент доказывает владение
+     * ключом сертификата, выданного на имя из запроса.
+     *
+     * @param socket  объект Socket для обмена данными с клиентом
+     * @param request запрос: {@link Relay#RECEIVE} и имя, {@link Relay#SEND}, имя и имена получателей
+     *                или {@link RevocationList#REQUEST}, идентификатор и версия копии списка и вызов клиента
+     * @return true, если соединение осталось открытым для получателя
+     * @throws IOException если запрос неверен или соединение прервано
+     */
+    private boolean handleCommand(Socket socket, String[] request) throws IOException {
+        if (request.length == 4 && RevocationList.REQUEST.equals(request[0])) {
+            sendRevocations(socket, Long.parseLong(request[1]), Long.parseLong(request[2]),
+                    Long.parseLong(request[3]));
+            return false;
+        }
+        if (request.length < 2 || !Tools.isValidName(request[1])) {
+            throw new IOException("Недопустимый запрос пересылки");
+        }
+        String clientName = request[1];
+        switch (request[0]) {
+            case Relay.RECEIVE -> {
+                // Без доказательства владения именем действующее подключение получателя не заменяется
+                authenticate(socket, clientName);
+                // Получатель ждет пакетов сколь угодно долго
+                socket.setSoTimeout(0);
+                relay.register(clientName, socket);
+                System.out.println("Подключен получатель: " + clientName + ", "
+                        + socket.getInetAddress().getHostAddress());
+                return true;
+            }
+            case Relay.SEND -> {
+                authenticate(socket, clientName);
+                String[] recipients = Arrays.copyOfRange(request, 2, request.length);
+                System.out.println("Пересылка пакета от " + clientName + " для " + String.join(", ", recipients));
+                relay.forward(socket, clientName, recipients);
+                relayedBundles.increment();
+                return false;
+            }
+            default -> throw new IOException("Неизвестный запрос пересылки: " + request[0]);
+        }
+    }
 
-                connectedClients.put(clientName, socket);
+    /**
+     * Проверяет, что клиент пересылки владеет именем из запроса: отправляет случайный вызов и
+     * проверяет его подпись листовым ключом клиента (см. {@link Relay}). Результат сообщается клиенту.
+     *
+     * @param socket     объект Socket для обмена данными с клиентом
+     * @param clientName имя клиента из запроса
+     * @throws IOException если проверка не пройдена или соединение прервано
+     */
+    private void authenticate(Socket socket, String clientName) throws IOException {
+        byte[] nonce = NameProof.newNonce();
+        ObjectOutputStream outputStream = new ObjectOutputStream(socket.getOutputStream());
+        outputStream.writeObject(nonce);
+        outputStream.flush();
 
-                // Создание и запуск нового потока для обработки клиента
-                Thread clientThread = new Thread(new ClientHandler(socket, clientName));
-                clientThread.start();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+        Object proof;
+        try {
+            proof = new ObjectInputStream(socket.getInputStream()).readObject();
         } catch (ClassNotFoundException e) {
-            throw new RuntimeException(e);
+            throw new IOException("Неверный формат подтверждения имени", e);
+        }
+        String failure = NameProof.verify(proof, NameProof.RELAY, nonce, clientName, rootCert,
+                certificateCache, revocations);
+
+        outputStream = new ObjectOutputStream(socket.getOutputStream());
+        outputStream.writeObject(failure == null ? "" : failure);
+        outputStream.flush();
+        if (failure != null) {
+            throw new IOException("Клиент не подтвердил имя " + clientName + ": " + failure);
         }
     }
 
@@ -182,70 +346,244 @@ public class Server {
      * @throws ClassNotFoundException если класс сертификатов не найден
      */
     private void handleClient(Socket socket, String clientName) throws IOException, ClassNotFoundException {
-        int clientHash = clientName.hashCode();
+        // Снимок читается один раз, чтобы листовой сертификат и цепочка относились к одному поколению УЦ
+        IntermediateAuthority authority = intermediateAuthority.get();
+        sendChain(socket, authority);
 
-        generateIntermediateKeyPair();
-        generateIntermediateCSR();
-        releaseSignedIntermediateCert();
-
-        String leafCSR = receiveLeafCSR(socket);
-        String leafCert = releaseSignedLeafCert(leafCSR, clientHash);
-        sendCertPack(socket, leafCert);
+        byte[][] leafRequest = receiveLeafRequest(socket);
+        if (leafRequest.length == 0) {
+            // Сохраненный у клиента сертификат выдан текущей цепочкой и еще действителен
+            reusedCerts.increment();
+            socket.close();
+            return;
+        }
+        byte[] leafCert;
+        try {
+            leafCert = issueBoundLeafCert(authority, clientName, leafRequest);
+        } catch (IOException e) {
+            // Клиент получает причину отказа вместо набора сертификатов
+            ObjectOutputStream outputStream = new ObjectOutputStream(socket.getOutputStream());
+            outputStream.writeObject(e.getMessage());
+            outputStream.flush();
+            throw e;
+        }
+        sendCertPack(socket, authority, leafCert);
+        issuedCerts.increment();
+        System.out.println("Выдан сертификат клиенту " + clientName + ", серийный номер "
+                + Certificates.serialOf(leafCert).toString(16));
         socket.close();
     }
 
     /**
-     * Получает сертификат (CSR) для листового сертификата от клиента.
+     * Выдает листовой сертификат с учетом закрепления имени. Если на имя уже выдан действующий
+     * сертификат, запрос должен сопровождаться подписью CSR ключом действующего сертификата того же
+     * имени. Новый сертификат закрепляется за именем сравнением с прежней записью, поэтому из двух
+     * одновременных первых запросов на одно имя сертификат получает только один.
+     *
+     * @param authority   снимок промежуточного УЦ
+     * @param clientName  имя клиента
+     * @param leafRequest {CSR} или {CSR, листовой сертификат, промежуточный сертификат, подпись CSR}
+     * @return подписанный листовой сертификат в DER
+     * @throws IOException если запрос неверен или имя закреплено за другим ключом
+     */
+    private byte[] issueBoundLeafCert(IntermediateAuthority authority, String clientName, byte[][] leafRequest)
+            throws IOException {
+        if (leafRequest.length != 1 && leafRequest.length != 4 || leafRequest[0] == null) {
+            throw new IOException("Неверный формат запроса на сертификат");
+        }
+        byte[] leafCSR = leafRequest[0];
+        NameBinding binding = nameBindings.get(clientName);
+        boolean bound = binding != null && binding.notAfter > System.currentTimeMillis()
+                && !revocations.isRevoked(binding.serial);
+        if (bound) {
+            String failure = leafRequest.length == 1 ? "нет подписи действующим сертификатом"
+                    : NameProof.verify(Arrays.copyOfRange(leafRequest, 1, 4), NameProof.RENEWAL, leafCSR,
+                    clientName, rootCert, certificateCache, revocations);
+            if (failure != null) {
+                throw new IOException("Имя " + clientName + " закреплено за другим ключом: " + failure);
+            }
+        }
+
+        byte[] leafCert = releaseSignedLeafCert(authority, leafCSR, clientName);
+        NameBinding issued;
+        try {
+            issued = new NameBinding(certificateCache.getSerial(leafCert),
+                    System.currentTimeMillis() + TimeUnit.DAYS.toMillis(CERT_DAYS));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Не удалось разобрать выданный сертификат", e);
+        }
+        boolean recorded = binding == null ? nameBindings.putIfAbsent(clientName, issued) == null
+                : nameBindings.replace(clientName, binding, issued);
+        if (!recorded) {
+            throw new IOException("Имя " + clientName + " одновременно закреплено другим запросом");
+        }
+        return leafCert;
+    }
+
+    /**
+     * Отправляет клиенту номера, отозванные после версии его копии списка, с подписью корневого УЦ.
+     * Вызов клиента входит в подписанные данные, поэтому ответ нельзя воспроизвести позже.
+     *
+     * @param socket  объект Socket для обмена данными с клиентом
+     * @param listId  идентификатор списка копии клиента
+     * @param version версия копии клиента
+     * @param nonce   вызов клиента
+     * @throws IOException если возникают проблемы при обмене данными
+     */
+    private void sendRevocations(Socket socket, long listId, long version, long nonce) throws IOException {
+        byte[] delta = revocations.delta(listId, version, nonce);
+        byte[] signature;
+        try {
+            Signature signer = Signature.getInstance(REVOCATION_SIGNATURE_ALGORITHM);
+            signer.initSign(rootKeyPair.getPrivate());
+            signer.update(delta);
+            signature = signer.sign();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Не удалось подписать список отзыва", e);
+        }
+        ObjectOutputStream outputStream = new ObjectOutputStream(socket.getOutputStream());
+        outputStream.writeObject(new byte[][]{delta, signature});
+        outputStream.flush();
+    }
+
+    /**
+     * Отправляет клиенту текущую цепочку УЦ, чтобы он мог решить, нужен ли ему новый сертификат.
+     *
+     * @param socket    объект Socket для обмена данными с клиентом
+     * @param authority снимок промежуточного УЦ
+     * @throws IOException если возникают проблемы при обмене данными
+     */
+    private void sendChain(Socket socket, IntermediateAuthority authority) throws IOException {
+        ObjectOutputStream outputStream = new ObjectOutputStream(socket.getOutputStream());
+        outputStream.writeObject(new byte[][]{rootCert, authority.cert});
+    }
+
+    /**
+     * Получает запрос на листовой сертификат от клиента.
      *
      * @param socket объект Socket для обмена данными с клиентом
-     * @return сертификат (CSR) в виде строки
+     * @return {CSR в DER} или {CSR, подтверждение {@link NameProof#RENEWAL}}; пустой массив,
+     * если клиенту не нужен новый сертификат
      * @throws IOException            если возникают проблемы при обмене данными
-     * @throws ClassNotFoundException если класс сертификата не найден
+     * @throws ClassNotFoundException если класс запроса не найден
      */
-    private String receiveLeafCSR(Socket socket) throws IOException, ClassNotFoundException {
+    private byte[][] receiveLeafRequest(Socket socket) throws IOException, ClassNotFoundException {
         // Получение сертификата (CSR) для листового сертификата
         ObjectInputStream inputStream = new ObjectInputStream(socket.getInputStream());
-        return (String) inputStream.readObject();
+        return (byte[][]) inputStream.readObject();
     }
 
     /**
      * Отправляет набор сертификатов клиенту для верификации.
      *
-     * @param socket   объект Socket для обмена данными с клиентом
-     * @param leafCert сертификат листового узла
+     * @param socket    объект Socket для обмена данными с клиентом
+     * @param authority снимок промежуточного УЦ, подписавшего листовой сертификат
+     * @param leafCert  сертификат листового узла в DER
      * @throws IOException если возникают проблемы при обмене данными
      */
-    private void sendCertPack(Socket socket, String leafCert) throws IOException {
+    private void sendCertPack(Socket socket, IntermediateAuthority authority, byte[] leafCert) throws IOException {
         // Отправка набора сертификатов клиенту для верификации
         ObjectOutputStream outputStream = new ObjectOutputStream(socket.getOutputStream());
-        String[] certs = new String[3];
+        byte[][] certs = new byte[3][];
         certs[0] = rootCert;
-        certs[1] = intermediateCert;
+        certs[1] = authority.cert;
         certs[2] = leafCert;
         outputStream.writeObject(certs);
     }
 
     /**
-     * Внутренний класс для обработки клиентов в отдельных потоках.
+     * Закрепление имени: серийный номер последнего выданного на имя сертификата и срок его действия.
+     */
+    private static final class NameBinding {
+        private final long serial;
+        private final long notAfter;
+
+        private NameBinding(long serial, long notAfter) {
+            this.serial = serial;
+            this.notAfter = notAfter;
+        }
+    }
+
+    /**
+     * Неизменяемый снимок промежуточного УЦ: закрытый ключ и сертификат в DER.
+     */
+    private static final class IntermediateAuthority {
+        private final PrivateKey key;
+        private final byte[] cert;
+
+        private IntermediateAuthority(PrivateKey key, byte[] cert) {
+            this.key = key;
+            this.cert = cert;
+        }
+    }
+
+    private static ThreadFactory handlerThreadFactory() {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(null, runnable, "client-" + counter.incrementAndGet(), HANDLER_STACK_SIZE);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Внутренний класс для обработки клиентов в потоках пула.
      */
     private class ClientHandler implements Runnable {
         private final Socket socket;
-        private final String clientName;
 
-        public ClientHandler(Socket socket, String clientName) {
+        public ClientHandler(Socket socket) {
             this.socket = socket;
-            this.clientName = clientName;
         }
 
         @Override
         public void run() {
             // Обработка подключенного клиента
+            boolean keepOpen = false;
             try {
+                socket.setSoTimeout(CLIENT_READ_TIMEOUT_MILLIS);
+                Object request = receiveRequest(socket);
+                if (request instanceof String[] command) {
+                    // Соединение получателя остается открытым, но обработчик освобождается
+                    keepOpen = handleCommand(socket, command);
+                    return;
+                }
+                String clientName = (String) request;
+                System.out.println("Подключено клиент: " + clientName + ", " + socket.getInetAddress().getHostAddress());
+
                 handleClient(socket, clientName);
-                socket.close();
-            } catch (IOException | ClassNotFoundException e) {
-                throw new RuntimeException(e);
+            } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                failedClients.increment();
+                System.err.println("Ошибка обработки клиента " + socket.getInetAddress().getHostAddress()
+                        + ": " + e.getMessage());
+            } finally {
+                if (!keepOpen) {
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
+                        // Сокет уже закрыт
+                    }
+                }
             }
         }
     }
+
+    /**
+     * Периодически выводит количество выданных сертификатов и загрузку пула обработчиков.
+     */
+    private class StatsReporter implements Runnable {
+        private long previousCount;
+
+        @Override
+        public void run() {
+            long count = issuedCerts.sum();
+            double rate = (double) (count - previousCount) / REPORT_PERIOD_SECONDS;
+            previousCount = count;
+            System.out.printf("Сертификатов выдано: %d (%.1f/с), использовано повторно: %d, очередь: %d, занято обработчиков: %d из %d, "
+                            + "отклонено подключений: %d, ошибок: %d, подключено получателей: %d, пересылок: %d, %s, %s%n",
+                    count, rate, reusedCerts.sum(), getQueueDepth(), clientExecutor.getActiveCount(), HANDLER_THREADS,
+                    rejectedClients.sum(), failedClients.sum(), connectedClients.size(), relayedBundles.sum(),
+                    revocations, keyPairPool);
+        }
+    }
 }
\ No newline at end of file
@@ -85,6 +85,17 @@ public class Tools {
         }
     }
 
+    /**
+     * Проверяет имя клиента, которое становится частью имени папки с его документами:
+     * только буквы, цифры, '_' и '-'.
+     *
+     * @param name имя клиента
+     * @return true, если имя допустимо
+     */
+    public static boolean isValidName(String name) {
+        return name != null && name.matches("[\\p{L}\\p{N}_-]+");
+    }
+
     /**
      * Создает папку с указанным именем.
      *
@@ -0,0 +1,197 @@
+package dp.scsa;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Замер пропускной способности передачи файла через loopback:
+ * копирование через буфер 4 КБ (прежняя реализация) и {@link Multiplexer}
+ * (фрагменты с CRC, подтверждениями и подписью, без сжатия).
+ * <p>
+ * Использование: TransferBenchmark [размер файла, МБ] [количество повторов] [папка]
+ */
+public class TransferBenchmark {
+    private static final int LEGACY_BUFFER_SIZE = 4096;
+    private static final String SIGNATURE_ALGORITHM = "SHA512withRSA";
+    // Обработчик приема бенчмарка не разбирает сертификат, но пустой сертификат получатель отклоняет
+    private static final byte[] SIGNER_CERT = {0};
+
+    public static void main(String[] args) throws Exception {
+        long sizeMb = args.length > 0 ? Long.parseLong(args[0]) : 2048;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        Path folder = Paths.get(args.length > 2 ? args[2] : "transfer_benchmark");
+        Files.createDirectories(folder);
+
+        Path source = folder.resolve("source.bin");
+        Path target = folder.resolve("target.bin");
+        long size = sizeMb * 1024 * 1024;
+        if (!Files.exists(source) || Files.size(source) != size) {
+            System.out.println("Создание файла " + source + " (" + sizeMb + " МБ)...");
+            createFile(source, size);
+        }
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+        try {
+            for (int run = 1; run <= runs; run++) {
+                report("буфер 4 КБ", run, size, measure(source, target, size, null));
+                report("Multiplexer", run, size, measure(source, target, size, keyPair));
+            }
+        } finally {
+            Files.deleteIfExists(target);
+        }
+    }
+
+    /**
+     * Передает файл через loopback и возвращает время передачи в наносекундах
+     * (от подключения до записи последнего байта получателем).
+     *
+     * @param keyPair ключи подписи для передачи через {@link Multiplexer} или null для прежней реализации
+     */
+    private static long measure(Path source, Path target, long size, KeyPair keyPair) throws Exception {
+        try (ServerSocket server = new ServerSocket()) {
+            server.bind(new InetSocketAddress("localhost", 0));
+            int port = server.getLocalPort();
+            Exception[] failure = new Exception[1];
+            Thread receiver = new Thread(() -> {
+                try (Socket socket = server.accept()) {
+                    if (keyPair == null) {
+                        receive(socket, target);
+                    } else {
+                        Multiplexer.receive(socket, target.getParent(), handler(target, keyPair));
+                    }
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }, "transfer-receiver");
+            receiver.start();
+
+            long start = System.nanoTime();
+            try (Socket socket = new Socket("localhost", port)) {
+                if (keyPair == null) {
+                    send(socket, source);
+                    socket.shutdownOutput();
+                    // Ждем, пока получатель дочитает данные и закроет соединение
+                    socket.getInputStream().read();
+                } else {
+                    // Отправка завершается ответом DONE, то есть после записи и проверки файла получателем
+                    Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM);
+                    signature.initSign(keyPair.getPrivate());
+                    Multiplexer.send(socket, List.of(new Multiplexer.Outgoing(source, signature, SIGNER_CERT,
+                            Compression.NONE, 0, false)));
+                }
+            }
+            receiver.join();
+            long elapsed = System.nanoTime() - start;
+
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            if (Files.size(target) != size) {
+                throw new IOException("Получено " + Files.size(target) + " из " + size + " байт");
+            }
+            return elapsed;
+        }
+    }
+
+    /**
+     * Обработчик приема: принятый файл сохраняется как target, подпись проверяется открытым ключом бенчмарка.
+     */
+    private static Multiplexer.Handler handler(Path target, KeyPair keyPair) {
+        return new Multiplexer.Handler() {
+            @Override
+            public Signature createVerifier(byte[] signerCert) throws IOException {
+                try {
+                    Signature verifier = Signature.getInstance(SIGNATURE_ALGORITHM);
+                    verifier.initVerify(keyPair.getPublic());
+                    return verifier;
+                } catch (GeneralSecurityException e) {
+                    throw new IOException(e);
+                }
+            }
+
+            @Override
+            public Path started(String fileName, long size, long offset) {
+                return target;
+            }
+
+            @Override
+            public void completed(String fileName, Path file, boolean verified) {
+                if (!verified) {
+                    System.err.println("Подпись файла " + fileName + " неверна");
+                }
+            }
+        };
+    }
+
+    private static void send(Socket socket, Path source) throws IOException {
+        DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+        outputStream.writeUTF(source.getFileName().toString());
+        outputStream.writeLong(Files.size(source));
+        outputStream.flush();
+
+        try (FileInputStream fileInputStream = new FileInputStream(source.toFile())) {
+            byte[] buffer = new byte[LEGACY_BUFFER_SIZE];
+            int bytesRead;
+            while ((bytesRead = fileInputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, bytesRead);
+            }
+            outputStream.flush();
+        }
+    }
+
+    private static void receive(Socket socket, Path target) throws IOException {
+        DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+        inputStream.readUTF();
+        long fileSize = inputStream.readLong();
+
+        try (FileOutputStream fileOutputStream = new FileOutputStream(target.toFile())) {
+            byte[] buffer = new byte[LEGACY_BUFFER_SIZE];
+            long totalBytesRead = 0;
+            while (totalBytesRead < fileSize) {
+                int bytesRead = inputStream.read(buffer, 0, (int) Math.min(buffer.length, fileSize - totalBytesRead));
+                if (bytesRead == -1) {
+                    break;
+                }
+                fileOutputStream.write(buffer, 0, bytesRead);
+                totalBytesRead += bytesRead;
+            }
+        }
+    }
+
+    private static void createFile(Path path, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+            ThreadLocalRandom.current().nextBytes(buffer.array());
+            for (long written = 0; written < size; ) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), size - written));
+                written += channel.write(buffer);
+            }
+        }
+    }
+
+    private static void report(String method, int run, long size, long nanos) {
+        double seconds = nanos / 1e9;
+        System.out.printf("%-24s повтор %d: %.2f с, %.0f МБ/с%n", method, run, seconds, size / 1048576.0 / seconds);
+    }
+}
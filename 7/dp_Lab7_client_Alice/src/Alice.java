@@ -1,8 +1,7 @@
 import dp.scsa.Client;
+import dp.scsa.Multiplexer;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 
 import static dp.scsa.Tools.chooseFile;
@@ -12,37 +11,28 @@ public class Alice {
         Client client = new Client("Alice");
         Socket socket = client.connectToServer("localhost", 8888);
         client.createCertificate(socket);
+        // Отзыв сертификатов корреспондентов затем проверяется по локальной копии списка
+        client.refreshRevocations("localhost", 8888);
 
         try {
             // Создаем сокет для подключения к Бобу
             Socket socketP2P = new Socket("localhost", 1234);
 
-            // Получаем потоки ввода/вывода для обмена данными с Бобом
-            ObjectOutputStream outputStream = new ObjectOutputStream(socketP2P.getOutputStream());
-            outputStream.writeObject(client.getClientLogin());
-            ObjectInputStream inputStream = new ObjectInputStream(socketP2P.getInputStream());
-            String penFriend = (String) inputStream.readObject();
+            // Обмениваемся с Бобом именами, подтвержденными подписью листовых ключей
+            String penFriend = client.authenticatePeer(socketP2P);
 
-            // Цикл для отправки и получения файлов
-            while (true) {
-                String filePath = chooseFile();
-                if (filePath == null) {
-                    socketP2P.close();
-                    break;
-                }
-                client.setMessage(filePath);
-                client.createSignature();
-
-                // Отправляем документ Бобу
-                client.sendFiles(socketP2P);
+            // Документы Боба принимаются в фоне, пока Алиса выбирает и отправляет свои
+            try (Multiplexer.Duplex duplex = client.openDuplex(socketP2P, penFriend)) {
+                // Цикл для отправки файлов
+                while (duplex.isOpen()) {
+                    String filePath = chooseFile();
+                    if (filePath == null) {
+                        break;
+                    }
 
-                System.out.println();
-
-                // Получаем документ от Боба
-                if (!socketP2P.isClosed())
-                    client.receiveFiles(socketP2P, penFriend);
-                else
-                    break;
+                    // Отправляем документ Бобу
+                    client.sendFiles(duplex, filePath);
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
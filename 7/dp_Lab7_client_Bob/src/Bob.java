@@ -1,10 +1,8 @@
 import dp.scsa.Client;
+import dp.scsa.PeerHub;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.Scanner;
 
@@ -17,46 +15,31 @@ public class Bob {
         Socket socket = client.connectToServer("localhost", 8888);
         client.createCertificate(socket);
         socket.close();
+        // Отзыв сертификатов корреспондентов затем проверяется по локальной копии списка
+        client.refreshRevocations("localhost", 8888);
 
-        try {
-            // Создаем серверный сокет, чтобы ожидать подключения Алисы
-            ServerSocket serverSocket = new ServerSocket(1234);
-            // Ожидаем подключения Алисы
-            Socket socketP2P = serverSocket.accept();
-
-            // Получаем потоки ввода/вывода для обмена данными с Бобом
-            ObjectOutputStream outputStream = new ObjectOutputStream(socketP2P.getOutputStream());
-            outputStream.writeObject(client.getClientLogin());
-            ObjectInputStream inputStream = new ObjectInputStream(socketP2P.getInputStream());
-            String penFriend = (String) inputStream.readObject();
-
-            // Цикл для отправки и получения файлов
+        // Принимаем подключения корреспондентов; документы каждого принимаются в фоне
+        // в свою папку, в том числе пока Боб отправляет документы другим
+        try (PeerHub hub = new PeerHub(client, 1234)) {
+            // Цикл отправки файлов
             while (true) {
-                System.out.println();
-
-                // Получаем документ от Алисы
-                if (!socketP2P.isClosed())
-                    client.receiveFiles(socketP2P, penFriend);
-                else
+                System.out.print("\nВведите имя корреспондента и путь к файлу для отправки: ");
+                String line = scanner.nextLine();
+                if (line.isEmpty()) {
                     break;
+                }
 
-                System.out.print("\nВведите путь к файлу для отправки: ");
-                String filePath = scanner.nextLine();
-
-                // Проверяем, был ли введен путь к файлу
-                if (!filePath.isEmpty() && (new File(filePath)).exists()) {
-                    System.out.println("Выбранный файл: " + filePath);
-                } else {
+                String[] command = line.split(" ", 2);
+                if (command.length < 2 || !(new File(command[1])).exists()) {
                     System.out.println("Файл не выбран");
-                    socketP2P.close();
-                    break;
+                    continue;
                 }
+                System.out.println("Выбранный файл: " + command[1]);
 
-                client.setMessage(filePath);
-                client.createSignature();
-
-                // Отправляем документ Алисе
-                client.sendFiles(socketP2P);
+                // Отправляем документ корреспонденту
+                if (!hub.send(command[0], command[1])) {
+                    System.out.println("Корреспондент " + command[0] + " не подключен; подключены: " + hub.getPeers());
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
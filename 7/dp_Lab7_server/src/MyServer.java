@@ -1,10 +1,37 @@
 import dp.scsa.Server;
 
 import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Scanner;
 
 public class MyServer {
+    /**
+     * @param args необязательный параметр: период ротации промежуточного УЦ в минутах (по умолчанию без ротации)
+     */
     public static void main(String[] args) throws IOException {
-        Server server = new Server();
+        long rotationPeriodMinutes = args.length > 0 ? Long.parseLong(args[0]) : 0;
+        Server server = new Server(rotationPeriodMinutes);
+
+        // Серийные номера выданных сертификатов сервер выводит при выдаче; введенный номер отзывается
+        Thread console = new Thread(() -> {
+            Scanner scanner = new Scanner(System.in);
+            while (scanner.hasNextLine()) {
+                String line = scanner.nextLine().trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                try {
+                    if (!server.revoke(new BigInteger(line, 16))) {
+                        System.out.println("Сертификат " + line + " уже отозван");
+                    }
+                } catch (NumberFormatException e) {
+                    System.out.println("Введите серийный номер сертификата в шестнадцатеричном виде");
+                }
+            }
+        }, "revocation-console");
+        console.setDaemon(true);
+        console.start();
+
         server.start(8888);
     }
-}
\ No newline at end of file
+}